@@ -0,0 +1,19 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+/**
+ * Settings for running the benchmarks without an elevator.config - call apply() in the @Setup of every benchmark that
+ * touches classes reading settings, before anything else
+ */
+class BenchmarkSettings {
+    private BenchmarkSettings() {}
+
+    static void apply() {
+        Settings.setSetting("ip_address", "127.0.0.1");
+        // Keep the log out of the measurements - nothing below WARN, and not on the console
+        Settings.setSetting("log_level", "WARN");
+        Settings.setSetting("log_console", "false");
+        Settings.setSetting("log_file", "target/benchmark.log");
+        // Start every run with no orders, instead of the ones journalled by the previous run
+        Settings.setSetting("journal_file", "");
+    }
+}
@@ -0,0 +1,121 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The dispatcher's work per event, with a varying number of pending jobs (in a 32-floor building):
+ * - recalculate: JobDispatcher.recalculateJobCosts - re-estimating and rescheduling every pending job, as the
+ *   CommandDispatcher does on every floor passed
+ * - assign: HallCallAssigner.assign - building the cost matrix and solving the assignment for every car, as
+ *   HallCallAssigner.solve does on every state or request received
+ * - nextDue: finding the next job due (what JobDispatcher.dispatchDue does every time the ControlLoop wakes up)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+    private static final int FLOORS = 32;
+
+    @Param({"1", "8", "32", "62"})
+    int jobs;
+
+    @Param({"1", "4"})
+    int cars;
+
+    private JobDispatcher dispatcher;
+    private EtaEstimator estimator;
+    private Itinerary itinerary;
+    private CarState[] carStates;
+    private int[] targets, assignedCar;
+
+    /**
+     * A car moving up past floor 5, with nothing else going on
+     */
+    private class BenchmarkNode implements JobDispatcher.Node {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public boolean isStoppedAt(int floor) {
+            return false;
+        }
+
+        @Override
+        public long estimateTimeToServe(int target) {
+            return TimeUnit.NANOSECONDS.toMillis(estimator.timeToServe(itinerary, 5, Elevator.DIR_UP, true, 0, target));
+        }
+
+        @Override
+        public boolean isSuspected(int node) {
+            return false;
+        }
+
+        @Override
+        public void dispatch(int target, byte reason, long lateness) {}
+
+        @Override
+        public void jobTaken(int target, long waited) {}
+
+        @Override
+        public void jobChanged(JobTable jobs, int slot) {}
+
+        @Override
+        public void jobRequeued(int target) {}
+
+        @Override
+        public void jobsRequeued(int node, int count) {}
+
+        @Override
+        public void scheduleChanged() {}
+    }
+
+    @Setup
+    public void setup() {
+        BenchmarkSettings.apply();
+        estimator = new EtaEstimator(FLOORS, TimeUnit.SECONDS.toNanos(2), TimeUnit.SECONDS.toNanos(3));
+        itinerary = new Itinerary(FLOORS);
+        itinerary.addCabCall(FLOORS / 2);
+        dispatcher = new JobDispatcher(FLOORS, 1, new BenchmarkNode());
+        JobTable numbering = new JobTable(FLOORS);
+        targets = new int[jobs];
+        assignedCar = new int[jobs];
+        // Spread the jobs over the building, alternating directions
+        for (int i = 0; i < jobs; i++) {
+            targets[i] = numbering.targetOf((int) ((long) i * numbering.size() / jobs));
+            dispatcher.requested(targets[i], 1);
+        }
+        carStates = new CarState[cars];
+        for (int car = 0; car < cars; car++) {
+            carStates[car] = new CarState(FLOORS);
+            carStates[car].floor = 1 + car * (FLOORS - 1) / Math.max(1, cars - 1);
+            carStates[car].direction = Elevator.DIR_STOP;
+            carStates[car].travelTime = 2000;
+            carStates[car].dwellTime = 3000;
+            carStates[car].itinerary.addCabCall(FLOORS - carStates[car].floor + 1);
+        }
+    }
+
+    @Benchmark
+    public long recalculate() {
+        dispatcher.recalculateJobCosts();
+        return dispatcher.nanosUntilNext(System.nanoTime());
+    }
+
+    @Benchmark
+    public int assign() {
+        HallCallAssigner.assign(carStates, cars, targets, jobs, assignedCar);
+        return assignedCar[0];
+    }
+
+    @Benchmark
+    public long nextDue() {
+        return dispatcher.nanosUntilNext(System.nanoTime());
+    }
+}
@@ -0,0 +1,112 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the per-floor work scales with the number of floors - every operation here should grow linearly (or better):
+ * - scan: one InputListener scan of a snapshot with a single button changing
+ * - jobLookup: checking every hall call for a job (as done on the way past each floor)
+ * - schedule: rescheduling every pending job and polling the next one due (CommandDispatcher.recalculateJobCosts)
+ * - estimate: the time-to-serve estimate for a call at the far end, with stops along the way
+ * - validate: decoding and range-checking a batch of messages, one per hall call
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FloorScalingBenchmark {
+    @Param({"4", "16", "64", "256"})
+    int floors;
+
+    private InputEventQueue events;
+    private InputScanner scanner;
+    private int[] snapshot;
+    private int toggled;
+
+    private JobTable jobs;
+    private JobSchedule schedule;
+
+    private EtaEstimator estimator;
+    private Itinerary itinerary;
+
+    private ByteBuffer messages;
+    private ClusterMessage message;
+
+    @Setup
+    public void setup() {
+        events = new InputEventQueue(1024);
+        scanner = new InputScanner(floors, Elevator.NUM_BUTTONS, events);
+        snapshot = new int[scanner.snapshotSize()];
+        snapshot[floors * Elevator.NUM_BUTTONS] = 1;
+
+        jobs = new JobTable(floors);
+        schedule = new JobSchedule(jobs);
+        for (int slot = 0; slot < jobs.size(); slot += 2)
+            jobs.transition(slot, JobTable.STATE_PENDING, false);
+
+        estimator = new EtaEstimator(floors, TimeUnit.SECONDS.toNanos(2), TimeUnit.SECONDS.toNanos(3));
+        itinerary = new Itinerary(floors);
+        for (int floor = 2; floor < floors; floor += 3)
+            itinerary.addCabCall(floor);
+
+        messages = ByteBuffer.allocate(2 * floors * ClusterMessage.SIZE);
+        for (int floor = 1; floor <= floors; floor++) {
+            ClusterMessage.encode(messages, ClusterMessage.TYPE_NEW_REQUEST, floor, 1, floor, 0);
+            ClusterMessage.encode(messages, ClusterMessage.TYPE_NEW_REQUEST, -floor, 1, floor, 0);
+        }
+        message = new ClusterMessage();
+    }
+
+    @Benchmark
+    public int scan() throws InterruptedException {
+        // Press and release a button somewhere in the middle, walking through all of them
+        snapshot[toggled] ^= 1;
+        if (snapshot[toggled] == 0)
+            toggled = (toggled + 1) % (floors * Elevator.NUM_BUTTONS);
+        scanner.scan(snapshot);
+        int drained = 0;
+        while (events.size() > 0)
+            drained += events.take();
+        return drained;
+    }
+
+    @Benchmark
+    public int jobLookup() {
+        int found = 0;
+        for (int floor = 1; floor <= floors; floor++) {
+            if (jobs.jobExists(floor)) found++;
+            if (jobs.jobExists(-floor)) found++;
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int schedule() {
+        long now = System.nanoTime();
+        for (int slot = 0; slot < jobs.size(); slot++) {
+            if (JobTable.state(jobs.get(slot)) != JobTable.STATE_PENDING) continue;
+            schedule.schedule(slot, (slot * 7919L) % 10000000L, now);
+        }
+        return schedule.pollDue(now + 10000000L) + (int) schedule.nanosUntilNext(now);
+    }
+
+    @Benchmark
+    public long estimate() {
+        return estimator.timeToServe(itinerary, 1, Elevator.DIR_STOP, false, 0, -floors);
+    }
+
+    @Benchmark
+    public int validate() {
+        messages.rewind();
+        int valid = 0;
+        while (message.decode(messages)) {
+            if (message.floor != 0 && Math.abs(message.floor) <= floors) valid++;
+        }
+        return valid;
+    }
+}
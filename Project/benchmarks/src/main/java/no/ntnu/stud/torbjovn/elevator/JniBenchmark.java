@@ -0,0 +1,85 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of the native driver, against libelevator_stub.so - elev.c on an in-memory fake of the Comedi I/O
+ * (build it with 'make stub' in src/main/resources/driver, or point -Delevator.stub=<path> at it). The NullDriver
+ * numbers are the same calls without JNI, for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JniBenchmark {
+    @Param({"native", "java"})
+    String driverType;
+
+    private ElevatorDriver driver;
+    private final int[] snapshot = new int[Elevator.SNAPSHOT_SIZE];
+    private final int[] outputs = new int[4];
+    private int value;
+
+    @Setup
+    public void setup() {
+        BenchmarkSettings.apply();
+        if ("java".equals(driverType)) {
+            driver = new NullDriver();
+            return;
+        }
+        File stub = new File(System.getProperty("elevator.stub", "../src/main/resources/driver/libelevator_stub.so"));
+        if (!stub.exists())
+            throw new IllegalStateException(stub + " not found - run 'make stub' in src/main/resources/driver first");
+        Settings.setSetting("native_library", stub.getPath());
+        driver = new NativeDriver(NativeDriver.ET_Comedi);
+        if (!driver.init())
+            throw new IllegalStateException("Failed to initialize the stub driver");
+    }
+
+    @Benchmark
+    public int inputSnapshot() {
+        driver.getInputSnapshot(snapshot);
+        return snapshot[Elevator.SNAPSHOT_FLOOR];
+    }
+
+    @Benchmark
+    public int floorSensor() {
+        return driver.getFloorSensorSignal();
+    }
+
+    @Benchmark
+    public void buttonLamp() {
+        value ^= 1;
+        driver.setButtonLamp(Elevator.BUTTON_TYPE_COMMAND, 2, value);
+    }
+
+    /**
+     * What the OutputRegister writes when the door opens at a floor: motor, cab lamp, hall lamp and door, in one call
+     */
+    @Benchmark
+    public void doorOpenBatch() {
+        value ^= 1;
+        outputs[0] = OutputRegister.pack(ElevatorDriver.OUTPUT_MOTOR_DIRECTION, Elevator.DIR_STOP, 0, 0);
+        outputs[1] = OutputRegister.pack(ElevatorDriver.OUTPUT_BUTTON_LAMP, Elevator.BUTTON_TYPE_COMMAND, 2, value);
+        outputs[2] = OutputRegister.pack(ElevatorDriver.OUTPUT_BUTTON_LAMP, Elevator.BUTTON_TYPE_CALL_UP, 2, value);
+        outputs[3] = OutputRegister.pack(ElevatorDriver.OUTPUT_DOOR_OPEN_LAMP, value, 0, 0);
+        driver.setOutputs(outputs, outputs.length);
+    }
+
+    /**
+     * The same four outputs, one call each
+     */
+    @Benchmark
+    public void doorOpenSingle() {
+        value ^= 1;
+        driver.setMotorDirection(Elevator.DIR_STOP);
+        driver.setButtonLamp(Elevator.BUTTON_TYPE_COMMAND, 2, value);
+        driver.setButtonLamp(Elevator.BUTTON_TYPE_CALL_UP, 2, value);
+        driver.setDoorOpenLamp(value);
+    }
+}
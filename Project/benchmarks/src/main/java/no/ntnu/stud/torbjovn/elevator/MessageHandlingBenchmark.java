@@ -0,0 +1,73 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import org.apache.activemq.artemis.api.core.ActiveMQBuffer;
+import org.apache.activemq.artemis.api.core.Message;
+import org.apache.activemq.artemis.core.client.impl.ClientMessageImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receiving a batch of messages through ArtemisTransport's handler, per batch of 'records' messages:
+ * - decode: decoding only, into a receiver that just counts the messages
+ * - dispatch: decoding and handing them to a CommandHandler (with an elevator on a NullDriver), cycling every floor
+ *   through request -> taken by another node -> completed, so the job table and schedule are exercised as well
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MessageHandlingBenchmark {
+    private static final int OTHER_NODE = ClusterMessage.nodeIndex("127.0.0.2");
+
+    @Param({"1", "32"})
+    int records;
+
+    private ClientMessageImpl message;
+    private ActiveMQBuffer body;
+    private ArtemisTransport.BatchHandler decodeHandler, dispatchHandler;
+    private int decoded;
+
+    @Setup
+    public void setup() {
+        BenchmarkSettings.apply();
+        ByteBuffer batch = ByteBuffer.allocate(records * ClusterMessage.SIZE);
+        int floor = 2, step = 0;
+        for (int i = 0; i < records; i++) {
+            byte type = step == 0 ? ClusterMessage.TYPE_NEW_REQUEST : step == 1 ? ClusterMessage.TYPE_JOB_TAKEN : ClusterMessage.TYPE_JOB_COMPLETE;
+            ClusterMessage.encode(batch, type, floor, OTHER_NODE, i, System.currentTimeMillis());
+            if (++step == 3) {
+                step = 0;
+                floor = floor % Elevator.NUM_FLOORS + 1;
+                if (floor == 1) floor = 2; // The elevator stands at floor 1, which would serve the request at once
+            }
+        }
+        message = new ClientMessageImpl(Message.BYTES_TYPE, false, 0, System.currentTimeMillis(), (byte) 4, 1024);
+        body = message.getBodyBuffer();
+        body.writeBytes(batch.array());
+
+        decodeHandler = new ArtemisTransport.BatchHandler(new Transport.Receiver() {
+            @Override
+            public void onMessage(ClusterMessage received) {
+                decoded += received.floor;
+            }
+        });
+        dispatchHandler = new ArtemisTransport.BatchHandler(new CommandHandler(new Elevator(new NullDriver())));
+    }
+
+    @Benchmark
+    public int decode() {
+        body.readerIndex(0);
+        decodeHandler.onMessage(message);
+        return decoded;
+    }
+
+    @Benchmark
+    public void dispatch() {
+        body.readerIndex(0);
+        dispatchHandler.onMessage(message);
+    }
+}
@@ -0,0 +1,63 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Round trip of a message through Networking - outbound queue, sender thread, transport and back to this node's
+ * receiver - against the in-VM Artemis broker or UDP on loopback. Like TransportLatency, but under JMH.
+ * Each transport runs in its own fork, since Networking can only be started once per JVM.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NetworkingBenchmark {
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    @Param({"udp", "artemis"})
+    String transport;
+
+    private final AtomicInteger delivered = new AtomicInteger();
+    private volatile Thread waiter;
+
+    @Setup
+    public void setup() throws Exception {
+        BenchmarkSettings.apply();
+        Settings.setSetting("udp_port", "41460");
+        Settings.setSetting("udp_peers", "127.0.0.1:41460");
+        Networking.init(new Transport.Receiver() {
+            @Override
+            public void onMessage(ClusterMessage message) {
+                if (message.node != CommandHandler.NODE_INDEX) return;
+                delivered.incrementAndGet();
+                Thread thread = waiter;
+                if (thread != null) LockSupport.unpark(thread);
+            }
+        }, transport);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Networking.shutdown();
+    }
+
+    @Benchmark
+    public int roundTrip() {
+        waiter = Thread.currentThread();
+        int expected = delivered.get() + 1;
+        long deadline = System.nanoTime() + TIMEOUT;
+        Networking.queueMessage(ClusterMessage.TYPE_NEW_REQUEST, 1);
+        while (delivered.get() < expected) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new IllegalStateException("Message was not delivered within 5 s");
+            LockSupport.parkNanos(remaining);
+        }
+        return expected;
+    }
+}
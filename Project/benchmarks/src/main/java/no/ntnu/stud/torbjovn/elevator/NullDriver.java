@@ -0,0 +1,59 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+/**
+ * Driver for an elevator standing still at the first floor with nothing pressed - also the pure Java baseline for the
+ * JNI benchmarks
+ */
+class NullDriver implements ElevatorDriver {
+    private int lastOutput;
+
+    @Override
+    public boolean init() {
+        return true;
+    }
+
+    @Override
+    public void setMotorDirection(int dirn) {
+        lastOutput = dirn;
+    }
+
+    @Override
+    public void setButtonLamp(int button, int floor, int value) {
+        lastOutput = value;
+    }
+
+    @Override
+    public void setFloorIndicator(int floor) {
+        lastOutput = floor;
+    }
+
+    @Override
+    public void setDoorOpenLamp(int value) {
+        lastOutput = value;
+    }
+
+    @Override
+    public void setStopLamp(int value) {
+        lastOutput = value;
+    }
+
+    @Override
+    public void setOutputs(int[] outputs, int count) {
+        lastOutput = count > 0 ? outputs[count - 1] : 0;
+    }
+
+    @Override
+    public int getFloorSensorSignal() {
+        return 1;
+    }
+
+    @Override
+    public int getObstructionSignal() {
+        return 0;
+    }
+
+    @Override
+    public void getInputSnapshot(int[] snapshot) {
+        snapshot[Elevator.SNAPSHOT_FLOOR] = 1;
+    }
+}
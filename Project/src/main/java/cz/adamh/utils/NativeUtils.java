@@ -23,12 +23,17 @@
  */
 package cz.adamh.utils;
  
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
  
 /**
  * A simple library class which helps with loading dynamic libraries stored in the
@@ -115,4 +120,74 @@ public class NativeUtils {
         // Finally, load the library
         System.load(temp.getAbsolutePath());
     }
+
+    /**
+     * Loads library from current JAR archive, through a cache in the given directory
+     * 
+     * The file is stored as cacheDirectory/<SHA-256 of the contents>/<filename> and kept after exiting, so later runs
+     * (of the same library) only have to read and hash it instead of writing a new temporary file every time.
+     * A changed library gets a new hash, and so a new file. The file is written under a temporary name and moved into
+     * place, so processes starting at the same time never load a partially written file.
+     * 
+     * @param path The filename inside JAR as absolute path (beginning with '/'), e.g. /package/File.ext
+     * @param cacheDirectory Where to keep the extracted libraries, created if needed
+     * @return the file that was loaded
+     * @throws IOException If the library can't be read or the cache can't be written
+     * @throws IllegalArgumentException If the path is not absolute
+     */
+    public static File loadCachedLibraryFromJar(String path, File cacheDirectory) throws IOException {
+        if (!path.startsWith("/")) {
+            throw new IllegalArgumentException("The path has to be absolute (start with '/').");
+        }
+        String filename = path.substring(path.lastIndexOf('/') + 1);
+
+        InputStream is = NativeUtils.class.getResourceAsStream(path);
+        if (is == null) {
+            throw new FileNotFoundException("File " + path + " was not found inside JAR.");
+        }
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int readBytes;
+        try {
+            while ((readBytes = is.read(buffer)) != -1) {
+                contents.write(buffer, 0, readBytes);
+            }
+        } finally {
+            is.close();
+        }
+        byte[] library = contents.toByteArray();
+
+        StringBuilder hash = new StringBuilder();
+        try {
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(library)) {
+                hash.append(String.format("%02x", b));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+
+        File directory = new File(cacheDirectory, hash.toString());
+        File cached = new File(directory, filename);
+        if (!cached.isFile() || cached.length() != library.length) {
+            if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+                throw new IOException("Unable to create directory " + directory.getAbsolutePath());
+            }
+            File temp = File.createTempFile(filename, ".tmp", directory);
+            OutputStream os = new FileOutputStream(temp);
+            try {
+                os.write(library);
+            } finally {
+                os.close();
+            }
+            try {
+                Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                temp.delete();
+                if (!cached.isFile()) throw e; // Somebody else may have moved theirs into place first
+            }
+        }
+
+        System.load(cached.getAbsolutePath());
+        return cached;
+    }
 }
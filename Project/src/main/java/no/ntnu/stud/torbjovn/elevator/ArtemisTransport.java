@@ -0,0 +1,206 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import org.apache.activemq.artemis.api.core.*;
+import org.apache.activemq.artemis.api.core.client.*;
+import org.apache.activemq.artemis.core.config.FileDeploymentManager;
+import org.apache.activemq.artemis.core.config.impl.FileConfiguration;
+import org.apache.activemq.artemis.core.remoting.impl.netty.NettyConnectorFactory;
+import org.apache.activemq.artemis.core.remoting.impl.netty.TransportConstants;
+import org.apache.activemq.artemis.core.server.embedded.EmbeddedActiveMQ;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport through an embedded Artemis broker per node, clustered using the discovery and bridge set up in broker.xml.
+ * Each batch is sent as one Artemis message.
+ */
+class ArtemisTransport implements Transport {
+    public static final String DESTINATION_ADDRESS = "elevatorQueue",
+                            CONNECTOR_NAME = "netty-connector";
+    public static final int CONFIRMATION_WINDOW_SIZE = 1024 * 1024; // bytes of unconfirmed messages the client may have in flight
+
+    private String queueName;
+    private final EmbeddedActiveMQ embeddedServer = new EmbeddedActiveMQ();
+    private ServerLocator serverLocator;
+    private ClientSessionFactory nettyFactory;
+    private ClientSession artemisSession = null;
+    private ClientConsumer messageConsumer = null;
+    // Used by the sender thread only
+    private ClientSession producerSession = null;
+    private ClientProducer producer = null;
+
+    private final AtomicLong messagesConfirmed = new AtomicLong();
+    private final SendAcknowledgementHandler confirmationHandler = new SendAcknowledgementHandler() {
+        @Override
+        public void sendAcknowledged(Message message) {
+            messagesConfirmed.incrementAndGet();
+        }
+    };
+
+    @Override
+    public void start() throws Exception {
+        startServer();
+        startClient();
+    }
+
+    @Override
+    public void listen(Receiver receiver) throws Exception {
+        try {
+            queueName = DESTINATION_ADDRESS + artemisSession.getSessionFactory().getConnection().getID().toString();
+            artemisSession.createQueue(DESTINATION_ADDRESS, queueName, true);
+            messageConsumer = artemisSession.createConsumer(queueName);
+            messageConsumer.setMessageHandler(new BatchHandler(receiver));
+            artemisSession.start();
+        } catch (Exception e) {
+            System.out.println("Failed to start consuming messages, stack trace:");
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+        stopServer();
+    }
+
+    public long getMessagesConfirmed() {
+        return messagesConfirmed.get();
+    }
+
+    private void startServer() throws Exception {
+        System.out.println("Attempting to start EmbeddedActiveMQ server...");
+        try {
+            // Manually read the config from the broker.xml, as we have to set some options programmatically
+            FileDeploymentManager deploymentManager = new FileDeploymentManager("broker.xml");
+            FileConfiguration config = new FileConfiguration();
+            deploymentManager.addDeployable(config);
+            deploymentManager.readConfiguration();
+            try {
+                // Load the ip address to be used from config file, to be able to deploy the same JAR to different nodes
+                config.getConnectorConfigurations().get(CONNECTOR_NAME).getParams().put(TransportConstants.HOST_PROP_NAME, Settings.getSetting("ip_address"));
+            } catch (NullPointerException npe) {
+                System.out.println("Error: ip_address property not set in config file, falling back to 'localhost'");
+            }
+            embeddedServer.setConfiguration(config);
+            embeddedServer.start();
+        } catch (Exception e) {
+            System.out.println("Failed to start EmbeddedActiveMQ server, stack trace follows:");
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    private void stopServer() throws Exception {
+        System.out.println("Attempting to stop EmbeddedActiveMQ server...");
+        try {
+            closeProducer();
+            if (messageConsumer != null) messageConsumer.close();
+            if (artemisSession != null) {
+                if (queueName != null) artemisSession.deleteQueue(queueName); // Remove the subscription to the address
+                artemisSession.close();
+                artemisSession.getSessionFactory().close();
+                artemisSession.getSessionFactory().getServerLocator().close();
+            }
+            embeddedServer.stop();
+            System.out.println("Stopping server");
+        } catch (Exception e) {
+            System.out.println("Failed to stop EmbeddedActiveMQ server, stack trace follows:");
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    private void startClient() throws Exception {
+        try {
+            Map<String, Object> connectionParams = new HashMap<String, Object>();
+            connectionParams.put(TransportConstants.PORT_PROP_NAME, 61617);
+            connectionParams.put(TransportConstants.HOST_PROP_NAME, "localhost");
+
+            serverLocator = ActiveMQClient.createServerLocator(true, new TransportConfiguration(NettyConnectorFactory.class.getName(), connectionParams));
+            // Sends are asynchronous - the broker confirms them in batches within this window
+            serverLocator.setConfirmationWindowSize(CONFIRMATION_WINDOW_SIZE);
+            serverLocator.setBlockOnNonDurableSend(false);
+            serverLocator.setBlockOnDurableSend(false);
+            nettyFactory = serverLocator.createSessionFactory();
+            artemisSession = nettyFactory.createSession();
+        } catch (Exception e) {
+            System.out.println("Failed to start a client connection, stack trace:");
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean send(ByteBuffer batch) {
+        try {
+            if (producer == null || producer.isClosed()) {
+                if (producerSession == null || producerSession.isClosed()) {
+                    if (nettyFactory == null || nettyFactory.isClosed())
+                        nettyFactory = serverLocator.createSessionFactory();
+                    producerSession = nettyFactory.createSession();
+                }
+                // Message producer was closed - open it again
+                producer = producerSession.createProducer(DESTINATION_ADDRESS);
+            }
+            ClientMessage message = producerSession.createMessage(false);
+            message.getBodyBuffer().writeBytes(batch);
+            producer.send(message, confirmationHandler);
+            return true;
+        } catch (Exception e) {
+            Log.warn("Failed to send message:", e.getMessage());
+            closeProducer();
+            return false;
+        }
+    }
+
+    private void closeProducer() {
+        try {
+            if (producerSession != null) producerSession.close();
+        } catch (ActiveMQException ignored) {}
+        producerSession = null;
+        producer = null;
+    }
+
+    /**
+     * Decodes the records of each message received - messages are delivered one at a time per consumer,
+     * so the same buffer and message are reused for all of them
+     */
+    static class BatchHandler implements MessageHandler {
+        private final Receiver receiver;
+        // Holds the whole body, since records with a payload have different lengths - grown if a bigger message arrives
+        private ByteBuffer decodeBuffer = ByteBuffer.allocate(1024);
+        private final ClusterMessage received = new ClusterMessage();
+
+        BatchHandler(Receiver receiver) {
+            this.receiver = receiver;
+        }
+
+        @Override
+        public void onMessage(ClientMessage clientMessage) {
+            ActiveMQBuffer body = clientMessage.getBodyBuffer();
+            if (body.readableBytes() < ClusterMessage.SIZE)
+                Log.warn("Got a message in an unknown format ({} bytes)", body.readableBytes());
+            if (body.readableBytes() > decodeBuffer.capacity())
+                decodeBuffer = ByteBuffer.allocate(Integer.highestOneBit(body.readableBytes()) << 1);
+            decodeBuffer.clear();
+            decodeBuffer.limit(body.readableBytes());
+            body.readBytes(decodeBuffer);
+            decodeBuffer.flip();
+            while (decodeBuffer.remaining() >= ClusterMessage.SIZE) {
+                if (!received.decode(decodeBuffer)) {
+                    Log.warn("Got a message in an unknown format ({} bytes)", decodeBuffer.limit());
+                    break;
+                }
+                receiver.onMessage(received);
+            }
+            try {
+                clientMessage.acknowledge();
+            } catch (ActiveMQException e) {
+                Log.error("An error occurred while acknowledging a message", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,584 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discrete-event simulation of a whole building - N cars, M floors and passengers from a TrafficModel - on a virtual
+ * clock, so hours of traffic take seconds. Meant for comparing dispatch changes (e.g. assignment=optimal vs delay) on
+ * the same passengers.
+ *
+ * Every car is a node of its own, running the same code as the Elevator and the CommandDispatcher do in a process: a
+ * JobDispatcher for its hall calls, a Motion moving a SimulatedCar through its Itinerary, and HallCallAssigner.solve -
+ * only the clock is virtual, and what would go over the network is handed straight to the others. So a change to the
+ * dispatch protocol, the delays or the LOOK controller shows up here as it is.
+ * Messages reach every car instantly and in the same order, as if the network were perfect.
+ *
+ * Usage: BuildingSimulator [cars=4] [floors=10] [traffic=up-peak|down-peak|interfloor] [rate=300] [hours=1]
+ *        [travel=2000] [door=1000] [capacity=8] [assignment=optimal|delay] [seed=1]
+ *  - rate is in passengers per hour, travel (per floor) and door (open time with cab calls left) in ms
+ *  - the hall buttons of floor n are read by car (n - 1) % cars, as if each node had some of the panels wired to it
+ */
+class BuildingSimulator {
+    private static final int EVENT_ARRIVAL = 0,
+            EVENT_WAKE = 1, // The Motion noticing the itinerary may have changed
+            EVENT_FLOOR_REACHED = 2,
+            EVENT_DOOR_CLOSED = 3,
+            EVENT_DISPATCH = 4; // The JobDispatcher's timer
+    // Handling capacity is counted in windows of this length (the usual 5 minutes)
+    private static final long CAPACITY_WINDOW = TimeUnit.MINUTES.toNanos(5),
+            // How long the cars get to deliver the passengers left when the arrivals stop
+            DRAIN_TIME = TimeUnit.HOURS.toNanos(1);
+
+    private final int numFloors, capacity;
+    private final long travelTime, doorTime, shortDoorTime, duration;
+    private final TrafficModel traffic;
+    private final Car[] cars;
+    private final List<List<Passenger>> waiting = new ArrayList<>(); // Indexed by floor (1-indexed)
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now = 0, eventSequence = 0;
+    // Messages are delivered to every car in the order they were sent, one at a time
+    private final ArrayDeque<Message> messages = new ArrayDeque<>();
+    private boolean delivering = false;
+
+    private final int[] snapshot, trip = new int[2];
+    private final CarState[] states;
+
+    // Results (times in ms)
+    private final Histogram waitTimes = new Histogram("wait_time", "From pressing the hall button to boarding"),
+            journeyTimes = new Histogram("journey_time", "From pressing the hall button to arriving");
+    private final long[] deliveredPerWindow;
+    private long arrived = 0, delivered = 0, hallCalls = 0;
+
+    BuildingSimulator(int numCars, int numFloors, TrafficModel traffic, long duration, long travelTime, long doorTime, int capacity) {
+        this.numFloors = numFloors;
+        this.traffic = traffic;
+        this.duration = duration;
+        this.travelTime = travelTime;
+        this.doorTime = doorTime;
+        shortDoorTime = doorTime * Elevator.WAIT_OPEN_DOOR_SHORT / Elevator.WAIT_OPEN_DOOR;
+        this.capacity = capacity;
+        cars = new Car[numCars];
+        states = new CarState[numCars];
+        for (int i = 0; i < numCars; i++) {
+            cars[i] = new Car(i);
+            states[i] = new CarState(numFloors);
+        }
+        for (int floor = 0; floor <= numFloors; floor++)
+            waiting.add(new ArrayList<Passenger>());
+        snapshot = new int[numFloors * Elevator.NUM_BUTTONS + 3];
+        deliveredPerWindow = new long[(int) ((duration + DRAIN_TIME) / CAPACITY_WINDOW) + 1];
+    }
+
+    private static class Passenger {
+        final int origin, destination;
+        final long arrivedAt;
+
+        Passenger(int origin, int destination, long arrivedAt) {
+            this.origin = origin;
+            this.destination = destination;
+            this.arrivedAt = arrivedAt;
+        }
+
+        int direction() {
+            return destination > origin ? Elevator.DIR_UP : Elevator.DIR_DOWN;
+        }
+    }
+
+    private static class Message {
+        final byte type;
+        final int target;
+        final Car source;
+
+        Message(byte type, int target, Car source) {
+            this.type = type;
+            this.target = target;
+            this.source = source;
+        }
+    }
+
+    private static class Event implements Comparable<Event> {
+        final long time, sequence;
+        final int type, version;
+        final Car car;
+
+        Event(long time, long sequence, int type, Car car, int version) {
+            this.time = time;
+            this.sequence = sequence;
+            this.type = type;
+            this.car = car;
+            this.version = version;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) return time < other.time ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * One node - what the Elevator and the CommandDispatcher connect the Motion and the JobDispatcher to in a process
+     */
+    private class Car implements Motion.Car, JobDispatcher.Node {
+        final int index, node;
+        final SimulatedCar driver;
+        final Itinerary itinerary;
+        final Motion motion;
+        final JobDispatcher dispatcher;
+        final List<Passenger> riders = new ArrayList<>();
+        int dispatchVersion = 0;
+        // Whether an event is on its way for the Motion - the next floor, the door closing, or a look at the itinerary
+        boolean floorPending = false, doorPending = false, wakePending = false;
+        long dispatchAt = -1;
+
+        Car(int index) {
+            this.index = index;
+            node = index + 1;
+            driver = new SimulatedCar(numFloors);
+            itinerary = new Itinerary(numFloors);
+            motion = new Motion(this, itinerary, new EtaEstimator(numFloors, travelTime, doorTime));
+            dispatcher = new JobDispatcher(numFloors, node, this);
+        }
+
+        /* ---- Motion.Car ---- */
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public int getCurrentFloor() {
+            return driver.getFloorSensorSignal();
+        }
+
+        @Override
+        public boolean doorObstructed() {
+            return false;
+        }
+
+        @Override
+        public int getMotorDirection() {
+            return driver.getMotorDirection();
+        }
+
+        @Override
+        public void setMotorDirection(int direction) {
+            driver.setMotorDirection(direction);
+        }
+
+        @Override
+        public void setFloorIndicator(int floor) {
+            driver.setFloorIndicator(floor);
+        }
+
+        @Override
+        public void setDoorOpenLamp(int value) {
+            driver.setDoorOpenLamp(value);
+        }
+
+        @Override
+        public void setButtonLamp(int button, int floor, int value) {
+            driver.setButtonLamp(button, floor, value);
+        }
+
+        @Override
+        public long doorTime(boolean cabCallsLeft) {
+            return cabCallsLeft ? doorTime : shortDoorTime;
+        }
+
+        @Override
+        public void passingFloor(int floor, int direction) {
+            handleRequestIfExists(this, floor, direction);
+        }
+
+        @Override
+        public void floorServed(int floor, int direction) {
+            signalJobCompleted(this, floor * direction);
+        }
+
+        @Override
+        public void positionChanged() {
+            dispatcher.recalculateJobCosts();
+            solve();
+        }
+
+        /* ---- JobDispatcher.Node ---- */
+
+        @Override
+        public boolean isStoppedAt(int floor) {
+            return driver.getMotorDirection() == Elevator.DIR_STOP && driver.getFloorSensorSignal() == floor;
+        }
+
+        @Override
+        public long estimateTimeToServe(int target) {
+            return motion.estimateTimeToServe(target);
+        }
+
+        @Override
+        public boolean isSuspected(int node) {
+            return false;
+        }
+
+        @Override
+        public void dispatch(int target, byte reason, long lateness) {
+            send(ClusterMessage.TYPE_JOB_TAKEN, target, this);
+            takeHallCall(this, target);
+        }
+
+        @Override
+        public void jobTaken(int target, long waited) {}
+
+        @Override
+        public void jobChanged(JobTable jobs, int slot) {}
+
+        @Override
+        public void jobRequeued(int target) {}
+
+        @Override
+        public void jobsRequeued(int node, int count) {}
+
+        @Override
+        public void scheduleChanged() {
+            armDispatcher(this);
+        }
+    }
+
+    private void post(long time, int type, Car car, int version) {
+        events.add(new Event(time, eventSequence++, type, car, version));
+    }
+
+    public void run() {
+        post(traffic.nextInterval(), EVENT_ARRIVAL, null, 0);
+        Event event;
+        while ((event = events.poll()) != null && event.time <= duration + DRAIN_TIME) {
+            now = event.time;
+            Car car = event.car;
+            switch (event.type) {
+                case EVENT_ARRIVAL:
+                    passengerArrives();
+                    long next = now + traffic.nextInterval();
+                    if (next < duration) post(next, EVENT_ARRIVAL, null, 0);
+                    break;
+                case EVENT_WAKE:
+                    car.wakePending = false;
+                    car.motion.itineraryChanged();
+                    motionChanged(car);
+                    break;
+                case EVENT_FLOOR_REACHED:
+                    floorReached(car);
+                    break;
+                case EVENT_DOOR_CLOSED:
+                    doorClosed(car);
+                    break;
+                case EVENT_DISPATCH:
+                    if (event.version == car.dispatchVersion) dispatch(car);
+                    break;
+            }
+        }
+    }
+
+    /* ---- Passengers ---- */
+
+    private void passengerArrives() {
+        traffic.nextTrip(trip);
+        Passenger passenger = new Passenger(trip[0], trip[1], now);
+        waiting.get(passenger.origin).add(passenger);
+        arrived++;
+        pressHallButton(passenger.origin, passenger.direction());
+    }
+
+    /**
+     * Nobody presses a lit button - in the real system that would put a job that's already taken up for grabs again
+     */
+    private void pressHallButton(int floor, int direction) {
+        Car panel = cars[(floor - 1) % cars.length];
+        int button = direction == Elevator.DIR_UP ? Elevator.BUTTON_TYPE_CALL_UP : Elevator.BUTTON_TYPE_CALL_DOWN;
+        if (panel.driver.isLampOn(button, floor - 1)) return;
+        panel.driver.pressButton(button, floor - 1);
+        scanInputs(panel);
+    }
+
+    /**
+     * The car is at the floor with the door open - let out the ones who are there, and in the ones going our way
+     */
+    private void exchangePassengers(Car car) {
+        int floor = car.motion.getLastFloor();
+        for (Iterator<Passenger> it = car.riders.iterator(); it.hasNext(); ) {
+            Passenger passenger = it.next();
+            if (passenger.destination != floor) continue;
+            it.remove();
+            journeyTimes.record(TimeUnit.NANOSECONDS.toMillis(now - passenger.arrivedAt));
+            deliveredPerWindow[(int) (now / CAPACITY_WINDOW)]++;
+            delivered++;
+        }
+        for (Iterator<Passenger> it = waiting.get(floor).iterator(); it.hasNext() && car.riders.size() < capacity; ) {
+            Passenger passenger = it.next();
+            // At the top and bottom floors there's only one way to go, whatever the car was serving
+            if (floor != 1 && floor != numFloors && passenger.direction() != car.motion.getDirection()) continue;
+            it.remove();
+            car.riders.add(passenger);
+            waitTimes.record(TimeUnit.NANOSECONDS.toMillis(now - passenger.arrivedAt));
+            car.driver.pressButton(Elevator.BUTTON_TYPE_COMMAND, passenger.destination - 1);
+        }
+        scanInputs(car);
+    }
+
+    /**
+     * Press the hall buttons again for the ones left behind (the car was full, or went the other way)
+     */
+    private void callForWaiting(int floor) {
+        boolean up = false, down = false;
+        for (Passenger passenger : waiting.get(floor)) {
+            if (passenger.direction() == Elevator.DIR_UP) up = true;
+            else down = true;
+        }
+        if (up) pressHallButton(floor, Elevator.DIR_UP);
+        if (down) pressHallButton(floor, Elevator.DIR_DOWN);
+    }
+
+    /* ---- Elevator (handleEvent) ---- */
+
+    private void scanInputs(Car car) {
+        car.driver.getInputSnapshot(snapshot);
+        for (int floor = 0; floor < numFloors; floor++) {
+            if (snapshot[floor * Elevator.NUM_BUTTONS + Elevator.BUTTON_TYPE_CALL_UP] != 0 && floor != numFloors - 1)
+                send(ClusterMessage.TYPE_NEW_REQUEST, floor + 1, car);
+            if (snapshot[floor * Elevator.NUM_BUTTONS + Elevator.BUTTON_TYPE_CALL_DOWN] != 0 && floor != 0)
+                send(ClusterMessage.TYPE_NEW_REQUEST, -(floor + 1), car);
+            if (snapshot[floor * Elevator.NUM_BUTTONS + Elevator.BUTTON_TYPE_COMMAND] != 0 && floor != car.driver.getFloorSensorSignal() - 1) {
+                car.driver.setButtonLamp(Elevator.BUTTON_TYPE_COMMAND, floor, 1);
+                car.itinerary.addCabCall(floor + 1);
+                itineraryChanged(car);
+            }
+        }
+    }
+
+    private void itineraryChanged(Car car) {
+        if (car.motion.isBusy() || car.wakePending) return;
+        car.wakePending = true;
+        post(now, EVENT_WAKE, car, 0);
+    }
+
+    private void takeHallCall(Car car, int target) {
+        car.itinerary.addHallCall(target);
+        itineraryChanged(car);
+    }
+
+    private void handleRequestIfExists(Car car, int floor, int direction) {
+        if (floor > numFloors || floor < 1 || Math.abs(direction) != 1)
+            return;
+        int targetWithDirection = floor * direction;
+        if (car.dispatcher.jobExists(targetWithDirection) && car.dispatcher.takeRequest(targetWithDirection)) {
+            send(ClusterMessage.TYPE_JOB_TAKEN, targetWithDirection, car);
+            car.itinerary.addHallCall(targetWithDirection);
+        }
+    }
+
+    /* ---- Motion - the events it waits for ---- */
+
+    /**
+     * Post what the Motion is waiting for now - reaching the next floor, or the door closing. The passengers get on
+     * and off as the door opens.
+     */
+    private void motionChanged(Car car) {
+        Motion motion = car.motion;
+        if (motion.isMoving() && !car.floorPending) {
+            car.floorPending = true;
+            car.driver.depart();
+            post(motion.getSegmentStart() + travelTime, EVENT_FLOOR_REACHED, car, 0);
+        } else if (motion.isDoorOpen() && !car.doorPending) {
+            car.doorPending = true;
+            exchangePassengers(car);
+            post(motion.getDoorCloses(), EVENT_DOOR_CLOSED, car, 0);
+        }
+    }
+
+    private void floorReached(Car car) {
+        car.floorPending = false;
+        int floor = car.motion.getLastFloor() + car.driver.getMotorDirection();
+        car.driver.arriveAt(floor);
+        car.motion.floorReached(floor);
+        motionChanged(car);
+    }
+
+    private void doorClosed(Car car) {
+        car.doorPending = false;
+        car.motion.runTimers(now);
+        motionChanged(car);
+        // Once it's on its way - pressing while it's still standing here with the door open would only open it again
+        if (car.driver.getMotorDirection() != Elevator.DIR_STOP)
+            callForWaiting(car.motion.getLastFloor());
+    }
+
+    /* ---- JobDispatcher - its timer ---- */
+
+    /**
+     * Make sure the dispatcher wakes up at the earliest deadline
+     */
+    private void armDispatcher(Car car) {
+        long wait = car.dispatcher.nanosUntilNext(now);
+        if (wait < 0 || car.dispatchAt == now + wait) return;
+        car.dispatchAt = now + wait;
+        post(car.dispatchAt, EVENT_DISPATCH, car, ++car.dispatchVersion);
+    }
+
+    private void dispatch(Car car) {
+        car.dispatchAt = -1;
+        car.dispatcher.dispatchDue(now);
+        armDispatcher(car);
+    }
+
+    /* ---- HallCallAssigner ---- */
+
+    /**
+     * Every car solves the assignment from the states of all of them, as they are now, and takes its own calls
+     */
+    private void solve() {
+        if (!HallCallAssigner.ENABLED) return;
+        for (int i = 0; i < cars.length; i++) {
+            cars[i].motion.captureState(states[i]);
+            states[i].node = cars[i].node;
+            states[i].updatedAt = Math.max(1, now); // 0 means "no valid state"
+        }
+        for (Car car : cars)
+            HallCallAssigner.solve(car.dispatcher, states, cars.length, now);
+    }
+
+    /* ---- CommandHandler ---- */
+
+    private void signalJobCompleted(Car car, int target) {
+        if (Math.abs(target) > numFloors || target == 0) return;
+        send(ClusterMessage.TYPE_JOB_COMPLETE, target, car);
+        if (Math.abs(target) == 1 || Math.abs(target) == numFloors)
+            send(ClusterMessage.TYPE_JOB_COMPLETE, -target, car);
+    }
+
+    private void send(byte type, int target, Car source) {
+        messages.add(new Message(type, target, source));
+        if (delivering) return; // Sent while handling another message - delivered after it, in order
+        delivering = true;
+        Message message;
+        while ((message = messages.poll()) != null) {
+            if (message.type == ClusterMessage.TYPE_NEW_REQUEST) hallCalls++;
+            for (Car car : cars)
+                onMessage(car, message);
+            if (message.type != ClusterMessage.TYPE_JOB_COMPLETE)
+                solve();
+        }
+        delivering = false;
+    }
+
+    private void onMessage(Car car, Message message) {
+        int button = message.target > 0 ? Elevator.BUTTON_TYPE_CALL_UP : Elevator.BUTTON_TYPE_CALL_DOWN,
+                floor = Math.abs(message.target) - 1;
+        switch (message.type) {
+            case ClusterMessage.TYPE_NEW_REQUEST:
+                if (car.dispatcher.requested(message.target, message.source.node) < 0) {
+                    // We're already here
+                    signalJobCompleted(car, message.target);
+                    takeHallCall(car, message.target);
+                    return;
+                }
+                car.driver.setButtonLamp(button, floor, 1);
+                break;
+            case ClusterMessage.TYPE_JOB_TAKEN:
+                car.dispatcher.taken(message.target, message.source.node);
+                break;
+            case ClusterMessage.TYPE_JOB_COMPLETE:
+                car.dispatcher.completed(message.target);
+                car.driver.setButtonLamp(button, floor, 0);
+                break;
+        }
+    }
+
+    /* ---- Report ---- */
+
+    private static String seconds(double millis) {
+        return String.format("%.1f", millis / 1000.0);
+    }
+
+    public void printReport(String assignment, double rate, long wallNanos) {
+        int inCars = 0, stillWaiting = 0;
+        long motorStarts = 0, floorsTravelled = 0;
+        for (Car car : cars) {
+            inCars += car.riders.size();
+            motorStarts += car.driver.getMotorStarts();
+            floorsTravelled += car.driver.getFloorsTravelled();
+        }
+        for (List<Passenger> floor : waiting)
+            stillWaiting += floor.size();
+        // Handling capacity over the windows with arrivals (the last one only counts if it's complete)
+        int windows = (int) Math.max(1, duration / CAPACITY_WINDOW);
+        long inWindows = 0, busiest = 0;
+        for (int i = 0; i < windows; i++) {
+            inWindows += deliveredPerWindow[i];
+            busiest = Math.max(busiest, deliveredPerWindow[i]);
+        }
+        double hours = duration / 3600e9;
+
+        System.out.println(traffic.getPattern() + ": " + cars.length + " cars, " + numFloors + " floors, "
+                + String.format("%.2f", hours) + " h at " + String.format("%.0f", rate) + " passengers/h, assignment " + assignment);
+        System.out.println("Passengers: " + arrived + " arrived, " + delivered + " delivered, " + stillWaiting
+                + " still waiting, " + inCars + " still travelling");
+        System.out.println("Wait time (s):    mean " + seconds(waitTimes.getMean()) + ", p50 " + seconds(waitTimes.getP50())
+                + ", p95 " + seconds(waitTimes.percentile(95)) + ", max " + seconds(waitTimes.getMax()));
+        System.out.println("Journey time (s): mean " + seconds(journeyTimes.getMean()) + ", p50 " + seconds(journeyTimes.getP50())
+                + ", p95 " + seconds(journeyTimes.percentile(95)) + ", max " + seconds(journeyTimes.getMax()));
+        System.out.println("Handling capacity: " + String.format("%.1f", (double) inWindows / windows)
+                + " passengers per 5 min on average, " + busiest + " in the busiest 5 min");
+        System.out.println("Hall calls: " + hallCalls + ", motor starts: " + motorStarts + ", floors travelled: " + floorsTravelled);
+        double simulated = (now > 0 ? now : duration) / 1e9, wall = wallNanos / 1e9;
+        System.out.println("Simulated " + String.format("%.0f", simulated) + " s in " + String.format("%.2f", wall)
+                + " s (" + String.format("%.0f", simulated / wall) + "x real time)");
+    }
+
+    public static void main(String[] args) {
+        int numCars = 4, numFloors = 10, capacity = 8;
+        String pattern = TrafficModel.UP_PEAK, assignment = HallCallAssigner.MODE_OPTIMAL;
+        double rate = 300, hours = 1;
+        long travel = 2000, door = Elevator.WAIT_OPEN_DOOR, seed = 1;
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                System.out.println("Ignoring argument '" + arg + "' - expected key=value");
+                continue;
+            }
+            String key = arg.substring(0, split), value = arg.substring(split + 1);
+            switch (key) {
+                case "cars": numCars = Integer.parseInt(value); break;
+                case "floors": numFloors = Integer.parseInt(value); break;
+                case "traffic": pattern = value; break;
+                case "rate": rate = Double.parseDouble(value); break;
+                case "hours": hours = Double.parseDouble(value); break;
+                case "travel": travel = Long.parseLong(value); break;
+                case "door": door = Long.parseLong(value); break;
+                case "capacity": capacity = Integer.parseInt(value); break;
+                case "assignment": assignment = value; break;
+                case "seed": seed = Long.parseLong(value); break;
+                default: System.out.println("Unknown argument '" + key + "', ignoring");
+            }
+        }
+        if (numCars < 1 || numCars > HallCallAssigner.MAX_CARS || capacity < 1) {
+            System.out.println("Need 1 to " + HallCallAssigner.MAX_CARS + " cars, with room for at least 1 passenger");
+            System.exit(1);
+        }
+        // Read once, when the classes using them are loaded - which hasn't happened yet
+        Settings.setSetting("ip_address", "127.0.0.1");
+        Settings.setSetting("num_floors", String.valueOf(numFloors));
+        Settings.setSetting("assignment", assignment);
+
+        TrafficModel traffic = new TrafficModel(pattern, numFloors, rate, seed);
+        BuildingSimulator simulator = new BuildingSimulator(numCars, numFloors, traffic, (long) (hours * 3600e9),
+                TimeUnit.MILLISECONDS.toNanos(travel), TimeUnit.MILLISECONDS.toNanos(door), capacity);
+        long start = System.nanoTime();
+        simulator.run();
+        simulator.printReport(HallCallAssigner.ENABLED ? HallCallAssigner.MODE_OPTIMAL : HallCallAssigner.MODE_DELAY, rate, System.nanoTime() - start);
+    }
+}
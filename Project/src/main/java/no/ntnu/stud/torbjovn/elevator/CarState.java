@@ -0,0 +1,68 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the hall call assignment needs to know about one car. Every node broadcasts its own (ClusterMessage.TYPE_STATE),
+ * so that all of them solve the assignment from the same picture of the cluster - including the travel and door times,
+ * which is why the ETA of a car is estimated from the figures it sent rather than our own measurements.
+ *
+ * Payload: | floor (2) | direction (1) | moving (1) | travel time per floor (4, ms) | door time (4, ms) | itinerary |
+ */
+class CarState {
+    private static final int FIXED_SIZE = 12;
+
+    public int node, floor, direction, travelTime, dwellTime;
+    public boolean moving;
+    public final Itinerary itinerary;
+    public long updatedAt; // System.nanoTime() when received
+
+    private final int numFloors;
+    private EtaEstimator estimator = null;
+    private int estimatorTravelTime, estimatorDwellTime;
+
+    CarState(int numFloors) {
+        this.numFloors = numFloors;
+        itinerary = new Itinerary(numFloors);
+    }
+
+    public static int encodedSize(int numFloors) {
+        return FIXED_SIZE + Itinerary.encodedSize(numFloors);
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putShort((short) floor)
+                .put((byte) direction)
+                .put((byte) (moving ? 1 : 0))
+                .putInt(travelTime)
+                .putInt(dwellTime);
+        itinerary.writeTo(buffer);
+    }
+
+    /**
+     * @return false if the payload isn't a valid state (this is left partially updated)
+     */
+    public boolean readFrom(ByteBuffer payload) {
+        if (payload.remaining() < encodedSize(numFloors)) return false;
+        floor = payload.getShort();
+        direction = payload.get();
+        moving = payload.get() != 0;
+        travelTime = payload.getInt();
+        dwellTime = payload.getInt();
+        return floor >= 1 && floor <= numFloors && itinerary.readFrom(payload);
+    }
+
+    /**
+     * Estimate how long it would take the car to serve the hall call, if its stops were the given ones
+     * @return the estimated time, in ns
+     */
+    public long timeToServe(Itinerary stops, int target) {
+        if (estimator == null || estimatorTravelTime != travelTime || estimatorDwellTime != dwellTime) {
+            estimator = new EtaEstimator(numFloors, TimeUnit.MILLISECONDS.toNanos(travelTime), TimeUnit.MILLISECONDS.toNanos(dwellTime));
+            estimatorTravelTime = travelTime;
+            estimatorDwellTime = dwellTime;
+        }
+        return estimator.timeToServe(stops, floor, direction, moving, 0, target);
+    }
+}
@@ -0,0 +1,131 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-layout binary encoding of the messages passed between the elevators (big endian):
+ *
+ *  | version (1) | type (1) | floor (2, signed) | node (4) | sequence (4) | timestamp (8) |
+ *
+ * - floor is 1-indexed with the sign indicating the direction, as everywhere else
+ * - node identifies the sender (see nodeIndex), so no strings are sent or compared
+ * - sequence counts the messages sent by each node, and timestamp is the sender's System.currentTimeMillis()
+ * - TYPE_ACK is only used by transports that confirm delivery themselves (UdpTransport): node is the one acknowledging,
+ *   sequence the acknowledged message's, and timestamp holds the node that sent it
+ * - TYPE_STATE is followed by a payload: | length (2) | length bytes | - the sender's CarState. floor is STATE_HEARTBEAT
+ *   for the ones sent periodically, 0 for the ones sent because something changed
+ * - TYPE_ORDERS is followed by a payload in the same way - a digest and delta of the ReplicatedOrders
+ *
+ * Several records may be sent back-to-back in one message/datagram.
+ *
+ * An instance holds the fields of one decoded message, and can be reused for every message received.
+ */
+class ClusterMessage {
+    public static final byte VERSION = 1;
+    public static final byte TYPE_NEW_REQUEST = 1,
+            TYPE_JOB_TAKEN = 2,
+            TYPE_JOB_COMPLETE = 3,
+            TYPE_ACK = 4,
+            TYPE_STATE = 5,
+            TYPE_ORDERS = 6;
+    public static final int STATE_HEARTBEAT = 1;
+    public static final int SIZE = 20, // Without payload
+            PAYLOAD_HEADER_SIZE = 2;
+
+    public byte type;
+    public int floor, node, sequence;
+    public long timestamp;
+    // The payload of the record (if the type has one) - a view into the decoded buffer, only valid until it's reused
+    public ByteBuffer payload = null;
+
+    public static boolean hasPayload(byte type) {
+        return type == TYPE_STATE || type == TYPE_ORDERS;
+    }
+
+    /**
+     * @return the largest payload a record can have, with the given number of floors
+     */
+    public static int maxPayloadSize(int numFloors) {
+        return Math.max(CarState.encodedSize(numFloors), ReplicatedOrders.maxEncodedSize(numFloors));
+    }
+
+    /**
+     * @return the length of the record starting at offset in the buffer (absolute), or -1 if it's incomplete
+     */
+    public static int recordLength(ByteBuffer buffer, int offset) {
+        if (buffer.limit() - offset < SIZE) return -1;
+        if (!hasPayload(buffer.get(offset + 1))) return SIZE;
+        if (buffer.limit() - offset < SIZE + PAYLOAD_HEADER_SIZE) return -1;
+        int length = SIZE + PAYLOAD_HEADER_SIZE + (buffer.getShort(offset + SIZE) & 0xffff);
+        return buffer.limit() - offset < length ? -1 : length;
+    }
+
+    public static void encode(ByteBuffer buffer, byte type, int floor, int node, int sequence, long timestamp) {
+        buffer.put(VERSION)
+                .put(type)
+                .putShort((short) floor)
+                .putInt(node)
+                .putInt(sequence)
+                .putLong(timestamp);
+    }
+
+    /**
+     * Start the payload of a record just encoded - write it after this, then call endPayload
+     * @return the position of the length field, to be passed to endPayload
+     */
+    public static int beginPayload(ByteBuffer buffer) {
+        int lengthPosition = buffer.position();
+        buffer.putShort((short) 0);
+        return lengthPosition;
+    }
+
+    public static void endPayload(ByteBuffer buffer, int lengthPosition) {
+        buffer.putShort(lengthPosition, (short) (buffer.position() - lengthPosition - PAYLOAD_HEADER_SIZE));
+    }
+
+    /**
+     * Read a message from the buffer into this instance
+     * @return false if the buffer doesn't contain a message in a version we understand
+     */
+    public boolean decode(ByteBuffer buffer) {
+        int length = recordLength(buffer, buffer.position());
+        if (length < 0 || buffer.get() != VERSION)
+            return false;
+        type = buffer.get();
+        floor = buffer.getShort();
+        node = buffer.getInt();
+        sequence = buffer.getInt();
+        timestamp = buffer.getLong();
+        payload = null;
+        if (hasPayload(type)) {
+            buffer.position(buffer.position() + PAYLOAD_HEADER_SIZE);
+            int end = buffer.position() + length - SIZE - PAYLOAD_HEADER_SIZE;
+            ByteBuffer view = buffer.duplicate();
+            view.limit(end);
+            payload = view.slice();
+            buffer.position(end);
+        }
+        return true;
+    }
+
+    /**
+     * Turn a node ID (IPv4 address) into the integer sent on the wire - the address itself, so no coordination is needed
+     */
+    public static int nodeIndex(String nodeId) {
+        String[] parts = nodeId.trim().split("\\.");
+        if (parts.length != 4)
+            return nodeId.toLowerCase().hashCode(); // Not an IPv4 address - still unique enough for a small cluster
+        int index = 0;
+        try {
+            for (String part : parts)
+                index = (index << 8) | (Integer.parseInt(part) & 0xff);
+        } catch (NumberFormatException e) {
+            return nodeId.toLowerCase().hashCode();
+        }
+        return index;
+    }
+
+    public static String nodeName(int nodeIndex) {
+        return ((nodeIndex >>> 24) & 0xff) + "." + ((nodeIndex >>> 16) & 0xff) + "." + ((nodeIndex >>> 8) & 0xff) + "." + (nodeIndex & 0xff);
+    }
+}
@@ -1,146 +1,206 @@
 package no.ntnu.stud.torbjovn.elevator;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.nio.ByteBuffer;
 
 /**
  * Timeout event dispatcher
  * Created by tovine on 4/14/16.
  * Concept and parts of implementation borrowed from a class I wrote for my employer, LuxSave AS. No confidential details are included
+ *
+ * The jobs of this node are kept by a single JobDispatcher, driven on the ControlLoop - this connects it to the rest of
+ * the process: the elevator, the messages to the others, the OrderJournal, the trace and the Metrics.
  */
-public class CommandDispatcher extends Thread {
-    private static final Object waitLock = new Object();
-    private static long sleepTimeout, nextWakeup;
+public class CommandDispatcher {
+    private static final JobDispatcher dispatcher = new JobDispatcher(Elevator.NUM_FLOORS, CommandHandler.NODE_INDEX, new ThisNode());
 
-    private static Map<Integer, Long> activeJobs = new HashMap<>(Elevator.NUM_FLOORS * 2);
-    private static Map.Entry<Integer, Long> currentJob = null;
+    /**
+     * This process, as the JobDispatcher sees it
+     */
+    private static class ThisNode implements JobDispatcher.Node {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public boolean isStoppedAt(int floor) {
+            Elevator elevator = Main.getElevator();
+            return elevator != null && !elevator.isMoving() && elevator.getCurrentFloor() == floor;
+        }
+
+        @Override
+        public long estimateTimeToServe(int target) {
+            Elevator elevator = Main.getElevator();
+            return elevator == null ? -1 : elevator.estimateTimeToServe(target);
+        }
+
+        @Override
+        public boolean isSuspected(int node) {
+            return FailureDetector.isSuspected(node);
+        }
+
+        @Override
+        public void dispatch(int target, byte reason, long lateness) {
+            if (reason == TraceRecorder.DISPATCH_TIMER) Metrics.DISPATCHER_LATENESS.record(lateness / 1000);
+            TraceRecorder.dispatch(target, reason, lateness);
+            Log.info("Dispatching job - target: {}", target);
+            CommandHandler.signalTakeJob(target);
+            Main.getElevator().takeHallCall(target);
+            if (reason == TraceRecorder.DISPATCH_ASSIGNED)
+                Log.info("Assigned hall call {} to this elevator", target);
+        }
+
+        @Override
+        public void jobTaken(int target, long waited) {
+            if (waited >= 0) Metrics.REQUEST_TO_TAKE.record(waited / 1000);
+            Metrics.JOBS_TAKEN.increment();
+        }
+
+        @Override
+        public void jobChanged(JobTable jobs, int slot) {
+            if (OrderJournal.ENABLED) OrderJournal.jobChanged(jobs, slot);
+        }
+
+        @Override
+        public void jobRequeued(int target) {
+            ReplicatedOrders.requested(target);
+        }
 
+        @Override
+        public void jobsRequeued(int node, int count) {
+            Log.info("Re-queued {} job(s) taken by {ip}", count, node);
+            HallCallAssigner.solve();
+        }
+
+        @Override
+        public void scheduleChanged() {
+            // The ControlLoop looks at the deadlines again
+            ControlLoop.wake();
+        }
+    }
+
+    /**
+     * @return the JobDispatcher of this node
+     */
+    static JobDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Lock-free check for a job that is waiting to be served - pending, or taken by another elevator
+     */
     public static boolean jobExists(int target) {
-        return activeJobs.containsKey(target);
+        return dispatcher.jobExists(target);
     }
 
-    public static Map<Integer, Long> getActiveJobs() {
-        return activeJobs;
+    /**
+     * Take the job for this elevator (e.g. when passing by), unless someone else completed it or we took it already
+     * @return whether or not we got the job
+     */
+    public static boolean takeRequest(int target) {
+        return dispatcher.takeRequest(target);
     }
 
-    private static Elevator thisElevator = Main.getElevator();
-
-    public static void addRequestToQueue(int target, long delay) {
-        System.out.println("New request received, target: " + target + ", delay: " + delay);
-        // Start timer if not running, update remaining time if the new request wants an earlier action
-        // Step 2: Update the timer
-        activeJobs.put(target, delay);
-        System.out.println("Request successfully added to queue, waking dispatcher thread to schedule next wakeup");
-        synchronized (waitLock) {
-            // Wake up the sleeping thread to adjust the sleeping period
-            waitLock.notifyAll();
-        }
+    /**
+     * We opened the door for the job - if we had taken it, record how long it took to get there
+     */
+    public static void jobServed(int target) {
+        long sinceTaken = dispatcher.jobServed(target);
+        if (sinceTaken >= 0) Metrics.TAKE_TO_ARRIVAL.record(sinceTaken / 1000);
     }
 
-    public static void cancelRequest(int target) {
-        activeJobs.remove(target);
-        synchronized (waitLock) {
-            waitLock.notifyAll();
-        }
+    /**
+     * A hall button was pressed somewhere (steps 1-3)
+     * @param source - the node where it was pressed
+     * @return the delay before we take it (ms), or -1 if we're standing at the floor already - serve it at once
+     */
+    public static long requested(int target, int source) {
+        return dispatcher.requested(target, source);
     }
 
-    public static void recalculateJobCosts() {
-        int currentFloor = thisElevator.getCurrentFloor();
-        if (currentFloor == 0) // Invalid floor
-            return;
-        for (Map.Entry<Integer, Long> job : activeJobs.entrySet()) {
-            // Job cost == -1 means that this is a cabin job, that should be processed immediately
-            if (job.getValue() == -1 || job.getValue() == CommandHandler.JOB_TIMEOUT) continue;
-            job.setValue(recalculateCost(job.getKey(), currentFloor));
-        }
-        synchronized (waitLock) {
-            // Wake up the sleeping thread to adjust the sleeping period
-            waitLock.notifyAll();
-        }
+    /**
+     * Somebody else took the job - give them JOB_TIMEOUT ms to complete it before we consider taking it over
+     * @param node - the one that took it
+     * @return false if it was us
+     */
+    public static boolean taken(int target, int node) {
+        return dispatcher.taken(target, node);
     }
 
     /**
-     * Function to recalculate cost based on the new position
-     * @param target
-     * @param currentPos
-     * @return - the new cost for the job
+     * The job is done (or about to be) - its timer is dropped lazily by the schedule
      */
-    public static long recalculateCost(int target, int currentPos) {
-        long cost = Math.abs(Math.abs(target) - currentPos) * CommandHandler.COST_EACH_FLOOR;
-        // TODO: add more cost factors if needed
-        return cost * CommandHandler.MILLIS_PER_COST;
+    public static void completed(int target) {
+        dispatcher.completed(target);
     }
 
     /**
-     * Process the job that is currently first in line if it's time
+     * The node is suspected to have failed - put the jobs it took back up for grabs, as if they had just been requested
      */
-    private synchronized void processNextJob() {
-        if (currentJob != null && System.currentTimeMillis() >= nextWakeup && !thisElevator.isBusy()) {
-            System.out.println("earliestJob - target: " + currentJob.getKey() + ", value: " + currentJob.getValue());
-            dispatchJob(currentJob.getKey());
-        }
+    public static void requeueJobsOf(int node) {
+        dispatcher.requeueJobsOf(node);
     }
 
     /**
-     * Iterate over the pending jobs and get the one with the lowest delay in the queue
-     * @return a key-value pair with the key being the target floor and the value being the calculated timeout
-     *        -> If no jobs with valid timeout exist, return null
+     * Make the job match the state the ReplicatedOrders agreed on, in case we missed the message that moved it there
+     * @param state - JobTable.STATE_PENDING, STATE_TAKEN or STATE_COMPLETED
+     * @param owner - the node that took it, for STATE_TAKEN
+     * @return whether the job had to be changed (the lamp should then be updated)
      */
-    private Map.Entry<Integer, Long> getFirstJob() {
-        Set<Map.Entry<Integer, Long>> jobSet = activeJobs.entrySet();
-        Map.Entry<Integer, Long> earliestJob = null;
-        // Sort the pending jobs by delay period (cost) and return the earliest (if existent)
-        for (Map.Entry<Integer, Long> job : jobSet) {
-            if (job.getValue() == null) {
-                System.out.println("WARN: a job in the activeJobs set has a null value - this should never happen. Key: " + job.getKey());
-                continue;
-            }
-            System.out.println("Job - target: " + job.getKey() + ", delay/cost: " + job.getValue());
-            if (earliestJob == null || earliestJob.getValue() > job.getValue()) {
-                earliestJob = job;
-            }
-        }
-        return earliestJob;
+    static boolean converge(int target, int state, int owner) {
+        return dispatcher.converge(target, state, owner);
     }
 
-    private void dispatchJob(int target) {
-        CommandHandler.signalTakeJob(target);
-        thisElevator.asyncGoToFloor(Math.abs(target));
-        activeJobs.remove(target);
+    /**
+     * Put back a job recovered from the OrderJournal or the ProcessPair at startup, before the dispatcher and the network are running -
+     * nothing is sent to the others, they'll tell us about anything that changed while we were gone
+     * @param state - JobTable.STATE_PENDING or STATE_TAKEN
+     * @param local - whether we had taken it (it's added straight to the itinerary)
+     * @param owner - the node that had taken it, if not us
+     * @return false if the job was restored already (e.g. from both the journal and the ProcessPair)
+     */
+    static boolean restoreJob(Elevator elevator, int target, int state, boolean local, int owner) {
+        // The elevator isn't published to Main yet, so the JobDispatcher can't ask it
+        long delay = state != JobTable.STATE_TAKEN ? recalculateCost(elevator, target) : 0;
+        if (!dispatcher.restoreJob(target, state, local, owner, delay)) return false;
+        if (state == JobTable.STATE_TAKEN && local)
+            elevator.restoreHallCall(target);
+        return true;
     }
 
-    public void run() {
-        System.out.println("CommandDispatcher thread started");
-        while(true) {
-            while(thisElevator.isBusy()) {
-                try {
-                    sleep(10);
-                } catch (InterruptedException ignored) {}
-            }
-            currentJob = getFirstJob();
-            if (currentJob != null)
-                sleepTimeout = currentJob.getValue();
-            else
-                sleepTimeout = 0;
-            // Extra safeguard against negative timeouts
-            if (sleepTimeout < 0)
-                sleepTimeout = 1;
-            nextWakeup = System.currentTimeMillis() + sleepTimeout;
-            synchronized (waitLock) {
-                try {
-                    System.out.println("Waiting for new notifications to process");
-                    waitLock.wait(sleepTimeout); // Initially (and when jobSchedule is empty) sleepTimeout is 0, so it will wait until notified
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            try {
-                if (currentJob.getKey() == getFirstJob().getKey())
-                    processNextJob();
-            } catch (NullPointerException npe) {
-                System.out.println("The scheduled job is no longer available");
-            }
-        }
+    /**
+     * Write the state, local flag and owner of every slot, for the ProcessPair: | state (1) | local (1) | owner (4) |
+     */
+    static void writeJobs(ByteBuffer buffer) {
+        dispatcher.writeJobs(buffer);
+    }
+
+    /**
+     * Re-estimate the delay of every pending job from where we are now (step 3.1) - called whenever the elevator
+     * reaches a floor or runs out of things to do
+     */
+    public static void recalculateJobCosts() {
+        if (Main.getElevator() == null) // Still starting up
+            return;
+        dispatcher.recalculateJobCosts();
+    }
+
+    /**
+     * Function to recalculate cost based on the new position
+     * @param elevator
+     * @param target
+     * @return - the new cost for the job (ms)
+     */
+    public static long recalculateCost(Elevator elevator, int target) {
+        // Without the extra cost for other nodes' requests - the one who got there first has had its head start
+        return CommandHandler.jobDelay(elevator.estimateTimeToServe(target), true);
+    }
+
+    /**
+     * Dispatch the jobs whose delay has run out - called on the ControlLoop
+     * @return nanoseconds until the earliest deadline, or -1 if there are no jobs
+     */
+    static long dispatchDue(long now) {
+        return dispatcher.dispatchDue(now);
     }
 }
@@ -0,0 +1,198 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The single thread that owns the elevator and the orders. Everything that changes them is an event handled here, one
+ * at a time and in order:
+ *  - input edges from the InputListener (button presses, floors reached and left, stop, obstruction)
+ *  - cluster messages, copied off the transport's receiver thread (see receiver())
+ *  - timers - the door closing (the elevator's Motion), the job delays (CommandDispatcher.dispatchDue) and checking
+ *    the jobs against the ReplicatedOrders
+ *  - tasks posted by the other threads (e.g. the FailureDetector re-queuing the jobs of a failed node)
+ * The outputs changed while handling them are written together at the end of each round (see OutputRegister).
+ * The blocking I/O - polling the hardware, the network, the journal - stays on its own threads at the edges, which only
+ * ever hand events over and wake the loop up. The loop sleeps until the next event or timer, never polls.
+ *
+ * How long events wait before they're handled is recorded in Metrics.CONTROL_LOOP_LATENCY.
+ */
+class ControlLoop extends Thread {
+    public static final int MESSAGE_QUEUE_SIZE = 256;
+    private static final long QUEUE_FULL_BACKOFF = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static volatile ControlLoop loop = null;
+    private static final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private static final MessageQueue messages = new MessageQueue(MESSAGE_QUEUE_SIZE);
+    // System.nanoTime() when the first event since the loop last looked was handed over, 0 if none
+    private static final AtomicLong wokenAt = new AtomicLong();
+
+    private final Elevator elevator;
+    private final Transport.Receiver handler;
+
+    private ControlLoop(Elevator elevator, Transport.Receiver handler) {
+        super("ControlLoop");
+        this.elevator = elevator;
+        this.handler = handler;
+    }
+
+    /**
+     * Start handling events for the elevator
+     * @param handler - what the cluster messages are handed to (on the loop)
+     * @return the receiver to give the transport - it queues the messages for the loop
+     */
+    public static Transport.Receiver start(Elevator elevator, Transport.Receiver handler) {
+        ControlLoop started = new ControlLoop(elevator, handler);
+        loop = started;
+        started.start();
+        return new Transport.Receiver() {
+            @Override
+            public void onMessage(ClusterMessage message) {
+                // Wait for room rather than drop it - this only holds up the transport's receiver thread
+                while (!messages.offer(message)) {
+                    wake();
+                    LockSupport.parkNanos(QUEUE_FULL_BACKOFF);
+                }
+                wake();
+            }
+        };
+    }
+
+    public static boolean isLoopThread() {
+        return loop != null && Thread.currentThread() == loop;
+    }
+
+    /**
+     * Something was handed to the loop - make sure it's handled
+     */
+    public static void wake() {
+        ControlLoop current = loop;
+        if (current == null || Thread.currentThread() == current) return;
+        wokenAt.compareAndSet(0, System.nanoTime());
+        LockSupport.unpark(current);
+    }
+
+    /**
+     * Run the task on the loop, after whatever is being handled now
+     */
+    public static void post(Runnable task) {
+        tasks.add(task);
+        ControlLoop current = loop;
+        if (current != null && Thread.currentThread() == current)
+            LockSupport.unpark(current); // Posted by the loop itself - go round once more instead of parking
+        else
+            wake();
+    }
+
+    @Override
+    public void run() {
+        Log.info("Control loop started");
+        elevator.itineraryChanged(); // Serve whatever was recovered at startup
+        while (true) {
+            long woken = wokenAt.getAndSet(0);
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                elevator.handleInputs();
+                ClusterMessage message;
+                while ((message = messages.peek()) != null) {
+                    try {
+                        handler.onMessage(message);
+                    } finally {
+                        messages.release();
+                    }
+                }
+                long now = System.nanoTime(),
+                        wait = earliest(earliest(elevator.runTimers(now), CommandDispatcher.dispatchDue(now)), ReplicatedOrders.reconcile(now));
+                // Last, so the lamps changed by the timers go out in the same batch
+                wait = earliest(wait, elevator.flushOutputs(now));
+                if (woken != 0) Metrics.CONTROL_LOOP_LATENCY.recordMicrosSince(woken);
+                // Sleep until the next timer, or until something is handed over
+                if (wait < 0)
+                    LockSupport.park(this);
+                else if (wait > 0)
+                    LockSupport.parkNanos(this, wait);
+            } catch (Exception e) { // Keep going - whatever was left is handled on the next round
+                Log.error("Exception in the control loop", e);
+            }
+        }
+    }
+
+    /**
+     * @return the earliest of the two waits (ns), -1 meaning no timer
+     */
+    private static long earliest(long first, long second) {
+        if (first < 0) return second;
+        if (second < 0) return first;
+        return Math.min(first, second);
+    }
+
+    /**
+     * Bounded single-producer single-consumer queue of ClusterMessages. The transports reuse their message, so each one
+     * is copied into a slot here (payload included) - the slots and their payload buffers are allocated up front.
+     */
+    static class MessageQueue {
+        private final ClusterMessage[] slots;
+        private final ByteBuffer[] payloads;
+        private final int mask;
+        // Next slot to read (owned by the consumer) and next slot to write (owned by the producer)
+        private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+
+        MessageQueue(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+            slots = new ClusterMessage[size];
+            payloads = new ByteBuffer[size];
+            for (int i = 0; i < size; i++) {
+                slots[i] = new ClusterMessage();
+                payloads[i] = ByteBuffer.allocate(ClusterMessage.maxPayloadSize(Elevator.NUM_FLOORS));
+            }
+            mask = size - 1;
+        }
+
+        /**
+         * @return false if the queue is full
+         */
+        public boolean offer(ClusterMessage message) {
+            long t = tail.get();
+            if (t - head.get() >= slots.length)
+                return false;
+            int index = (int) t & mask;
+            ClusterMessage slot = slots[index];
+            slot.type = message.type;
+            slot.floor = message.floor;
+            slot.node = message.node;
+            slot.sequence = message.sequence;
+            slot.timestamp = message.timestamp;
+            slot.payload = null;
+            if (message.payload != null) {
+                ByteBuffer payload = payloads[index];
+                if (payload.capacity() < message.payload.remaining()) // From a node with more floors - can't be used anyway, but keep it whole
+                    payloads[index] = payload = ByteBuffer.allocate(message.payload.remaining());
+                payload.clear();
+                payload.put(message.payload.duplicate()).flip();
+                slot.payload = payload;
+            }
+            tail.set(t + 1); // Volatile write - publishes the slot
+            return true;
+        }
+
+        /**
+         * @return the oldest message (valid until release() is called), or null if there is none
+         */
+        public ClusterMessage peek() {
+            long h = head.get();
+            return h == tail.get() ? null : slots[(int) h & mask];
+        }
+
+        /**
+         * Done with the message returned by peek() - its slot can be reused
+         */
+        public void release() {
+            head.lazySet(head.get() + 1);
+        }
+    }
+}
@@ -1,144 +1,346 @@
 package no.ntnu.stud.torbjovn.elevator;
 
-import cz.adamh.utils.NativeUtils;
-
-import java.io.IOException;
+import java.io.File;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class to represent and control the physical/simulated elevator
  * Created by marje on 22.03.2016.
  */
 public class Elevator {
+    // Input changes detected by the InputListener, handled on the ControlLoop
+    private final InputEventQueue inputEvents = new InputEventQueue(256);
     private InputListener inputListenerThread = new InputListener();
 
-    public static final int NUM_FLOORS = 4,
-            DIR_UP = 1,
+    // Read from the 'num_floors' setting - the hardware has 4 floors, the simulator can have more
+    public static final int DEFAULT_NUM_FLOORS = 4,
+            NUM_FLOORS = configuredNumFloors();
+
+    public static final int DIR_UP = 1,
             DIR_DOWN = -1,
             DIR_STOP = 0,
             NUM_BUTTONS = 3,
             BUTTON_TYPE_CALL_UP = 0,
             BUTTON_TYPE_CALL_DOWN = 1,
             BUTTON_TYPE_COMMAND = 2,
-            // How long to keep the door open after arriving at a floor (in ms)
-            WAIT_OPEN_DOOR = 1000;
-
-    // A list of commands added by button presses from within the elevator cabin - these should have priority OVER commands received from network
-    private static boolean[] internalCommands = new boolean[NUM_FLOORS];
-
-    private static final int ET_Comedi = 0,
-            ET_Simulation = 1;
-
-    private int direction = 0;
-    private boolean busy;
+            // How long to keep the door open after arriving at a floor (in ms) - this and the sample period are the
+            // defaults, the values in use are in Tuning
+            WAIT_OPEN_DOOR = 1000,
+            // Door dwell (ms) when nobody in the cabin has a stop left to go to
+            WAIT_OPEN_DOOR_SHORT = 500,
+            // Travel time between two adjacent floors (ms) assumed until it has been measured
+            DEFAULT_TRAVEL_TIME = 500,
+            // How often the InputListener reads the inputs (ms)
+            SAMPLE_PERIOD = 10;
+
+    // Layout of the input snapshot array filled by ElevatorDriver.getInputSnapshot (must match SNAPSHOT_* in elev.h)
+    static final int SNAPSHOT_FLOOR = NUM_FLOORS * NUM_BUTTONS,
+            SNAPSHOT_STOP = SNAPSHOT_FLOOR + 1,
+            SNAPSHOT_OBSTRUCTION = SNAPSHOT_FLOOR + 2,
+            SNAPSHOT_SIZE = SNAPSHOT_FLOOR + 3;
+
+    // The stops we have committed to - commands from within the elevator cabin, and the hall calls we have taken
+    private final Itinerary itinerary = new Itinerary(NUM_FLOORS);
+    // Learns the travel and door times from the Motion, to estimate when we can serve a call
+    private final EtaEstimator etaEstimator = new EtaEstimator(NUM_FLOORS, TimeUnit.MILLISECONDS.toNanos(DEFAULT_TRAVEL_TIME), TimeUnit.MILLISECONDS.toNanos(WAIT_OPEN_DOOR));
+
+    // Which driver to use is read from the 'driver' setting: comedi, simulator (pure Java) or native_simulator (through libelevator.so)
+    public static final String DRIVER_COMEDI = "comedi",
+            DRIVER_SIMULATOR = "simulator",
+            DRIVER_NATIVE_SIMULATOR = "native_simulator",
+            COMEDI_DEVICE = "/dev/comedi0";
+
+    // All the outputs go through the register, which drops the redundant writes and batches the rest
+    private final OutputRegister driver;
+
+    // The motor direction - read by the ProcessPair heartbeat
+    private volatile int direction = 0;
+
+    // Latest sensor values read by the InputListener - only valid once the first scan has completed
+    private volatile boolean snapshotValid = false;
+    private volatile int lastFloorReading;
+    private volatile boolean lastObstructionReading;
 
     public boolean isBusy() {
-        return busy;
+        return motion.isBusy();
     }
 
-    private AsyncWorker elevWorker = new AsyncWorker();
+    private final Motion motion = new Motion(new MotionCar(), itinerary, etaEstimator);
 
-    static {
-        try {
-            NativeUtils.loadLibraryFromJar("/driver/libelevator.so");
-        } catch (IOException e) {
-            System.out.println("ERROR: unable to read library file: " + e.getMessage());
-            e.printStackTrace();
-        }
+    public Elevator() {
+        this(initDriver());
     }
 
-    public Elevator() {
-        if (!hw_init(ET_Comedi)) {
-            System.out.println("Failed to initialize elevator hardware!");
-            if(!hw_init(ET_Simulation)){
-                System.out.println("Failed to initialize elevator simulator!");
-                Runtime.getRuntime().exit(1);
-            }
-            System.out.println("Simulator initialization done");
-        } else
-            System.out.println("HW initialization done");
+    /**
+     * @param hardware - an initialized driver (see initDriver), or null if none is available
+     */
+    Elevator(ElevatorDriver hardware) {
+        if (hardware == null) {
+            System.out.println("Failed to initialize elevator simulator!");
+            Runtime.getRuntime().exit(1);
+        }
+        // Everything from here on goes through the register - including the floor indicator set below
+        driver = new OutputRegister(hardware, NUM_FLOORS);
 
         int currFloor = getCurrentFloor();
+        // When taking over from a primary that was moving, the motor is still running - stop at the next floor instead of homing
+        int takeoverDirection = ProcessPair.getTakeoverDirection();
         if (currFloor == 0) {
             System.out.println("Elevator is currently between floors, trying to find out where");
-            findMyLocation();
+            findMyLocation(takeoverDirection != DIR_STOP ? takeoverDirection : DIR_DOWN);
         } else {
+            if (takeoverDirection != DIR_STOP) setDirection(DIR_STOP);
+            ProcessPair.inControl();
             System.out.println("Elevator is currently at floor " + currFloor);
-            elev_set_floor_indicator(currFloor);
+            driver.setFloorIndicator(currFloor);
         }
 
-        // Start listening for button events
-        elevWorker.start();
+        // Put back the orders we had before a crash or restart, before anything new comes in
+        OrderJournal.recover(this);
+        ProcessPair.restore(this);
+
+        // Start listening for button events - they're handled once the ControlLoop is started
         inputListenerThread.start();
     }
 
+    private static int configuredNumFloors() {
+        try {
+            return Math.max(2, Integer.parseInt(Settings.getSetting("num_floors", String.valueOf(DEFAULT_NUM_FLOORS)).trim()));
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid num_floors setting, using " + DEFAULT_NUM_FLOORS);
+            return DEFAULT_NUM_FLOORS;
+        }
+    }
+
+    private static String driverType() {
+        return Settings.getSetting("driver", new File(COMEDI_DEVICE).exists() ? DRIVER_COMEDI : DRIVER_SIMULATOR);
+    }
+
+    /**
+     * Whether the selected driver goes through libelevator.so (so it's worth loading the library early)
+     */
+    static boolean usesNativeLibrary() {
+        String type = driverType();
+        return DRIVER_COMEDI.equalsIgnoreCase(type) || DRIVER_NATIVE_SIMULATOR.equalsIgnoreCase(type);
+    }
+
+    /**
+     * Select and initialize the driver - when no Comedi hardware is present the simulator is used, without loading the native library
+     * @return an initialized driver, or null if neither hardware nor simulator is available
+     */
+    static ElevatorDriver initDriver() {
+        String type = driverType();
+        ElevatorDriver candidate;
+        if (DRIVER_COMEDI.equalsIgnoreCase(type)) {
+            candidate = new NativeDriver(NativeDriver.ET_Comedi);
+            if (candidate.init()) {
+                System.out.println("HW initialization done");
+                return candidate;
+            }
+            System.out.println("Failed to initialize elevator hardware!");
+            // Fall back to the simulator through the same library, like before
+            candidate = new NativeDriver(NativeDriver.ET_Simulation);
+        } else if (DRIVER_NATIVE_SIMULATOR.equalsIgnoreCase(type)) {
+            candidate = new NativeDriver(NativeDriver.ET_Simulation);
+        } else {
+            candidate = SimulatorDriver.fromConfigFile();
+            if (candidate == null) return null;
+        }
+        if (!candidate.init()) return null;
+        System.out.println("Simulator initialization done");
+        return candidate;
+    }
+
+    /**
+     * Stop the motor right away (at shutdown, or when startup fails) - the stops are kept, in the itinerary and in the
+     * OrderJournal, so they're served again after a restart
+     */
     public void stopElevator() {
-        elevWorker.interrupt();
         setDirection(DIR_STOP);
     }
 
-    private void findMyLocation() {
+    /**
+     * Drop all stops, and stop if moving (an open door closes as usual). Hall calls will be redistributed by the
+     * others when they time out.
+     */
+    private void abandonItinerary() {
+        BitSet cabCalls = itinerary.getCabCalls();
+        itinerary.clear();
+        for (int floor = cabCalls.nextSetBit(1); floor != -1; floor = cabCalls.nextSetBit(floor + 1)) {
+            setButtonLamp(BUTTON_TYPE_COMMAND, floor - 1, 0);
+            OrderJournal.cabCall(floor, false);
+        }
+        motion.stop();
+    }
+
+    /**
+     * @param searchDirection - the direction to move in until we reach a floor
+     */
+    private void findMyLocation(int searchDirection) {
         if (getCurrentFloor() > 0) return; // We are already at a known floor
-        setDirection(DIR_DOWN);
+        setDirection(searchDirection);
+        ProcessPair.inControl();
         while(getCurrentFloor() == 0) {
             try { Thread.sleep(10); } catch (InterruptedException ignored) {} // Sleep to save CPU resources
         }
         setDirection(DIR_STOP);
-        elev_set_floor_indicator(getCurrentFloor());
+        driver.setFloorIndicator(getCurrentFloor());
         System.out.println("Found floor " + getCurrentFloor());
     }
 
+    /**
+     * Estimate how long it would take us to serve the hall call, along the route we're already on
+     * @param target - the floor (1-indexed) with the sign indicating the direction
+     * @return the estimated time until we could stop there, in ms
+     */
+    public long estimateTimeToServe(int target) {
+        return motion.estimateTimeToServe(target);
+    }
+
+    /**
+     * Fill in what the others need to know to assign hall calls to us (see HallCallAssigner)
+     * @return false if we don't know where we are (between floors and not serving anything)
+     */
+    boolean captureState(CarState state) {
+        return motion.captureState(state);
+    }
+
+    /**
+     * Add a stop at the given floor to the itinerary, as for a command from within the cabin
+     * @param target - the floor, 1-indexed
+     * @return false if the floor is invalid
+     */
     public boolean asyncGoToFloor(int target) {
-        System.out.println("asyncGoToFloor called with target: " + target);
+        Log.debug("asyncGoToFloor called with target: {}", target);
         if (target < 1 || target > NUM_FLOORS) {
-            System.out.println("Invalid floor specified (" + target + "), ignoring");
+            Log.warn("Invalid floor specified ({}), ignoring", target);
             return false; // Invalid value, do nothing
         }
-        if (busy) {
-            internalCommands[target - 1] = true;
-            CommandDispatcher.addRequestToQueue(target, -1);
-        } else {
-            System.out.println("Initiating async goToFloor");
-            elevWorker.goToFloor(target);
-            System.out.println("asyncGoToFloor returned");
-        }
+        itinerary.addCabCall(target);
+        OrderJournal.cabCall(target, true);
+        itineraryChanged();
+        HallCallAssigner.localStateChanged();
         return true;
     }
 
+    /**
+     * Add a hall call that we have taken to the itinerary - it's served when passing in the requested direction
+     * @param target - the floor (1-indexed) with the sign indicating the direction
+     */
+    public void takeHallCall(int target) {
+        if (target == 0 || Math.abs(target) > NUM_FLOORS) return;
+        itinerary.addHallCall(target);
+        itineraryChanged();
+        HallCallAssigner.localStateChanged();
+    }
+
+    /**
+     * @return the floors with a cab call (a copy)
+     */
+    public BitSet getCabCalls() {
+        return itinerary.getCabCalls();
+    }
+
+    /**
+     * Put back a cab call recovered from the OrderJournal or taken over by the ProcessPair (before the worker is started)
+     * @param floor - 1-indexed
+     * @return false if it was restored already (e.g. from both the journal and the ProcessPair)
+     */
+    boolean restoreCabCall(int floor) {
+        if (itinerary.hasCabCall(floor)) return false;
+        itinerary.addCabCall(floor);
+        setButtonLamp(BUTTON_TYPE_COMMAND, floor - 1, 1);
+        return true;
+    }
+
+    /**
+     * Put back a hall call we had taken, recovered from the OrderJournal or the ProcessPair (before the worker is started)
+     * @param target - the floor (1-indexed) with the sign indicating the direction
+     */
+    void restoreHallCall(int target) {
+        itinerary.addHallCall(target);
+    }
+
+    /**
+     * Start moving if we're idle and there's somewhere to go - called on the ControlLoop
+     */
+    void itineraryChanged() {
+        motion.itineraryChanged();
+    }
+
+    /**
+     * Handle the input events published since last time - called on the ControlLoop
+     */
+    void handleInputs() {
+        int event;
+        while ((event = inputEvents.poll()) >= 0) {
+            try {
+                handleEvent(event);
+            } catch (Exception e) { // Keep handling events even if one of the handlers fails
+                Log.error("Exception while handling an input event", e);
+            }
+        }
+    }
+
+    /**
+     * Run the motion timers (the door) - called on the ControlLoop
+     * @return nanoseconds until they're due again, or -1 if there are none
+     */
+    long runTimers(long now) {
+        return motion.runTimers(now);
+    }
+
+    /**
+     * Write the outputs changed during this round of the ControlLoop, in one driver call (see OutputRegister)
+     * @return nanoseconds until the next full refresh of the outputs, or -1 if there is none
+     */
+    long flushOutputs(long now) {
+        return driver.flush(now);
+    }
+
     /**
      * Function to check if a matching request exists (and notify the others that we took it if applicable)
      * @param floor - target floor
      * @param direction - requested direction
-     * @return whether or not the job exists (and was handled)
+     * @return whether or not the job exists (and was added to the itinerary)
      */
     private boolean handleRequestIfExists(int floor, int direction) {
-        if (floor >= NUM_FLOORS || floor < 1 || Math.abs(direction) > 1)
+        if (floor > NUM_FLOORS || floor < 1 || Math.abs(direction) != 1)
             return false;
 
-        if ( internalCommands[floor - 1] ) {
-            internalCommands[floor - 1] = false;
-            return true;
-        }
-
         // 1-indexed with the sign indicating the direction
         int targetWithDirection = (floor) * direction;
-        if (CommandDispatcher.jobExists(targetWithDirection)) {
-            CommandHandler.signalJobCompleted(targetWithDirection); // Notify the others that we intend to stop here
+        if (CommandDispatcher.jobExists(targetWithDirection) && CommandDispatcher.takeRequest(targetWithDirection)) {
+            CommandHandler.signalTakeJob(targetWithDirection); // Notify the others that we intend to stop here
+            itinerary.addHallCall(targetWithDirection);
+            HallCallAssigner.localStateChanged();
             return true;
         }
-        System.out.println("No requests found at floor " + floor + ", direction: " + direction);
         return false;
     }
 
     private void stopButtonPressed() {
-        System.out.println("Stop button press registered");
-        elev_set_stop_lamp(1);
-        stopElevator();
+        Log.info("Stop button press registered");
+        driver.setStopLamp(1);
+        abandonItinerary();
     }
 
     /**
      * @return the current floor, with 1 being the lowest and 0 invalid
      */
-    public native int getCurrentFloor();
+    public int getCurrentFloor() {
+        // Once the InputListener is running its snapshot is at most one scan period old, so don't ask the driver again
+        if (snapshotValid)
+            return lastFloorReading;
+        return driver.getFloorSensorSignal();
+    }
+
+    public boolean doorObstructed() {
+        if (snapshotValid)
+            return lastObstructionReading;
+        return driver.getObstructionSignal() != 0;
+    }
 
     public boolean isMoving() {
         return (direction != 0);
@@ -148,219 +350,186 @@ public class Elevator {
     }
 
     private void setDirection(int direction) {
+        Log.trace("Motor direction {}, floor sensor {}", direction, lastFloorReading);
         this.direction = direction;
-        elev_set_motor_direction(direction);
+        driver.setMotorDirection(direction);
+    }
+
+    /**
+     * @param floor - 0-indexed
+     */
+    public void setButtonLamp(int button, int floor, int value) {
+        driver.setButtonLamp(button, floor, value);
     }
 
     private void handleFloorCommand(int target){
         if(target >= NUM_FLOORS || target < 0)
             return ;
         int offsetTarget = target + 1;
-        if (!asyncGoToFloor(offsetTarget))
-            return;
-        System.out.println("Received internal command to go to floor " + offsetTarget);
-        elev_set_button_lamp(BUTTON_TYPE_COMMAND,target,1);
-        internalCommands[target] = true;
+        Log.info("Received internal command to go to floor {}", offsetTarget);
+        setButtonLamp(BUTTON_TYPE_COMMAND,target,1);
+        asyncGoToFloor(offsetTarget);
     }
 
-    private class AsyncWorker extends Thread {
-        private int mTarget, mDirection, lastFloor;
-        private boolean running = true;
+    /**
+     * The car and this node, as the Motion sees them
+     */
+    private class MotionCar implements Motion.Car {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
 
         @Override
-        public void run() {
-            super.run();
-            while (running) {
-                if (mTarget != 0) { // mTarget will be set back to 0 by the goToFloorInternal func before returning
-                    goToFloorInternal(mTarget);
-                }
-                try {
-                    sleep(10);
-                } catch (InterruptedException ignored) {}
-            }
+        public int getCurrentFloor() {
+            return Elevator.this.getCurrentFloor();
         }
 
-        public void goToFloor(int target) {
-            mTarget = target;
+        @Override
+        public boolean doorObstructed() {
+            return Elevator.this.doorObstructed();
         }
 
-        /** Actually do the work
-         *
-         * @param target - the target floor to stop at
-         */
-        private synchronized void goToFloorInternal(int target) {
-            try {
-                System.out.println("goToFloorInternal called with target = " + target);
-                busy = true;
-                lastFloor = getCurrentFloor();
-                // If elevator is between floors (we don't know its current location), go down to the nearest one
-                if (lastFloor == 0) {
-                    findMyLocation();
-                    lastFloor = getCurrentFloor();
-                }
+        @Override
+        public int getMotorDirection() {
+            return direction;
+        }
 
-                int difference = target - lastFloor;
-
-                if (difference == 0) {
-                    waitAtCurrentFloor();
-                    return;
-                } else if (difference > 0) {
-                    // Target is higher than the current floor
-                    mDirection = DIR_UP;
-                } else {
-                    // Target is lower than the current floor
-                    mDirection = DIR_DOWN;
-                }
-                setDirection(mDirection);
-
-                boolean interrupted = false;
-
-                outerLoop:
-                while (lastFloor != target && !interrupted) {
-                    while ((getCurrentFloor() == 0 || getCurrentFloor() == lastFloor)) {
-                        // Wait until reaching the next floor
-                        System.out.print('.');
-                        System.out.print(getCurrentFloor());
-                        try {
-                            Thread.sleep(20);
-                        } catch (InterruptedException ie) {
-                            interrupted = true;
-                            break outerLoop;
-                        }
-                    }
-                    lastFloor = getCurrentFloor();
-                    elev_set_floor_indicator(lastFloor);
-                    System.out.println("Current floor: " + lastFloor);
-                    if (lastFloor == target) break outerLoop;
-                    // If request exists here, stop (and resume afterwards)
-                    if (handleRequestIfExists(lastFloor, mDirection)) {
-                        waitAtCurrentFloor(); // Open the door and wait before continuing
-                        setDirection(mDirection);
-                    }
-                }
-                if (!interrupted) {
-                    System.out.println("Arrived at target floor");
-                    waitAtCurrentFloor();
-                }
-            } finally { // The following should ALWAYS happen upon completion
-                mTarget = 0;
-                busy = false;
-                CommandDispatcher.recalculateJobCosts();
-            }
+        @Override
+        public void setMotorDirection(int direction) {
+            setDirection(direction);
         }
 
-        private void waitAtCurrentFloor() {
-            System.out.println("waitAtCurrentFloor called");
-            setDirection(DIR_STOP);
-            markFloorDone(lastFloor);
-            elev_set_door_open_lamp(1);
-            long waitUntil = System.currentTimeMillis() + WAIT_OPEN_DOOR;
-            // Wait for people to get in and out
-            while (System.currentTimeMillis() < waitUntil || doorObstructed()) {
-                try {
-                    sleep(100L);
-                } catch (InterruptedException ignored) {}
-            }
-            elev_set_door_open_lamp(0);
+        @Override
+        public void setFloorIndicator(int floor) {
+            driver.setFloorIndicator(floor);
+            Log.info("Current floor: {}", floor);
+        }
+
+        @Override
+        public void setDoorOpenLamp(int value) {
+            driver.setDoorOpenLamp(value);
+        }
+
+        @Override
+        public void setButtonLamp(int button, int floor, int value) {
+            Elevator.this.setButtonLamp(button, floor, value);
+        }
+
+        @Override
+        public long doorTime(boolean cabCallsLeft) {
+            Tuning tuning = Tuning.get();
+            return TimeUnit.MILLISECONDS.toNanos(cabCallsLeft ? tuning.waitOpenDoor() : tuning.waitOpenDoorShort());
+        }
+
+        @Override
+        public void passingFloor(int floor, int direction) {
+            handleRequestIfExists(floor, direction);
         }
 
-        /**
-         * Update internalCommands, notify others and set turn off button lamp
-         * @param floor
-         */
-        private void markFloorDone(int floor) {
-            CommandHandler.signalJobCompleted(floor * mDirection);
-            internalCommands[floor -1] = false;
-            elev_set_button_lamp(BUTTON_TYPE_COMMAND, floor - 1, 0);
+        @Override
+        public void floorServed(int floor, int direction) {
+            Log.debug("waitAtCurrentFloor called");
+            OrderJournal.cabCall(floor, false);
+            CommandHandler.signalJobCompleted(floor * direction);
+            HallCallAssigner.localStateChanged();
+        }
+
+        @Override
+        public void positionChanged() {
+            CommandDispatcher.recalculateJobCosts();
+            HallCallAssigner.localStateChanged();
         }
     }
 
     /**
         This is a polling-based input driver to generate "interrupt events when buttons are pressed"
-        Different actions should be performed, depending on which button was pressed:
-         - Call buttons (outside the elevator - BUTTON_UP/DOWN_n in elev.c) should submit a command to the network
-         - Command buttons (inside) can directly call the goToFloor() function with the target floor as argument
-         - Stop button should stopElevator()
+        It samples all inputs once per period, and publishes an event to the ControlLoop for every change it sees:
+         - A button going down
+         - Arriving at or leaving a floor
+         - The stop button or obstruction switch changing state
     */
     private class InputListener extends Thread {
 
-        // Variables for storing the previous status of buttons
-        private int [][] buttonStatus = new int[NUM_FLOORS][NUM_BUTTONS];
-        private int stopButtonStatus = 0;
+        // Keeps the previous status of the inputs, and publishes the changes
+        private final InputScanner scanner = new InputScanner(NUM_FLOORS, NUM_BUTTONS, inputEvents);
+        // All inputs are read in one driver call per scan, into this reused array
+        private final int[] inputSnapshot = new int[SNAPSHOT_SIZE];
 
         @Override
         public void run() {
             super.run(); // TODO: include this or take out?
-            int tempInt;
 
             while(true) {
                 try {
-                    for (int floor = 0; floor < NUM_FLOORS; floor++) {
-                        for (int button = 0; button < NUM_BUTTONS; button++) {
-                            tempInt = elev_get_button_signal(button, floor);
-                            if (buttonStatus[floor][button] != tempInt) {
-                                if (tempInt == 1) {
-                                    // Button was pressed - signal the appropriate handler
-                                    switch (button) {
-                                        case BUTTON_TYPE_CALL_UP:
-                                            if (floor == (NUM_FLOORS - 1)) {
-                                                System.out.println("This is the top floor - there is no button to call up...");
-                                            } else {
-                                                CommandHandler.sendRequest(floor + 1);
-                                                System.out.println("Request to go up from floor " + (floor + 1) + " sent");
-                                            }
-                                            break;
-                                        case BUTTON_TYPE_CALL_DOWN:
-                                            if (floor == 0) {
-                                                System.out.println("This is the bottom floor - there is no button to call down...");
-                                            } else {
-                                                CommandHandler.sendRequest(-(floor + 1));
-                                                System.out.println("Request to go down from floor " + (floor + 1) + " sent");
-                                            }
-                                            break;
-                                        case BUTTON_TYPE_COMMAND:
-                                            if (floor != (getCurrentFloor() - 1))
-                                                handleFloorCommand(floor);
-                                            break;
-                                    }
-                                }
-                                buttonStatus[floor][button] = tempInt;
-                            }
-                        }
-                    }
-                    tempInt = elev_get_stop_signal();
-                    if (stopButtonStatus != tempInt) {
-                        if (tempInt == 1) {
-                            stopButtonPressed();
-                        }
-                        stopButtonStatus = tempInt;
-                    }
+                    driver.getInputSnapshot(inputSnapshot);
+                    // Update the readings before publishing, so that they're visible to whoever handles the events
+                    lastFloorReading = inputSnapshot[SNAPSHOT_FLOOR];
+                    lastObstructionReading = inputSnapshot[SNAPSHOT_OBSTRUCTION] != 0;
+                    snapshotValid = true;
+                    scanner.scan(inputSnapshot);
+                    if (inputEvents.size() > 0)
+                        ControlLoop.wake();
 
                     try {
-                        Thread.sleep(10);
+                        Thread.sleep(Tuning.get().samplePeriod());
                     } catch (InterruptedException ignored) {}
                 } catch (Exception e) { // Catch and display any (unhandled) exceptions that occurred within the polling loop to prevent it from stopping, and enable debugging
-                    e.printStackTrace();
+                    Log.error("Exception in the input listener", e);
                 }
             }
         }
     }
 
-    /*
-     * Native wrapper functions folllow
-     */
-    private native boolean hw_init(int mode);
-
-    private native void elev_set_motor_direction(int dirn);
-    public native void elev_set_button_lamp(int button, int floor, int value);
     /**
-     * @param floor - 1-indexed, to match the "intuitive" understanding of a floor
-     */
-    private native void elev_set_floor_indicator(int floor);
-
-    private native void elev_set_door_open_lamp(int value);
-    private native void elev_set_stop_lamp(int value);
-    private native int elev_get_button_signal(int button, int floor);
-    private native int elev_get_stop_signal();
-    public native boolean doorObstructed();
+        Reacts to an event published by the InputListener (on the ControlLoop).
+        Different actions should be performed, depending on which button was pressed:
+         - Call buttons (outside the elevator - BUTTON_UP/DOWN_n in elev.c) should submit a command to the network
+         - Command buttons (inside) can directly call the goToFloor() function with the target floor as argument
+         - Stop button should abandon the itinerary
+        Reaching a floor moves the Motion on, obstruction changes are picked up by its door timer.
+    */
+    private void handleEvent(int event) {
+        int floor = InputEventQueue.floor(event);
+        switch (InputEventQueue.type(event)) {
+            case InputEventQueue.EVENT_BUTTON_DOWN:
+                // Button was pressed - signal the appropriate handler
+                switch (InputEventQueue.arg(event)) {
+                    case BUTTON_TYPE_CALL_UP:
+                        if (floor == (NUM_FLOORS - 1)) {
+                            Log.info("This is the top floor - there is no button to call up...");
+                        } else {
+                            CommandHandler.sendRequest(floor + 1);
+                            Log.info("Request to go up from floor {} sent", floor + 1);
+                        }
+                        break;
+                    case BUTTON_TYPE_CALL_DOWN:
+                        if (floor == 0) {
+                            Log.info("This is the bottom floor - there is no button to call down...");
+                        } else {
+                            CommandHandler.sendRequest(-(floor + 1));
+                            Log.info("Request to go down from floor {} sent", floor + 1);
+                        }
+                        break;
+                    case BUTTON_TYPE_COMMAND:
+                        if (floor != (getCurrentFloor() - 1))
+                            handleFloorCommand(floor);
+                        break;
+                }
+                break;
+            case InputEventQueue.EVENT_STOP:
+                if (InputEventQueue.arg(event) == 1)
+                    stopButtonPressed();
+                break;
+            case InputEventQueue.EVENT_FLOOR_REACHED:
+                Log.trace("Reached floor {}", floor);
+                motion.floorReached(floor);
+                break;
+            case InputEventQueue.EVENT_FLOOR_LEFT:
+                Log.trace("Left floor {}", floor);
+                break;
+            case InputEventQueue.EVENT_OBSTRUCTION_CHANGED:
+                break;
+        }
+    }
 }
@@ -0,0 +1,48 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+/**
+ * The I/O surface of a physical or simulated elevator, as used by the Elevator class.
+ * Floors are 1-indexed where they are reported to the caller (0 meaning "between floors"),
+ * and 0-indexed when addressing button lamps, to match the numbering used in elev.h.
+ */
+interface ElevatorDriver {
+    // Commands of the outputs given to setOutputs (the same as in the simulator protocol)
+    int OUTPUT_MOTOR_DIRECTION = 1,
+            OUTPUT_BUTTON_LAMP = 2,
+            OUTPUT_FLOOR_INDICATOR = 3,
+            OUTPUT_DOOR_OPEN_LAMP = 4,
+            OUTPUT_STOP_LAMP = 5;
+
+    /**
+     * Connect to/initialize the elevator
+     * @return whether or not the elevator is ready to be used
+     */
+    boolean init();
+
+    void setMotorDirection(int dirn);
+    void setButtonLamp(int button, int floor, int value);
+    /**
+     * @param floor - 1-indexed
+     */
+    void setFloorIndicator(int floor);
+    void setDoorOpenLamp(int value);
+    void setStopLamp(int value);
+    /**
+     * Write several outputs in a single call
+     * @param outputs - each one packed by OutputRegister.pack(): the command (OUTPUT_*) and its 3 arguments, one byte
+     *                each, as in the simulator protocol - so the floor of OUTPUT_FLOOR_INDICATOR is 0-indexed here
+     * @param count - how many of the outputs to write
+     */
+    void setOutputs(int[] outputs, int count);
+
+    /**
+     * @return the current floor, 1-indexed (0 means between floors)
+     */
+    int getFloorSensorSignal();
+    int getObstructionSignal();
+    /**
+     * Read all buttons, the floor sensor (1-indexed), stop and obstruction in a single call
+     * @param snapshot - array of at least Elevator.SNAPSHOT_SIZE elements, laid out as described by the SNAPSHOT_* constants
+     */
+    void getInputSnapshot(int[] snapshot);
+}
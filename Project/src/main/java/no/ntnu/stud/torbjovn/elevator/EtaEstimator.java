@@ -0,0 +1,130 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.Arrays;
+
+/**
+ * Estimates how long it takes an elevator to serve a call, from travel and door times measured on the elevator itself.
+ *
+ * Travel times are kept per segment (between two adjacent floors, in each direction), and door cycles as one figure,
+ * both as exponentially weighted moving averages - so they follow slow changes (e.g. a heavier car) without being thrown
+ * off by a single odd sample. Until a segment has been measured, the default given to the constructor is used.
+ *
+ * All times are in nanoseconds.
+ */
+class EtaEstimator {
+    // Weight of each new sample in the moving averages
+    private static final double SMOOTHING = 0.2;
+
+    private final int numFloors;
+    // Indexed by the floor the segment starts at (1-indexed)
+    private final long[] travelUp, travelDown;
+    private final int[] samplesUp, samplesDown;
+    private long dwell;
+    private int dwellSamples = 0;
+
+    EtaEstimator(int numFloors, long defaultTravel, long defaultDwell) {
+        this.numFloors = numFloors;
+        travelUp = new long[numFloors + 1];
+        travelDown = new long[numFloors + 1];
+        samplesUp = new int[numFloors + 1];
+        samplesDown = new int[numFloors + 1];
+        Arrays.fill(travelUp, defaultTravel);
+        Arrays.fill(travelDown, defaultTravel);
+        dwell = defaultDwell;
+    }
+
+    private static long smooth(long average, int samples, long sample) {
+        // The first sample replaces the default outright
+        return samples == 0 ? sample : average + (long) (SMOOTHING * (sample - average));
+    }
+
+    /**
+     * Record the time it took to get from one floor to another - split evenly between the segments if they aren't adjacent
+     */
+    public synchronized void recordTravel(int from, int to, long nanos) {
+        if (from == to || from < 1 || to < 1 || from > numFloors || to > numFloors || nanos <= 0) return;
+        int direction = to > from ? Elevator.DIR_UP : Elevator.DIR_DOWN;
+        long perSegment = nanos / Math.abs(to - from);
+        for (int floor = from; floor != to; floor += direction) {
+            if (direction == Elevator.DIR_UP) {
+                travelUp[floor] = smooth(travelUp[floor], samplesUp[floor], perSegment);
+                samplesUp[floor]++;
+            } else {
+                travelDown[floor] = smooth(travelDown[floor], samplesDown[floor], perSegment);
+                samplesDown[floor]++;
+            }
+        }
+    }
+
+    /**
+     * Record how long the door was open at a stop
+     */
+    public synchronized void recordDwell(long nanos) {
+        if (nanos <= 0) return;
+        dwell = smooth(dwell, dwellSamples, nanos);
+        dwellSamples++;
+    }
+
+    /**
+     * @return the expected time to get from the floor to the next one in the given direction
+     */
+    public synchronized long travelTime(int floor, int direction) {
+        return direction == Elevator.DIR_UP ? travelUp[floor] : travelDown[floor];
+    }
+
+    public synchronized long dwellTime() {
+        return dwell;
+    }
+
+    /**
+     * @return the travel time between two adjacent floors, averaged over all the segments
+     */
+    public synchronized long averageTravelTime() {
+        long total = 0;
+        for (int floor = 1; floor < numFloors; floor++)
+            total += travelUp[floor] + travelDown[floor + 1];
+        return total / (2 * (numFloors - 1));
+    }
+
+    /**
+     * Predict how long it takes until the car stops for the hall call, following its itinerary (LOOK) from where it is now -
+     * including the travel and the door cycles of every stop on the way
+     * @param itinerary - the car's current stops (not modified)
+     * @param floor - the floor the car is at, or last passed if moving
+     * @param direction - the direction the car is moving/serving in
+     * @param moving - whether the car is between floors (heading for floor + direction)
+     * @param elapsed - how long the car has been on its way from the floor, if moving
+     * @param target - the hall call (1-indexed, negative sign means "down")
+     * @return the estimated time to serve, in ns
+     */
+    public long timeToServe(Itinerary itinerary, int floor, int direction, boolean moving, long elapsed, int target) {
+        if (floor < 1 || floor > numFloors || target == 0 || Math.abs(target) > numFloors) return 0;
+        Itinerary path = itinerary.copy();
+        path.addHallCall(target);
+        long time = 0;
+        if (moving && direction != Elevator.DIR_STOP && floor + direction >= 1 && floor + direction <= numFloors) {
+            time += Math.max(0, travelTime(floor, direction) - elapsed);
+            floor += direction;
+        }
+        long dwellTime = dwellTime();
+        // Every step either serves a stop or moves the car closer to one, so this always ends well before the limit
+        for (int step = 0; step < 4 * numFloors * numFloors; step++) {
+            if (path.shouldStopAt(floor, direction)) {
+                int serviceDirection = path.serviceDirection(floor, direction);
+                path.clearFloor(floor, serviceDirection);
+                if (!path.hasHallCall(target))
+                    return time;
+                time += dwellTime;
+                direction = serviceDirection;
+                continue;
+            }
+            int nextDirection = path.nextDirection(floor, direction);
+            if (nextDirection == Elevator.DIR_STOP)
+                break;
+            time += travelTime(floor, nextDirection);
+            floor += nextDirection;
+            direction = nextDirection;
+        }
+        return time;
+    }
+}
@@ -0,0 +1,203 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phi-accrual failure detector (Hayashibara et al.) over the state messages every node sends every
+ * HallCallAssigner.STATE_INTERVAL - those are the heartbeats. Any other message from a peer shows that it's alive too,
+ * but only the intervals between the heartbeats are sampled, since the others come whenever something happens.
+ *
+ * Instead of a fixed timeout, the intervals between the heartbeats of each peer are sampled, and phi = -log10(the
+ * probability of a heartbeat arriving this late, given the mean and standard deviation of the samples) is compared to
+ * the 'phi_threshold' setting. A peer that sends regularly is suspected shortly after its first missed heartbeat;
+ * one on a jittery network gets more slack. When a peer is suspected, the jobs it took are re-queued at once
+ * (CommandDispatcher.requeueJobsOf) instead of waiting for CommandHandler.JOB_TIMEOUT.
+ *
+ * A suspected peer that is heard from again within FALSE_POSITIVE_WINDOW is counted as a false positive - it was
+ * just slow, not dead.
+ */
+class FailureDetector {
+    public static final double DEFAULT_PHI_THRESHOLD = 8;
+    public static final int SAMPLE_WINDOW = 100, // Heartbeat intervals kept per peer
+            MIN_STD_DEVIATION = 100, // ms - so that perfectly regular heartbeats don't make us trigger-happy
+            ACCEPTABLE_PAUSE = 500, // ms added to the mean, for GC pauses and the like
+            CHECK_INTERVAL = 100, // ms
+            FALSE_POSITIVE_WINDOW = 5000; // ms
+
+    private static final double phiThreshold = configuredThreshold();
+    private static final Map<Integer, Peer> peers = new HashMap<>();
+
+    // Metrics
+    private static long suspicions = 0, falsePositives = 0, totalDetectionMillis = 0, maxDetectionMillis = 0;
+
+    private FailureDetector() {}
+
+    private static double configuredThreshold() {
+        try {
+            return Double.parseDouble(Settings.getSetting("phi_threshold", String.valueOf(DEFAULT_PHI_THRESHOLD)).trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid phi_threshold setting, using " + DEFAULT_PHI_THRESHOLD);
+            return DEFAULT_PHI_THRESHOLD;
+        }
+    }
+
+    /**
+     * Heartbeat intervals of one peer, in a ring buffer with running sums for the mean and variance
+     */
+    private static class Peer {
+        final int node;
+        final long[] intervals = new long[SAMPLE_WINDOW];
+        int count = 0, next = 0;
+        long sum = 0, sumOfSquares = 0;
+        long lastHeartbeat, lastHeard, suspectedAt = -1; // System.nanoTime()
+
+        Peer(int node, long now) {
+            this.node = node;
+            lastHeartbeat = lastHeard = now;
+            // Seed with the interval we expect, so the first missed heartbeats are already noticed
+            add(HallCallAssigner.STATE_INTERVAL);
+            add(HallCallAssigner.STATE_INTERVAL + HallCallAssigner.STATE_INTERVAL / 4);
+        }
+
+        void add(long interval) {
+            if (count == SAMPLE_WINDOW) {
+                sum -= intervals[next];
+                sumOfSquares -= intervals[next] * intervals[next];
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % SAMPLE_WINDOW;
+            sum += interval;
+            sumOfSquares += interval * interval;
+        }
+
+        double phi(long now) {
+            double mean = (double) sum / count;
+            double deviation = Math.max(MIN_STD_DEVIATION, Math.sqrt(Math.max(0, (double) sumOfSquares / count - mean * mean)));
+            double elapsed = TimeUnit.NANOSECONDS.toMillis(now - lastHeard);
+            // Logistic approximation of the normal distribution's tail, as used by Akka and Cassandra
+            double y = (elapsed - mean - ACCEPTABLE_PAUSE) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            double lateProbability = elapsed > mean + ACCEPTABLE_PAUSE ? e / (1 + e) : 1 - 1 / (1 + e);
+            return -Math.log10(Math.max(lateProbability, Double.MIN_VALUE));
+        }
+    }
+
+    /**
+     * A message arrived from the node
+     * @param heartbeat - whether it's one of the periodic state messages
+     */
+    public static synchronized void heardFrom(int node, boolean heartbeat) {
+        if (node == CommandHandler.NODE_INDEX) return;
+        long now = System.nanoTime();
+        Peer peer = peers.get(node);
+        if (peer == null) {
+            peers.put(node, new Peer(node, now));
+            return;
+        }
+        if (peer.suspectedAt >= 0) {
+            long sinceSuspected = TimeUnit.NANOSECONDS.toMillis(now - peer.suspectedAt);
+            Log.info("Heard from {ip} again, {} ms after suspecting it", node, sinceSuspected);
+            if (sinceSuspected < FALSE_POSITIVE_WINDOW)
+                falsePositives++;
+            peer.suspectedAt = -1;
+            // Don't count the outage as a heartbeat interval
+            peer.lastHeartbeat = peer.lastHeard = now;
+            return;
+        }
+        peer.lastHeard = now;
+        if (!heartbeat) return;
+        peer.add(TimeUnit.NANOSECONDS.toMillis(now - peer.lastHeartbeat));
+        peer.lastHeartbeat = now;
+    }
+
+    public static synchronized boolean isSuspected(int node) {
+        Peer peer = peers.get(node);
+        return peer != null && peer.suspectedAt >= 0;
+    }
+
+    /**
+     * @return the current phi of the node (0 if we have never heard from it)
+     */
+    public static synchronized double phi(int node) {
+        Peer peer = peers.get(node);
+        return peer == null ? 0 : peer.phi(System.nanoTime());
+    }
+
+    private static void check() {
+        long now = System.nanoTime();
+        int[] newlySuspected = new int[0];
+        synchronized (FailureDetector.class) {
+            for (Peer peer : peers.values()) {
+                if (peer.suspectedAt >= 0 || peer.phi(now) < phiThreshold) continue;
+                peer.suspectedAt = now;
+                long detectionMillis = TimeUnit.NANOSECONDS.toMillis(now - peer.lastHeard);
+                suspicions++;
+                totalDetectionMillis += detectionMillis;
+                maxDetectionMillis = Math.max(maxDetectionMillis, detectionMillis);
+                Log.warn("Suspecting {ip} has failed - last heard from {} ms ago", peer.node, detectionMillis);
+                newlySuspected = Arrays.copyOf(newlySuspected, newlySuspected.length + 1);
+                newlySuspected[newlySuspected.length - 1] = peer.node;
+            }
+        }
+        // Re-queuing is done on the ControlLoop, which owns the orders
+        for (final int node : newlySuspected) {
+            ControlLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    CommandDispatcher.requeueJobsOf(node);
+                }
+            });
+        }
+    }
+
+    public static synchronized long getSuspicions() {
+        return suspicions;
+    }
+
+    public static synchronized long getFalsePositives() {
+        return falsePositives;
+    }
+
+    /**
+     * @return the share of the suspicions that turned out to be false positives (0 if there have been none)
+     */
+    public static synchronized double getFalsePositiveRate() {
+        return suspicions == 0 ? 0 : (double) falsePositives / suspicions;
+    }
+
+    /**
+     * @return the mean time from the last heartbeat of a peer until it was suspected, in ms
+     */
+    public static synchronized long getMeanDetectionMillis() {
+        return suspicions == 0 ? 0 : totalDetectionMillis / suspicions;
+    }
+
+    public static synchronized long getMaxDetectionMillis() {
+        return maxDetectionMillis;
+    }
+
+    /**
+     * Evaluates phi for every peer every CHECK_INTERVAL ms
+     */
+    static class Monitor extends Thread {
+        Monitor() {
+            super("FailureDetector");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    sleep(CHECK_INTERVAL);
+                } catch (InterruptedException ignored) {}
+                check();
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+/**
+ * JMX view of a counter or gauge, registered as no.ntnu.stud.torbjovn.elevator:type=Gauge,name=<name>
+ */
+public interface GaugeMBean {
+    long getValue();
+}
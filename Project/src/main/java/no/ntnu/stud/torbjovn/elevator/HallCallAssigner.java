@@ -0,0 +1,188 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Assigns the pending hall calls to the cars as soon as they're known, instead of letting the delay timers race.
+ *
+ * Every node broadcasts its CarState (periodically, and whenever its itinerary or position changes). On every change
+ * to the states or the pending calls, each node solves the same assignment problem - cost = estimated time for the car
+ * to serve the call, from the state it published - with the Hungarian algorithm, and takes the calls assigned to itself.
+ * Since the inputs are the same everywhere and the solver is deterministic, the nodes agree without any extra messages.
+ * When there are more calls than cars, the assignment is repeated in rounds, with the calls assigned so far added to
+ * the cars' itineraries.
+ *
+ * The delay timers are kept as a fallback (see CommandHandler.jobDelay), in case the nodes see different states
+ * for a moment and nobody takes a call. Set 'assignment' to "delay" to use the timers only, as before.
+ *
+ * The car states are guarded by the class lock (they're updated and the assignment is solved on the ControlLoop, but the
+ * StatePublisher reads them too), the local state is only touched by the MessageSender thread.
+ * Cars suspected by the FailureDetector don't get any calls.
+ */
+class HallCallAssigner {
+    public static final String MODE_OPTIMAL = "optimal",
+            MODE_DELAY = "delay";
+    public static final boolean ENABLED = !MODE_DELAY.equalsIgnoreCase(Settings.getSetting("assignment", MODE_OPTIMAL).trim());
+    public static final int STATE_INTERVAL = 1000, // How often the state is sent when nothing changes (ms)
+            STATE_TIMEOUT = 3 * STATE_INTERVAL, // Cars we haven't heard from for this long don't get any calls (ms)
+            MAX_CARS = 64;
+
+    // Known cars, sorted by node index so that every node builds the same cost matrix
+    private static final CarState[] cars = new CarState[MAX_CARS];
+    private static int carCount = 0;
+
+    private static final CarState localState = new CarState(Elevator.NUM_FLOORS);
+    // Set while a state message is queued, so that a burst of changes only sends one
+    private static final AtomicBoolean statePending = new AtomicBoolean(false);
+
+    private HallCallAssigner() {}
+
+    /**
+     * Our position or stops changed - send the new state (never blocks)
+     */
+    public static void localStateChanged() {
+        if (statePending.compareAndSet(false, true) && !Networking.queueMessage(ClusterMessage.TYPE_STATE, 0))
+            statePending.set(false);
+    }
+
+    /**
+     * Write the current state of this car as the payload of a TYPE_STATE record - called by the MessageSender thread
+     */
+    static void writeLocalState(ByteBuffer buffer) {
+        statePending.set(false);
+        Elevator elevator = Main.getElevator();
+        if (elevator != null && elevator.captureState(localState))
+            localState.writeTo(buffer);
+        // Otherwise the payload is left empty, and ignored by the receivers
+    }
+
+    /**
+     * Store the state received from a car, and re-solve the assignment
+     */
+    public static synchronized void onState(ClusterMessage message) {
+        if (message.payload == null) return;
+        CarState car = findCar(message.node);
+        if (car == null) return;
+        if (!car.readFrom(message.payload)) {
+            car.updatedAt = 0; // Leave it out until we get a valid state
+            return;
+        }
+        car.updatedAt = System.nanoTime();
+        solve();
+    }
+
+    private static CarState findCar(int node) {
+        int index = 0;
+        while (index < carCount && cars[index].node < node) index++;
+        if (index < carCount && cars[index].node == node) return cars[index];
+        if (carCount == MAX_CARS) {
+            Log.warn("Too many cars in the cluster, ignoring {ip}", node);
+            return null;
+        }
+        System.arraycopy(cars, index, cars, index + 1, carCount - index);
+        CarState car = new CarState(Elevator.NUM_FLOORS);
+        car.node = node;
+        cars[index] = car;
+        carCount++;
+        return car;
+    }
+
+    /**
+     * Assign the pending calls to the cars we have a recent state for, and take the ones assigned to us
+     */
+    public static synchronized void solve() {
+        if (Main.getElevator() == null) return;
+        solve(CommandDispatcher.getDispatcher(), cars, carCount, System.nanoTime());
+    }
+
+    /**
+     * Assign the dispatcher's pending calls to the cars with a recent state, and take the ones assigned to its node
+     * (also used by the BuildingSimulator and the TraceReplayer, for the nodes they run)
+     * @param cars - sorted by node index, with updatedAt in the dispatcher's clock (0 if there's no valid state)
+     */
+    static void solve(JobDispatcher dispatcher, CarState[] cars, int carCount, long now) {
+        if (!ENABLED) return;
+        int[] pendingTargets = new int[dispatcher.size()];
+        int calls = dispatcher.getPendingJobs(pendingTargets);
+        if (calls == 0) return;
+
+        long timeout = TimeUnit.MILLISECONDS.toNanos(STATE_TIMEOUT);
+        CarState[] active = new CarState[carCount];
+        int activeCount = 0, self = -1;
+        for (int i = 0; i < carCount; i++) {
+            if (cars[i].updatedAt == 0 || now - cars[i].updatedAt > timeout || dispatcher.getNode().isSuspected(cars[i].node)) continue;
+            if (cars[i].node == dispatcher.getSelf()) self = activeCount;
+            active[activeCount++] = cars[i];
+        }
+        if (self < 0) return; // We haven't heard from ourselves - we'd be solving with a different picture than the others
+
+        int[] assignedCar = new int[calls];
+        assign(active, activeCount, pendingTargets, calls, assignedCar);
+        for (int call = 0; call < calls; call++) {
+            if (assignedCar[call] == self)
+                dispatcher.claimRequest(pendingTargets[call]);
+        }
+    }
+
+    /**
+     * Assign the calls to the cars - deterministic, so every node gets the same result from the same states
+     * (also used by the BuildingSimulator)
+     * @param cars - in the same order on every node (sorted by node index)
+     * @param calls - the targets of the pending calls, in slot order
+     * @param assignedCar - filled with the index (in cars) of the car each call is assigned to
+     */
+    static void assign(CarState[] cars, int carCount, int[] calls, int callCount, int[] assignedCar) {
+        // The stops each car would have with the calls assigned to it so far
+        Itinerary[] planned = new Itinerary[carCount];
+        for (int car = 0; car < carCount; car++)
+            planned[car] = cars[car].itinerary.copy();
+        // Indices (in calls) of the calls not assigned yet
+        int[] remaining = new int[callCount];
+        for (int call = 0; call < callCount; call++)
+            remaining[call] = call;
+        int left = callCount;
+        long[][] cost = new long[carCount][callCount];
+        while (left > 0) {
+            for (int car = 0; car < carCount; car++)
+                for (int call = 0; call < left; call++)
+                    cost[car][call] = cars[car].timeToServe(planned[car], calls[remaining[call]]);
+            int[] assignment = HungarianSolver.assign(cost, carCount, left);
+            boolean[] assigned = new boolean[left];
+            for (int car = 0; car < carCount; car++) {
+                int call = assignment[car];
+                if (call < 0) continue;
+                assigned[call] = true;
+                assignedCar[remaining[call]] = car;
+                planned[car].addHallCall(calls[remaining[call]]);
+            }
+            int stillLeft = 0;
+            for (int call = 0; call < left; call++)
+                if (!assigned[call]) remaining[stillLeft++] = remaining[call];
+            left = stillLeft;
+        }
+    }
+
+    /**
+     * Sends the state now and then even if nothing changes, so that the others know we're still around
+     */
+    static class StatePublisher extends Thread {
+        StatePublisher() {
+            super("StatePublisher");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                // Sent even if a change is already queued, so the heartbeats stay regular (see FailureDetector)
+                if (Main.getElevator() != null)
+                    Networking.queueMessage(ClusterMessage.TYPE_STATE, ClusterMessage.STATE_HEARTBEAT);
+                try {
+                    sleep(STATE_INTERVAL);
+                } catch (InterruptedException ignored) {}
+            }
+        }
+    }
+}
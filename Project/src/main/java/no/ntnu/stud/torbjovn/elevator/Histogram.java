@@ -0,0 +1,122 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative long values with log-linear buckets, in the style of HdrHistogram: values below
+ * 2^SUB_BUCKET_BITS get a bucket each, above that every power of two is split into 2^(SUB_BUCKET_BITS - 1) buckets.
+ * Percentiles are therefore within about 3% of the true value, over the whole range of a long, in a fixed 16 KB.
+ *
+ * record() is a couple of atomic increments, so it's safe to call from the control threads. Readers (the metrics
+ * endpoint, JMX) see a slightly inconsistent view while values are being recorded, which is fine for monitoring.
+ */
+class Histogram implements HistogramMBean {
+    private static final int SUB_BUCKET_BITS = 6,
+            HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1),
+            BUCKETS = 64 * HALF_SUB_BUCKETS;
+
+    private final String name, help;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(), sum = new AtomicLong(), max = new AtomicLong();
+
+    Histogram(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    static int bucketOf(long value) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(value | 1);
+        if (magnitude < SUB_BUCKET_BITS) return (int) value;
+        int shift = magnitude - SUB_BUCKET_BITS + 1;
+        return (shift << (SUB_BUCKET_BITS - 1)) + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the highest value that falls in the bucket
+     */
+    static long highestInBucket(int bucket) {
+        if (bucket < 2 * HALF_SUB_BUCKETS) return bucket;
+        int shift = (bucket >> (SUB_BUCKET_BITS - 1)) - 1;
+        long mantissa = bucket - ((long) shift << (SUB_BUCKET_BITS - 1));
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * @param value - negative values (e.g. from clocks that differ between nodes) are recorded as 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) ;
+    }
+
+    /**
+     * Record the time since start, in microseconds
+     * @param start - from System.nanoTime()
+     */
+    public void recordMicrosSince(long start) {
+        record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * @param percentile - 0 to 100
+     * @return the value at the given percentile (the upper end of its bucket, but never above the max), 0 if empty
+     */
+    public long percentile(double percentile) {
+        long total = count.get();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total)), seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) return Math.min(highestInBucket(bucket), max.get());
+        }
+        return max.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    @Override
+    public double getMean() {
+        long total = count.get();
+        return total == 0 ? 0 : (double) sum.get() / total;
+    }
+
+    @Override
+    public long getP50() {
+        return percentile(50);
+    }
+
+    @Override
+    public long getP90() {
+        return percentile(90);
+    }
+
+    @Override
+    public long getP99() {
+        return percentile(99);
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+}
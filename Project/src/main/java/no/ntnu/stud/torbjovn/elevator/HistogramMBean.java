@@ -0,0 +1,19 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+/**
+ * JMX view of a Histogram, registered as no.ntnu.stud.torbjovn.elevator:type=Histogram,name=<name>.
+ * Values are in the unit given by the histogram's name (e.g. _us for microseconds).
+ */
+public interface HistogramMBean {
+    long getCount();
+
+    double getMean();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+
+    long getMax();
+}
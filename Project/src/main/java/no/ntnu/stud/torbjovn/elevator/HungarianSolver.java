@@ -0,0 +1,79 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.Arrays;
+
+/**
+ * The Hungarian algorithm for the assignment problem: match rows (cars) to columns (calls) one-to-one so that the total
+ * cost is as low as possible. Runs in O(rows^2 * cols), and is deterministic - the same matrix always gives the same result.
+ */
+class HungarianSolver {
+    private static final long INFINITY = Long.MAX_VALUE / 4;
+
+    private HungarianSolver() {}
+
+    /**
+     * @param cost - cost[row][col], at least rows x cols
+     * @return the column assigned to each row, or -1 for rows left over (when there are more rows than columns)
+     */
+    public static int[] assign(long[][] cost, int rows, int cols) {
+        int[] rowToCol = new int[rows];
+        Arrays.fill(rowToCol, -1);
+        if (rows == 0 || cols == 0) return rowToCol;
+        if (rows > cols) {
+            long[][] transposed = new long[cols][rows];
+            for (int row = 0; row < rows; row++)
+                for (int col = 0; col < cols; col++)
+                    transposed[col][row] = cost[row][col];
+            int[] colToRow = assign(transposed, cols, rows);
+            for (int col = 0; col < cols; col++)
+                if (colToRow[col] >= 0) rowToCol[colToRow[col]] = col;
+            return rowToCol;
+        }
+
+        // Potentials u (rows) and v (columns), 1-indexed with column 0 as a sentinel; match[col] is the row matched to it
+        long[] u = new long[rows + 1], v = new long[cols + 1], minimum = new long[cols + 1];
+        int[] match = new int[cols + 1], way = new int[cols + 1];
+        boolean[] used = new boolean[cols + 1];
+        for (int row = 1; row <= rows; row++) {
+            match[0] = row;
+            int col0 = 0;
+            Arrays.fill(minimum, INFINITY);
+            Arrays.fill(used, false);
+            do {
+                used[col0] = true;
+                int row0 = match[col0], col1 = 0;
+                long delta = INFINITY;
+                for (int col = 1; col <= cols; col++) {
+                    if (used[col]) continue;
+                    long reduced = cost[row0 - 1][col - 1] - u[row0] - v[col];
+                    if (reduced < minimum[col]) {
+                        minimum[col] = reduced;
+                        way[col] = col0;
+                    }
+                    if (minimum[col] < delta) {
+                        delta = minimum[col];
+                        col1 = col;
+                    }
+                }
+                for (int col = 0; col <= cols; col++) {
+                    if (used[col]) {
+                        u[match[col]] += delta;
+                        v[col] -= delta;
+                    } else {
+                        minimum[col] -= delta;
+                    }
+                }
+                col0 = col1;
+            } while (match[col0] != 0);
+            // Flip the augmenting path
+            do {
+                int col1 = way[col0];
+                match[col0] = match[col1];
+                col0 = col1;
+            } while (col0 != 0);
+        }
+        for (int col = 1; col <= cols; col++)
+            if (match[col] != 0) rowToCol[match[col] - 1] = col - 1;
+        return rowToCol;
+    }
+}
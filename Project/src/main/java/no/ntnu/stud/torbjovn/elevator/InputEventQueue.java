@@ -0,0 +1,103 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer of input events.
+ * The producer is the thread sampling the driver, the consumer is the thread reacting to the events - it either blocks
+ * (parks) in take() while the queue is empty, so nothing is spinning when no buttons are pressed, or is woken up by the
+ * producer some other way and drains the queue with poll().
+ *
+ * Events are packed into a single int: | type (8 bits) | arg (8 bits) | floor (16 bits) |
+ */
+class InputEventQueue {
+    public static final int EVENT_BUTTON_DOWN = 1, // floor = 0-indexed floor, arg = button type
+            EVENT_FLOOR_REACHED = 2, // floor = 1-indexed floor
+            EVENT_FLOOR_LEFT = 3, // floor = 1-indexed floor
+            EVENT_STOP = 4, // arg = 1 if pressed, 0 if released
+            EVENT_OBSTRUCTION_CHANGED = 5; // arg = 1 if obstructed, 0 if not
+
+    private final int[] events;
+    private final int mask;
+    // Next position to read (owned by the consumer) and next position to write (owned by the producer)
+    private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+    private volatile Thread waitingConsumer = null;
+
+    /**
+     * @param capacity - rounded up to the nearest power of two
+     */
+    InputEventQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        events = new int[size];
+        mask = size - 1;
+    }
+
+    public static int event(int type, int floor, int arg) {
+        return (type << 24) | ((arg & 0xff) << 16) | (floor & 0xffff);
+    }
+
+    public static int type(int event) {
+        return event >>> 24;
+    }
+
+    public static int floor(int event) {
+        return event & 0xffff;
+    }
+
+    public static int arg(int event) {
+        return (event >>> 16) & 0xff;
+    }
+
+    /**
+     * Publish an event - must only be called from the producer thread
+     * @return false if the queue is full (the event is not added)
+     */
+    public boolean offer(int event) {
+        long t = tail.get();
+        if (t - head.get() >= events.length)
+            return false;
+        events[(int) t & mask] = event;
+        tail.set(t + 1); // Volatile write - publishes the slot before we look for a waiting consumer below
+        Thread consumer = waitingConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+        return true;
+    }
+
+    /**
+     * Get the next event, blocking until one is available - must only be called from the consumer thread
+     */
+    public int take() throws InterruptedException {
+        long h = head.get();
+        while (h == tail.get()) {
+            waitingConsumer = Thread.currentThread();
+            // Re-check after announcing ourselves, in case the producer published in between
+            if (h == tail.get())
+                LockSupport.park(this);
+            waitingConsumer = null;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+        int event = events[(int) h & mask];
+        head.lazySet(h + 1);
+        return event;
+    }
+
+    /**
+     * Get the next event without waiting - must only be called from the consumer thread
+     * @return the event, or -1 if the queue is empty (events are never negative)
+     */
+    public int poll() {
+        long h = head.get();
+        if (h == tail.get())
+            return -1;
+        int event = events[(int) h & mask];
+        head.lazySet(h + 1);
+        return event;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+}
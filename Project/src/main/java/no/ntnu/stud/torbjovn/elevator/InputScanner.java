@@ -0,0 +1,79 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+/**
+ * Turns input snapshots (see ElevatorDriver.getInputSnapshot) into events on an InputEventQueue - one for every change
+ * since the previous snapshot: a button going down, arriving at or leaving a floor, the stop button or obstruction switch changing.
+ *
+ * Buttons are kept as a bit set (one bit per floor and button, in snapshot order), so a scan is one pass to pack the
+ * snapshot into 64-bit words and a word-wise comparison - only the buttons that were actually pressed cost anything more.
+ * If an event can't be published (queue full), the input is left unchanged so the event is retried on the next scan.
+ */
+class InputScanner {
+    private final int numFloors, numButtons;
+    private final int floorIndex, stopIndex, obstructionIndex;
+    private final InputEventQueue events;
+    // Previous state of the buttons, bit (floor * numButtons + button)
+    private final long[] pressed;
+    private int stopButtonStatus = 0, floorStatus = -1, obstructionStatus = -1;
+
+    InputScanner(int numFloors, int numButtons, InputEventQueue events) {
+        this.numFloors = numFloors;
+        this.numButtons = numButtons;
+        this.events = events;
+        floorIndex = numFloors * numButtons;
+        stopIndex = floorIndex + 1;
+        obstructionIndex = floorIndex + 2;
+        pressed = new long[(floorIndex + 63) >>> 6];
+    }
+
+    public int snapshotSize() {
+        return floorIndex + 3;
+    }
+
+    public void scan(int[] snapshot) {
+        for (int word = 0; word < pressed.length; word++) {
+            int base = word << 6, end = Math.min(base + 64, floorIndex);
+            long current = 0;
+            for (int i = base; i < end; i++)
+                if (snapshot[i] != 0) current |= 1L << (i - base);
+            // Releases just update the state, presses have to be published
+            long rising = current & ~pressed[word];
+            while (rising != 0) {
+                int bit = Long.numberOfTrailingZeros(rising);
+                rising &= rising - 1;
+                int index = base + bit;
+                if (!publish(InputEventQueue.EVENT_BUTTON_DOWN, index / numButtons, index % numButtons))
+                    current &= ~(1L << bit); // Not pressed as far as we know - retry on the next scan
+            }
+            pressed[word] = current;
+        }
+
+        int reading = snapshot[floorIndex];
+        if (floorStatus != reading) {
+            boolean published;
+            if (reading == 0)
+                published = floorStatus < 1 || publish(InputEventQueue.EVENT_FLOOR_LEFT, floorStatus, 0);
+            else
+                published = publish(InputEventQueue.EVENT_FLOOR_REACHED, reading, 0);
+            if (published) floorStatus = reading;
+        }
+
+        reading = snapshot[stopIndex];
+        if (stopButtonStatus != reading && publish(InputEventQueue.EVENT_STOP, 0, reading))
+            stopButtonStatus = reading;
+
+        reading = snapshot[obstructionIndex];
+        if (obstructionStatus != reading && publish(InputEventQueue.EVENT_OBSTRUCTION_CHANGED, 0, reading))
+            obstructionStatus = reading;
+    }
+
+    private boolean publish(int type, int floor, int arg) {
+        int event = InputEventQueue.event(type, floor, arg);
+        if (events.offer(event)) {
+            TraceRecorder.input(event);
+            return true;
+        }
+        Log.warn("Input event queue is full, will retry on the next scan");
+        return false;
+    }
+}
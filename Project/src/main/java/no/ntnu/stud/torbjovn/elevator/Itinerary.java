@@ -0,0 +1,213 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * The set of stops an elevator has committed to, served in LOOK order:
+ * keep going in the current direction as long as there are stops ahead, then turn around.
+ *
+ * Floors are 1-indexed, and hall calls use the same signed notation as the rest of the system (negative means "down").
+ */
+class Itinerary {
+    private final int numFloors;
+    // Indexed by (1-indexed) floor
+    private final BitSet cabStops, upStops, downStops;
+    private final BitSet[] allStops;
+
+    Itinerary(int numFloors) {
+        this.numFloors = numFloors;
+        cabStops = new BitSet(numFloors + 1);
+        upStops = new BitSet(numFloors + 1);
+        downStops = new BitSet(numFloors + 1);
+        allStops = new BitSet[] {cabStops, upStops, downStops};
+    }
+
+    public int getNumFloors() {
+        return numFloors;
+    }
+
+    /**
+     * @return an independent copy of the current stops, e.g. to play the route forward without affecting the car
+     */
+    public Itinerary copy() {
+        Itinerary copy = new Itinerary(numFloors);
+        copyTo(copy);
+        return copy;
+    }
+
+    /**
+     * Replace the stops of the other itinerary (for the same number of floors) with ours
+     */
+    public synchronized void copyTo(Itinerary other) {
+        synchronized (other) {
+            for (int i = 0; i < allStops.length; i++) {
+                other.allStops[i].clear();
+                other.allStops[i].or(allStops[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes written by writeTo
+     */
+    public static int encodedSize(int numFloors) {
+        return 3 * bytesPerSet(numFloors);
+    }
+
+    private static int bytesPerSet(int numFloors) {
+        return (numFloors + 8) / 8; // Bits 0 to numFloors
+    }
+
+    /**
+     * Write the cab, up and down stops to the buffer, as bit sets of encodedSize(numFloors) / 3 bytes each
+     */
+    public synchronized void writeTo(ByteBuffer buffer) {
+        int size = bytesPerSet(numFloors);
+        for (BitSet stops : allStops) {
+            byte[] bytes = stops.toByteArray();
+            int length = Math.min(bytes.length, size);
+            buffer.put(bytes, 0, length);
+            for (int i = length; i < size; i++)
+                buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * Replace the stops with the ones written by writeTo (for the same number of floors)
+     * @return false if the buffer doesn't hold enough data (the itinerary is left unchanged)
+     */
+    public synchronized boolean readFrom(ByteBuffer buffer) {
+        int size = bytesPerSet(numFloors);
+        if (buffer.remaining() < 3 * size) return false;
+        for (BitSet stops : allStops) {
+            ByteBuffer bits = buffer.slice();
+            bits.limit(size);
+            stops.clear();
+            stops.or(BitSet.valueOf(bits));
+            stops.clear(numFloors + 1, size * 8);
+            buffer.position(buffer.position() + size);
+        }
+        return true;
+    }
+
+    public synchronized void addCabCall(int floor) {
+        if (floor < 1 || floor > numFloors) return;
+        cabStops.set(floor);
+    }
+
+    /**
+     * @param target - the floor (1-indexed) with the sign indicating the requested direction
+     */
+    public synchronized void addHallCall(int target) {
+        int floor = Math.abs(target);
+        if (floor < 1 || floor > numFloors) return;
+        (target > 0 ? upStops : downStops).set(floor);
+    }
+
+    public synchronized boolean isEmpty() {
+        return cabStops.isEmpty() && upStops.isEmpty() && downStops.isEmpty();
+    }
+
+    public synchronized boolean hasCabCalls() {
+        return !cabStops.isEmpty();
+    }
+
+    public synchronized boolean hasCabCall(int floor) {
+        return cabStops.get(floor);
+    }
+
+    public synchronized boolean hasHallCall(int target) {
+        return (target > 0 ? upStops : downStops).get(Math.abs(target));
+    }
+
+    /**
+     * @return the cab calls as a bit set indexed by floor (a copy)
+     */
+    public synchronized BitSet getCabCalls() {
+        return (BitSet) cabStops.clone();
+    }
+
+    /**
+     * Whether the car should stop at the given floor when arriving there (or standing there) heading in the given direction
+     */
+    public synchronized boolean shouldStopAt(int floor, int direction) {
+        if (cabStops.get(floor)) return true;
+        if (direction == Elevator.DIR_UP && upStops.get(floor)) return true;
+        if (direction == Elevator.DIR_DOWN && downStops.get(floor)) return true;
+        // Turning point - pick up whoever is waiting here to go the other way
+        return !hasStopsBeyond(floor, direction) && (upStops.get(floor) || downStops.get(floor));
+    }
+
+    /**
+     * The direction the car will be serving when stopping at the given floor - the hall call in this direction is the one that gets cleared
+     */
+    public synchronized int serviceDirection(int floor, int direction) {
+        if (direction != Elevator.DIR_STOP) {
+            if ((direction == Elevator.DIR_UP ? upStops : downStops).get(floor) || hasStopsBeyond(floor, direction))
+                return direction;
+        }
+        if (upStops.get(floor)) return Elevator.DIR_UP;
+        if (downStops.get(floor)) return Elevator.DIR_DOWN;
+        return direction;
+    }
+
+    /**
+     * LOOK: continue in the current direction while there are stops ahead, otherwise turn around (or stop if there is nothing left)
+     * @return the direction to move in from the given floor
+     */
+    public synchronized int nextDirection(int floor, int direction) {
+        boolean above = hasStopsBeyond(floor, Elevator.DIR_UP),
+                below = hasStopsBeyond(floor, Elevator.DIR_DOWN);
+        if (direction == Elevator.DIR_UP && above) return Elevator.DIR_UP;
+        if (direction == Elevator.DIR_DOWN && below) return Elevator.DIR_DOWN;
+        if (above && below) {
+            // Coming from idle with stops on both sides - go for the closest one first
+            return (nearestAbove(floor) - floor) <= (floor - nearestBelow(floor)) ? Elevator.DIR_UP : Elevator.DIR_DOWN;
+        }
+        if (above) return Elevator.DIR_UP;
+        if (below) return Elevator.DIR_DOWN;
+        return Elevator.DIR_STOP;
+    }
+
+    /**
+     * Remove the stops served at the given floor
+     * @param direction - the service direction, as returned by serviceDirection
+     */
+    public synchronized void clearFloor(int floor, int direction) {
+        cabStops.clear(floor);
+        if (direction == Elevator.DIR_UP) upStops.clear(floor);
+        else if (direction == Elevator.DIR_DOWN) downStops.clear(floor);
+    }
+
+    public synchronized void clear() {
+        cabStops.clear();
+        upStops.clear();
+        downStops.clear();
+    }
+
+    private boolean hasStopsBeyond(int floor, int direction) {
+        if (direction == Elevator.DIR_UP) return nearestAbove(floor) != -1;
+        if (direction == Elevator.DIR_DOWN) return nearestBelow(floor) != -1;
+        return false;
+    }
+
+    private int nearestAbove(int floor) {
+        int nearest = -1;
+        for (BitSet stops : allStops) {
+            int next = stops.nextSetBit(floor + 1);
+            if (next != -1 && (nearest == -1 || next < nearest)) nearest = next;
+        }
+        return nearest;
+    }
+
+    private int nearestBelow(int floor) {
+        int nearest = -1;
+        if (floor <= 1) return nearest;
+        for (BitSet stops : allStops) {
+            int previous = stops.previousSetBit(floor - 1);
+            if (previous >= 1 && previous > nearest) nearest = previous;
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,399 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hall calls as one node sees them, and the protocol that decides when it takes them (see the outline in the
+ * CommandHandler): a JobTable with the state of every call, a JobSchedule with the delay timers, and the steps that
+ * move them - requested, taken by someone else, completed, timer expired, re-queued after a failure.
+ *
+ * Everything outside the node's own view comes through its Node - the clock, the elevator's estimates, and where the
+ * jobs it takes go - so the same steps can run in this process (CommandDispatcher holds the one instance) and for every
+ * car of a BuildingSimulator, or a TraceReplayer, on a virtual clock.
+ *
+ * Owned by the thread running the node's timers (the ControlLoop) - only jobExists may be called from other threads.
+ */
+class JobDispatcher {
+    /**
+     * What the dispatcher needs from the node it runs on. Called on the dispatcher's thread, while it's in the middle
+     * of a step - it may be called again from here.
+     */
+    interface Node {
+        /**
+         * @return the current time, in System.nanoTime() units
+         */
+        long nanoTime();
+
+        /**
+         * @return whether the car is standing still at the floor (1-indexed) - a call there is served at once
+         */
+        boolean isStoppedAt(int floor);
+
+        /**
+         * @return the estimated time for the car to serve the call (ms), or -1 if there's no car to ask yet
+         */
+        long estimateTimeToServe(int target);
+
+        boolean isSuspected(int node);
+
+        /**
+         * We took the job (step 4) - tell the others, and add it to the car's itinerary
+         * @param reason - what made us take it (TraceRecorder.DISPATCH_*)
+         * @param lateness - how long after its deadline the timer fired (ns), 0 if it wasn't the timer
+         */
+        void dispatch(int target, byte reason, long lateness);
+
+        /**
+         * We took the job, by dispatching it or when passing by
+         * @param waited - nanoseconds since it was requested, or -1 if we didn't see the request
+         */
+        void jobTaken(int target, long waited);
+
+        /**
+         * The slot changed state (for the OrderJournal)
+         */
+        void jobChanged(JobTable jobs, int slot);
+
+        /**
+         * A job taken by a failed node is pending again - tell the others
+         */
+        void jobRequeued(int target);
+
+        /**
+         * Done re-queuing the jobs of a failed node
+         * @param count - how many there were (more than 0)
+         */
+        void jobsRequeued(int node, int count);
+
+        /**
+         * The earliest deadline may have changed - dispatchDue should be called by then
+         */
+        void scheduleChanged();
+    }
+
+    private final int self;
+    private final Node node;
+    private final JobTable activeJobs;
+    private final JobSchedule jobSchedule;
+    // Node.nanoTime() when each job was requested and when we took it (0 if not taken by us)
+    private final long[] requestedAt, takenAt;
+
+    /**
+     * @param self - the node index of this node (see ClusterMessage.nodeIndex)
+     */
+    JobDispatcher(int numFloors, int self, Node node) {
+        this.self = self;
+        this.node = node;
+        activeJobs = new JobTable(numFloors);
+        jobSchedule = new JobSchedule(activeJobs);
+        requestedAt = new long[activeJobs.size()];
+        takenAt = new long[activeJobs.size()];
+    }
+
+    public int getSelf() {
+        return self;
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    /**
+     * Lock-free check for a job that is waiting to be served - pending, or taken by another elevator
+     */
+    public boolean jobExists(int target) {
+        return activeJobs.jobExists(target);
+    }
+
+    /**
+     * A hall button was pressed at the source node (step 1) - schedule the job with our delay (steps 2 and 3)
+     * @return the delay (ms), or -1 if the car is standing at the floor already - the caller serves it at once
+     */
+    public long requested(int target, int source) {
+        if (node.isStoppedAt(Math.abs(target))) return -1;
+        long delay = delay(target, source == self);
+        addRequestToQueue(target, delay);
+        return delay;
+    }
+
+    /**
+     * Another node took the job (step 4.1)
+     * @return false if it was us (our own message coming back)
+     */
+    public boolean taken(int target, int owner) {
+        if (owner == self) return false;
+        markRequestTaken(target, owner);
+        return true;
+    }
+
+    /**
+     * The job was served (step 5)
+     */
+    public void completed(int target) {
+        cancelRequest(target);
+    }
+
+    /**
+     * Take the job (e.g. when passing by), unless someone else completed it or we took it already
+     * @return whether or not we got the job
+     */
+    public boolean takeRequest(int target) {
+        int slot = activeJobs.slotOf(target);
+        return slot >= 0 && takeLocally(slot);
+    }
+
+    private boolean takeLocally(int slot) {
+        if (!activeJobs.takeLocally(slot)) return false;
+        node.jobChanged(activeJobs, slot);
+        long now = node.nanoTime(), requested = requestedAt[slot];
+        takenAt[slot] = now;
+        node.jobTaken(activeJobs.targetOf(slot), requested != 0 ? now - requested : -1);
+        return true;
+    }
+
+    /**
+     * We opened the door for the job
+     * @return nanoseconds since we took it, or -1 if we hadn't
+     */
+    public long jobServed(int target) {
+        int slot = activeJobs.slotOf(target);
+        if (slot < 0) return -1;
+        long taken = takenAt[slot];
+        takenAt[slot] = 0;
+        return taken != 0 ? node.nanoTime() - taken : -1;
+    }
+
+    /**
+     * Take the job assigned to us by the HallCallAssigner right away, instead of waiting for its timer
+     * @return whether or not we got the job
+     */
+    public boolean claimRequest(int target) {
+        if (!takeRequest(target)) return false;
+        node.dispatch(target, TraceRecorder.DISPATCH_ASSIGNED, 0);
+        return true;
+    }
+
+    /**
+     * @param targets - filled with the targets of the pending jobs (nobody has taken them), in slot order
+     * @return the number of pending jobs
+     */
+    public int getPendingJobs(int[] targets) {
+        int count = 0;
+        for (int slot = 0; slot < activeJobs.size(); slot++)
+            if (JobTable.state(activeJobs.get(slot)) == JobTable.STATE_PENDING)
+                targets[count++] = activeJobs.targetOf(slot);
+        return count;
+    }
+
+    /**
+     * @return the number of jobs there can be - one per (floor, direction)
+     */
+    public int size() {
+        return activeJobs.size();
+    }
+
+    /**
+     * @return the slot of the job (0 to size() - 1), or -1 if there's no such floor
+     */
+    public int slotOf(int target) {
+        return activeJobs.slotOf(target);
+    }
+
+    private void addRequestToQueue(int target, long delay) {
+        // Start timer if not running, update remaining time if the new request wants an earlier action
+        int slot = activeJobs.slotOf(target);
+        if (slot < 0) return;
+        activeJobs.transition(slot, JobTable.STATE_PENDING, false);
+        node.jobChanged(activeJobs, slot);
+        long now = node.nanoTime();
+        requestedAt[slot] = now;
+        // Step 2: Update the timer
+        jobSchedule.schedule(slot, TimeUnit.MILLISECONDS.toNanos(delay), now);
+        node.scheduleChanged();
+    }
+
+    /**
+     * Somebody else took the job - give them JOB_TIMEOUT ms to complete it before we consider taking it over
+     * @param owner - the one that took it
+     */
+    private void markRequestTaken(int target, int owner) {
+        int slot = activeJobs.slotOf(target);
+        if (slot < 0) return;
+        activeJobs.setOwner(slot, owner);
+        activeJobs.transition(slot, JobTable.STATE_TAKEN, false);
+        node.jobChanged(activeJobs, slot);
+        jobSchedule.extend(slot, TimeUnit.MILLISECONDS.toNanos(Tuning.get().jobTimeout()), node.nanoTime());
+        node.scheduleChanged();
+    }
+
+    /**
+     * The node is suspected to have failed - put the jobs it took back up for grabs, as if they had just been requested
+     * @return how many there were
+     */
+    public int requeueJobsOf(int owner) {
+        long now = node.nanoTime();
+        int requeued = 0;
+        for (int slot = 0; slot < activeJobs.size(); slot++) {
+            long word = activeJobs.get(slot);
+            if (JobTable.state(word) != JobTable.STATE_TAKEN || JobTable.isLocal(word) || activeJobs.ownerOf(slot) != owner) continue;
+            // Unless it was completed or taken again in the meantime
+            if (!activeJobs.transition(slot, word, JobTable.STATE_PENDING, false)) continue;
+            node.jobChanged(activeJobs, slot);
+            node.jobRequeued(activeJobs.targetOf(slot));
+            requestedAt[slot] = now;
+            jobSchedule.schedule(slot, TimeUnit.MILLISECONDS.toNanos(delay(activeJobs.targetOf(slot), true)), now);
+            requeued++;
+        }
+        if (requeued == 0) return 0;
+        node.scheduleChanged();
+        node.jobsRequeued(owner, requeued);
+        return requeued;
+    }
+
+    /**
+     * The job is done (or about to be) - its timer is dropped lazily by the schedule
+     */
+    private void cancelRequest(int target) {
+        int slot = activeJobs.slotOf(target);
+        if (slot < 0) return;
+        long word;
+        do {
+            word = activeJobs.get(slot);
+            if (JobTable.state(word) == JobTable.STATE_NONE || JobTable.state(word) == JobTable.STATE_COMPLETED) return;
+        } while (!activeJobs.transition(slot, word, JobTable.STATE_COMPLETED, false));
+        node.jobChanged(activeJobs, slot);
+        node.scheduleChanged();
+    }
+
+    /**
+     * Make the job match the state the ReplicatedOrders agreed on, in case we missed the message that moved it there
+     * @param state - JobTable.STATE_PENDING, STATE_TAKEN or STATE_COMPLETED
+     * @param owner - the node that took it, for STATE_TAKEN
+     * @return whether the job had to be changed (the lamp should then be updated)
+     */
+    public boolean converge(int target, int state, int owner) {
+        int slot = activeJobs.slotOf(target);
+        if (slot < 0) return false;
+        long word = activeJobs.get(slot);
+        int current = JobTable.state(word);
+        boolean local = JobTable.isLocal(word);
+        switch (state) {
+            case JobTable.STATE_COMPLETED:
+                if (current == JobTable.STATE_NONE || current == JobTable.STATE_COMPLETED) return false;
+                cancelRequest(target);
+                return true;
+            case JobTable.STATE_TAKEN:
+                if (owner == self) // Taken by us before a restart, and we don't know of it any more
+                    return requeue(target, current, local);
+                if (current == JobTable.STATE_TAKEN && !local && activeJobs.ownerOf(slot) == owner) return false;
+                markRequestTaken(target, owner);
+                if (node.isSuspected(owner))
+                    requeueJobsOf(owner); // We missed its jobs being re-queued
+                return true;
+            case JobTable.STATE_PENDING:
+                return requeue(target, current, local);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Put the job up for grabs, unless it's pending already or we're on our way
+     * @return whether the job had to be changed
+     */
+    private boolean requeue(int target, int current, boolean local) {
+        if (current == JobTable.STATE_PENDING || (current == JobTable.STATE_TAKEN && local)) return false;
+        addRequestToQueue(target, delay(target, true));
+        return true;
+    }
+
+    /**
+     * Put back a job recovered at startup (see CommandDispatcher.restoreJob) - nothing is sent to the others
+     * @param state - JobTable.STATE_PENDING or STATE_TAKEN
+     * @param local - whether we had taken it
+     * @param owner - the node that had taken it, if not us
+     * @param delay - the delay of a pending job (ms)
+     * @return false if the job was restored already
+     */
+    public boolean restoreJob(int target, int state, boolean local, int owner, long delay) {
+        int slot = activeJobs.slotOf(target);
+        if (slot < 0 || JobTable.state(activeJobs.get(slot)) != JobTable.STATE_NONE) return false;
+        long now = node.nanoTime();
+        if (state == JobTable.STATE_TAKEN && local) {
+            activeJobs.transition(slot, JobTable.STATE_TAKEN, true);
+            takenAt[slot] = now;
+        } else if (state == JobTable.STATE_TAKEN) {
+            // Give the owner the usual time to complete it, in case it's still on its way
+            activeJobs.setOwner(slot, owner);
+            activeJobs.transition(slot, JobTable.STATE_TAKEN, false);
+            jobSchedule.extend(slot, TimeUnit.MILLISECONDS.toNanos(Tuning.get().jobTimeout()), now);
+        } else {
+            activeJobs.transition(slot, JobTable.STATE_PENDING, false);
+            requestedAt[slot] = now;
+            jobSchedule.schedule(slot, TimeUnit.MILLISECONDS.toNanos(delay), now);
+        }
+        node.jobChanged(activeJobs, slot);
+        return true;
+    }
+
+    /**
+     * Write the state, local flag and owner of every slot, for the ProcessPair: | state (1) | local (1) | owner (4) |
+     */
+    public void writeJobs(ByteBuffer buffer) {
+        for (int slot = 0; slot < activeJobs.size(); slot++) {
+            long word = activeJobs.get(slot);
+            buffer.put((byte) JobTable.state(word))
+                    .put((byte) (JobTable.isLocal(word) ? 1 : 0))
+                    .putInt(activeJobs.ownerOf(slot));
+        }
+    }
+
+    /**
+     * Re-estimate the delay of every pending job from where the car is now (step 3.1) - whenever it reaches a floor or
+     * runs out of things to do
+     */
+    public void recalculateJobCosts() {
+        long now = node.nanoTime();
+        for (int slot = 0; slot < activeJobs.size(); slot++) {
+            // Jobs taken by someone else keep their timeout
+            if (JobTable.state(activeJobs.get(slot)) != JobTable.STATE_PENDING) continue;
+            jobSchedule.schedule(slot, TimeUnit.MILLISECONDS.toNanos(delay(activeJobs.targetOf(slot), true)), now);
+        }
+        node.scheduleChanged();
+    }
+
+    /**
+     * The delay before taking the job, from the car's estimate (see CommandHandler.jobDelay) - JOB_TIMEOUT if there's
+     * no car to ask yet
+     * @param requestedHere - whether the button was pressed at this node. Once re-estimated, every job counts as
+     *                      requested here - the one who got there first has had its head start.
+     * @return the delay (ms)
+     */
+    public long delay(int target, boolean requestedHere) {
+        long estimate = node.estimateTimeToServe(target);
+        if (estimate < 0) return Tuning.get().jobTimeout();
+        return CommandHandler.jobDelay(estimate, requestedHere);
+    }
+
+    /**
+     * Dispatch the jobs whose delay has run out
+     * @return nanoseconds until the earliest deadline, or -1 if there are no jobs
+     */
+    public long dispatchDue(long now) {
+        int slot;
+        while ((slot = jobSchedule.pollDue(now)) >= 0) {
+            // Take the job, unless it was completed or taken by us in the meantime
+            if (takeLocally(slot))
+                node.dispatch(activeJobs.targetOf(slot), TraceRecorder.DISPATCH_TIMER, jobSchedule.lateness(slot, now));
+        }
+        return jobSchedule.nanosUntilNext(now);
+    }
+
+    /**
+     * @return nanoseconds until the earliest deadline, or -1 if there are no jobs
+     */
+    public long nanosUntilNext(long now) {
+        return jobSchedule.nanosUntilNext(now);
+    }
+}
@@ -0,0 +1,122 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.Arrays;
+
+/**
+ * Deadlines of the jobs in a JobTable, ordered by an indexed binary min-heap over the slot numbers.
+ *
+ * Cancelling is a state change in the JobTable (O(1)) - slots that are no longer scheduled there are dropped when they
+ * reach the head of the heap. Rescheduling moves the slot within the heap (O(log n)), and nothing is allocated after construction.
+ *
+ * All times are System.nanoTime() values, passed in by the caller. Not thread-safe - a schedule belongs to the thread
+ * running its dispatcher (the ControlLoop, or the simulation).
+ */
+class JobSchedule {
+    private final JobTable table;
+    private final long[] deadlines;
+    // heap[i] is a slot number, position[slot] its index in the heap (or -1 if not in the heap)
+    private final int[] heap, position;
+    private int heapSize = 0;
+
+    JobSchedule(JobTable table) {
+        this.table = table;
+        deadlines = new long[table.size()];
+        heap = new int[table.size()];
+        position = new int[table.size()];
+        Arrays.fill(position, -1);
+    }
+
+    /**
+     * Set the deadline of the slot, adding it to the heap or moving it within the heap
+     */
+    public void schedule(int slot, long delayNanos, long now) {
+        deadlines[slot] = now + delayNanos;
+        int index = position[slot];
+        if (index < 0) {
+            index = heapSize++;
+            heap[index] = slot;
+            position[slot] = index;
+        }
+        siftDown(siftUp(index));
+    }
+
+    /**
+     * Push the deadline of the slot back - counting from the current deadline if it's in the heap, from now otherwise
+     */
+    public void extend(int slot, long extraNanos, long now) {
+        long remaining = position[slot] < 0 ? 0 : Math.max(0, deadlines[slot] - now);
+        schedule(slot, remaining + extraNanos, now);
+    }
+
+    /**
+     * Remove and return the earliest slot if its deadline has passed
+     * @return the slot, or -1 if nothing is due
+     */
+    public int pollDue(long now) {
+        int first = peek();
+        if (first < 0 || deadlines[first] > now) return -1;
+        removeAt(0);
+        return first;
+    }
+
+    /**
+     * @return how long ago the deadline of the slot was (negative if it's still ahead), in nanoseconds
+     */
+    public long lateness(int slot, long now) {
+        return now - deadlines[slot];
+    }
+
+    /**
+     * @return nanoseconds until the earliest deadline, or -1 if there is nothing to wait for
+     */
+    public long nanosUntilNext(long now) {
+        int first = peek();
+        if (first < 0) return -1;
+        return Math.max(0, deadlines[first] - now);
+    }
+
+    private int peek() {
+        while (heapSize > 0 && !table.isScheduled(heap[0]))
+            removeAt(0);
+        return heapSize > 0 ? heap[0] : -1;
+    }
+
+    private void removeAt(int index) {
+        int slot = heap[index];
+        position[slot] = -1;
+        heapSize--;
+        if (index == heapSize) return;
+        heap[index] = heap[heapSize];
+        position[heap[index]] = index;
+        siftDown(siftUp(index));
+    }
+
+    private int siftUp(int index) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (deadlines[heap[parent]] <= deadlines[heap[index]]) break;
+            swap(index, parent);
+            index = parent;
+        }
+        return index;
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= heapSize) return;
+            if (child + 1 < heapSize && deadlines[heap[child + 1]] < deadlines[heap[child]]) child++;
+            if (deadlines[heap[index]] <= deadlines[heap[child]]) return;
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int slot = heap[a];
+        heap[a] = heap[b];
+        heap[b] = slot;
+        position[heap[a]] = a;
+        position[heap[b]] = b;
+    }
+}
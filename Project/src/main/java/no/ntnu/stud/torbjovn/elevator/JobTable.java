@@ -0,0 +1,136 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * State of every hall call in the system, with one slot per (floor, direction).
+ *
+ * Each slot is a single long: | version (32 bits) | unused | local flag (1 bit) | state (8 bits) |
+ * Every transition bumps the version and is done with compare-and-set, so threads racing on the same job can't overwrite
+ * each other's updates, and reading whether a job exists never blocks.
+ *
+ * Slots go PENDING (requested, nobody has taken it) -> TAKEN (an elevator is on its way) -> COMPLETED, and back to PENDING
+ * the next time someone presses the button. The local flag marks jobs taken by this elevator, and the owner of a job
+ * taken by another elevator is kept next to the slot (so its jobs can be found if it fails).
+ */
+class JobTable {
+    public static final int STATE_NONE = 0,
+            STATE_PENDING = 1,
+            STATE_TAKEN = 2,
+            STATE_COMPLETED = 3;
+
+    private static final long STATE_MASK = 0xff,
+            LOCAL_FLAG = 0x100;
+
+    private final int numFloors;
+    private final AtomicLongArray slots;
+    private final AtomicIntegerArray owners;
+
+    JobTable(int numFloors) {
+        this.numFloors = numFloors;
+        slots = new AtomicLongArray(numFloors * 2);
+        owners = new AtomicIntegerArray(numFloors * 2);
+    }
+
+    public int size() {
+        return slots.length();
+    }
+
+    /**
+     * @param target - the floor (1-indexed) with the sign indicating the direction
+     * @return the slot index, or -1 if the target is invalid
+     */
+    public int slotOf(int target) {
+        if (target == 0 || Math.abs(target) > numFloors) return -1;
+        return target > 0 ? target - 1 : numFloors - target - 1;
+    }
+
+    public int targetOf(int slot) {
+        return slot < numFloors ? slot + 1 : -(slot - numFloors + 1);
+    }
+
+    public static int state(long word) {
+        return (int) (word & STATE_MASK);
+    }
+
+    public static boolean isLocal(long word) {
+        return (word & LOCAL_FLAG) != 0;
+    }
+
+    public static int version(long word) {
+        return (int) (word >>> 32);
+    }
+
+    private static long next(long word, int state, boolean local) {
+        return ((long) (version(word) + 1) << 32) | (local ? LOCAL_FLAG : 0) | state;
+    }
+
+    public long get(int slot) {
+        return slots.get(slot);
+    }
+
+    /**
+     * @return the node (see ClusterMessage.nodeIndex) that last took the job in the slot, if it was taken by someone else
+     */
+    public int ownerOf(int slot) {
+        return owners.get(slot);
+    }
+
+    public void setOwner(int slot, int node) {
+        owners.set(slot, node);
+    }
+
+    /**
+     * Whether a job is waiting to be served by someone - pending, or taken by another elevator
+     */
+    public boolean jobExists(int target) {
+        int slot = slotOf(target);
+        return slot >= 0 && isScheduled(slots.get(slot));
+    }
+
+    /**
+     * Whether the slot has a job with a running timer (pending, or taken by another elevator)
+     */
+    public boolean isScheduled(int slot) {
+        return isScheduled(slots.get(slot));
+    }
+
+    public static boolean isScheduled(long word) {
+        return state(word) == STATE_PENDING || (state(word) == STATE_TAKEN && !isLocal(word));
+    }
+
+    /**
+     * Take the job for this elevator, if it's still waiting to be served
+     * @return false if the job doesn't exist, or was completed or taken by us before we got to it
+     */
+    public boolean takeLocally(int slot) {
+        long word;
+        do {
+            word = slots.get(slot);
+            if (!isScheduled(word)) return false;
+        } while (!slots.compareAndSet(slot, word, next(word, STATE_TAKEN, true)));
+        return true;
+    }
+
+    /**
+     * Unconditionally move the slot to the given state
+     * @return the new slot word
+     */
+    public long transition(int slot, int state, boolean local) {
+        long word, updated;
+        do {
+            word = slots.get(slot);
+            updated = next(word, state, local);
+        } while (!slots.compareAndSet(slot, word, updated));
+        return updated;
+    }
+
+    /**
+     * Move the slot to the given state, but only if nobody has touched it since it was read as 'expected'
+     * @return whether or not the transition happened
+     */
+    public boolean transition(int slot, long expected, int state, boolean local) {
+        return slots.compareAndSet(slot, expected, next(expected, state, local));
+    }
+}
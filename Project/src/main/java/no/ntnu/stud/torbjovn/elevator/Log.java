@@ -0,0 +1,378 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Leveled logger for the control threads. Logging only stores the format string (a constant), the level, the time and
+ * up to MAX_ARGS numbers in a preallocated ring buffer - nothing is formatted, allocated or written by the caller.
+ * The LogWriter thread formats the entries and writes them to 'log_file' (default elevator.log), and to the console
+ * unless 'log_console' is false. If the writer falls behind and the buffer fills up, new entries are dropped (and counted).
+ *
+ * Placeholders in the format: {} is replaced by the next number, {ip} by the next number as a node name
+ * (see ClusterMessage.nodeName). Anything else - exceptions, strings - goes in the single object argument, which
+ * replaces the first other named placeholder (e.g. {key}), or is written at the end if there is none.
+ *
+ * The level is read from 'log_level' (DEBUG, INFO, WARN or ERROR - default INFO). Motion tracing (TRACE entries, e.g.
+ * every motor command and floor sensor change) is switched on and off separately, with 'log_motion' (default false).
+ * Both can be changed at runtime through the LogControlMBean.
+ *
+ * The ring works like the OutboundQueue: each cell has a sequence number saying whether it's free or ready to read.
+ */
+class Log {
+    public static final int TRACE = 0,
+            DEBUG = 1,
+            INFO = 2,
+            WARN = 3,
+            ERROR = 4;
+    private static final String[] LEVEL_NAMES = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR"};
+    public static final int MAX_ARGS = 3,
+            DEFAULT_CAPACITY = 4096,
+            DRAIN_INTERVAL = 10; // ms the writer sleeps when there is nothing to write
+
+    private static volatile int level = parseLevel(Settings.getSetting("log_level", "INFO"), INFO);
+    private static volatile boolean motionTrace = Boolean.parseBoolean(Settings.getSetting("log_motion", "false").trim());
+
+    private static final int mask;
+    private static final AtomicLongArray sequences;
+    private static final byte[] levels;
+    private static final long[] times, args;
+    private static final String[] formats;
+    private static final Object[] objects;
+    private static final AtomicLong tail = new AtomicLong(), dropped = new AtomicLong();
+
+    static {
+        int capacity;
+        try {
+            capacity = Integer.parseInt(Settings.getSetting("log_buffer", String.valueOf(DEFAULT_CAPACITY)).trim());
+        } catch (NumberFormatException e) {
+            capacity = DEFAULT_CAPACITY;
+        }
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        levels = new byte[size];
+        times = new long[size];
+        args = new long[size * MAX_ARGS];
+        formats = new String[size];
+        objects = new Object[size];
+
+        final LogWriter writer = new LogWriter();
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread("LogFlush") {
+            @Override
+            public void run() {
+                writer.drain();
+            }
+        });
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new Control(), LogControlMBean.class), new ObjectName("no.ntnu.stud.torbjovn.elevator:type=Log"));
+        } catch (Exception e) {
+            System.out.println("Failed to register the log control MBean: " + e.getMessage());
+        }
+    }
+
+    private Log() {}
+
+    static int parseLevel(String name, int defaultLevel) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++)
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name.trim())) return i;
+        return defaultLevel;
+    }
+
+    public static boolean isEnabled(int entryLevel) {
+        return entryLevel >= level;
+    }
+
+    public static boolean isMotionTraceEnabled() {
+        return motionTrace;
+    }
+
+    public static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    public static void setMotionTrace(boolean enabled) {
+        motionTrace = enabled;
+    }
+
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Store an entry for the writer - never blocks
+     */
+    public static void log(int entryLevel, String format, long a, long b, long c, Object object) {
+        if (entryLevel >= level) store(entryLevel, format, a, b, c, object);
+    }
+
+    private static void store(int entryLevel, String format, long a, long b, long c, Object object) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    levels[index] = (byte) entryLevel;
+                    times[index] = System.currentTimeMillis();
+                    formats[index] = format;
+                    objects[index] = object;
+                    args[index * MAX_ARGS] = a;
+                    args[index * MAX_ARGS + 1] = b;
+                    args[index * MAX_ARGS + 2] = c;
+                    sequences.set(index, position + 1);
+                    return;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.incrementAndGet(); // Full
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Motion tracing - only stored if switched on (see the class description)
+     */
+    public static void trace(String format, long a, long b) {
+        if (motionTrace) store(TRACE, format, a, b, 0, null);
+    }
+
+    public static void trace(String format, long a) {
+        if (motionTrace) store(TRACE, format, a, 0, 0, null);
+    }
+
+    public static void debug(String format) {
+        log(DEBUG, format, 0, 0, 0, null);
+    }
+
+    public static void debug(String format, long a) {
+        log(DEBUG, format, a, 0, 0, null);
+    }
+
+    public static void debug(String format, long a, long b) {
+        log(DEBUG, format, a, b, 0, null);
+    }
+
+    public static void debug(String format, long a, long b, long c) {
+        log(DEBUG, format, a, b, c, null);
+    }
+
+    public static void info(String format) {
+        log(INFO, format, 0, 0, 0, null);
+    }
+
+    public static void info(String format, long a) {
+        log(INFO, format, a, 0, 0, null);
+    }
+
+    public static void info(String format, long a, long b) {
+        log(INFO, format, a, b, 0, null);
+    }
+
+    public static void info(String format, long a, long b, long c) {
+        log(INFO, format, a, b, c, null);
+    }
+
+    public static void info(String format, long a, long b, Object object) {
+        log(INFO, format, a, b, 0, object);
+    }
+
+    public static void warn(String format) {
+        log(WARN, format, 0, 0, 0, null);
+    }
+
+    public static void warn(String format, long a) {
+        log(WARN, format, a, 0, 0, null);
+    }
+
+    public static void warn(String format, long a, long b) {
+        log(WARN, format, a, b, 0, null);
+    }
+
+    public static void warn(String format, Object object) {
+        log(WARN, format, 0, 0, 0, object);
+    }
+
+    /**
+     * @param thrown - its stack trace is written after the message
+     */
+    public static void error(String format, Throwable thrown) {
+        log(ERROR, format, 0, 0, 0, thrown);
+    }
+
+    /**
+     * Formats and writes out the entries. Only this thread (and the shutdown hook, once it has stopped mattering)
+     * reads the ring, so the formatting state is reused freely.
+     */
+    private static class LogWriter extends Thread {
+        private final StringBuilder line = new StringBuilder(256);
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        private final Date date = new Date();
+        private final boolean console = !"false".equalsIgnoreCase(Settings.getSetting("log_console", "true").trim());
+        private Writer file = null;
+        private long head = 0;
+
+        LogWriter() {
+            super("LogWriter");
+            setDaemon(true);
+            String fileName = Settings.getSetting("log_file", "elevator.log");
+            try {
+                file = new OutputStreamWriter(new FileOutputStream(fileName, true), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                System.out.println("Failed to open log file " + fileName + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (drain() == 0)
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(DRAIN_INTERVAL));
+            }
+        }
+
+        /**
+         * Write out everything stored so far
+         * @return the number of entries written
+         */
+        synchronized int drain() {
+            int count = 0;
+            while (true) {
+                int index = (int) head & mask;
+                if (sequences.get(index) != head + 1) break;
+                format(index);
+                objects[index] = null;
+                sequences.lazySet(index, head + mask + 1);
+                head++;
+                count++;
+                write();
+            }
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                line.setLength(0);
+                line.append("WARN  log buffer full, ").append(lost).append(" entries dropped\n");
+                write();
+            }
+            if (count > 0 || lost > 0) flush();
+            return count;
+        }
+
+        private void format(int index) {
+            line.setLength(0);
+            date.setTime(times[index]);
+            line.append(timeFormat.format(date)).append(' ').append(LEVEL_NAMES[levels[index]]);
+            for (int pad = LEVEL_NAMES[levels[index]].length(); pad < 6; pad++)
+                line.append(' ');
+            String format = formats[index];
+            Object object = objects[index];
+            boolean objectPlaced = object == null || object instanceof Throwable; // A stack trace only goes at the end
+            int arg = 0;
+            for (int i = 0; i < format.length(); i++) {
+                char character = format.charAt(i);
+                if (character == '{') {
+                    if (arg < MAX_ARGS && format.startsWith("{}", i)) {
+                        line.append(args[index * MAX_ARGS + arg++]);
+                        i++;
+                        continue;
+                    }
+                    if (arg < MAX_ARGS && format.startsWith("{ip}", i)) {
+                        line.append(ClusterMessage.nodeName((int) args[index * MAX_ARGS + arg++]));
+                        i += 3;
+                        continue;
+                    }
+                    int end = nameEnd(format, i + 1);
+                    if (!objectPlaced && end > i + 1 && end < format.length() && format.charAt(end) == '}') {
+                        line.append(object);
+                        objectPlaced = true;
+                        i = end;
+                        continue;
+                    }
+                }
+                line.append(character);
+            }
+            if (object instanceof Throwable) {
+                StringWriter trace = new StringWriter();
+                ((Throwable) object).printStackTrace(new PrintWriter(trace));
+                line.append(": ").append(trace.toString().trim());
+            } else if (object != null && !objectPlaced) {
+                line.append(' ').append(object);
+            }
+            line.append('\n');
+        }
+
+        /**
+         * @return the index after the letters starting at 'start' (a placeholder's name)
+         */
+        private static int nameEnd(String format, int start) {
+            int end = start;
+            while (end < format.length() && Character.isLetter(format.charAt(end))) end++;
+            return end;
+        }
+
+        private void write() {
+            if (console)
+                System.out.print(line);
+            if (file == null) return;
+            try {
+                file.append(line);
+            } catch (IOException e) {
+                System.out.println("Failed to write to the log file, giving up on it: " + e.getMessage());
+                file = null;
+            }
+        }
+
+        private void flush() {
+            if (file == null) return;
+            try {
+                file.flush();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static class Control implements LogControlMBean {
+        @Override
+        public String getLevel() {
+            return LEVEL_NAMES[level];
+        }
+
+        @Override
+        public void setLevel(String name) {
+            Log.setLevel(parseLevel(name, level));
+        }
+
+        @Override
+        public boolean isMotionTrace() {
+            return motionTrace;
+        }
+
+        @Override
+        public void setMotionTrace(boolean enabled) {
+            Log.setMotionTrace(enabled);
+        }
+
+        @Override
+        public long getDropped() {
+            return dropped.get();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+/**
+ * Runtime control of the Log, registered with the platform MBean server as no.ntnu.stud.torbjovn.elevator:type=Log
+ * (e.g. to switch motion tracing on from jconsole while the elevator is running)
+ */
+public interface LogControlMBean {
+    String getLevel();
+
+    void setLevel(String level);
+
+    boolean isMotionTrace();
+
+    void setMotionTrace(boolean enabled);
+
+    long getDropped();
+}
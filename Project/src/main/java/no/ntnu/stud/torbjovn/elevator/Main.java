@@ -1,36 +1,109 @@
 package no.ntnu.stud.torbjovn.elevator;
 
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 /**
  * Created by tovine on 4/11/16.
  */
 public class Main {
-    private static Elevator elevator = new Elevator();
-    private static CommandDispatcher dispatcherThread = new CommandDispatcher();
+    private static volatile Elevator elevator = null;
 
+    /**
+     * @return the elevator, or null while it's still starting up
+     */
     public static Elevator getElevator() {
         return elevator;
     }
 
+    /**
+     * @param args - 'standby' to run as the hot standby for the elevator on this computer (see ProcessPair)
+     */
     public static void main(String[] args) {
+        if (args.length > 0 && ProcessPair.ARG_STANDBY.equalsIgnoreCase(args[0]))
+            ProcessPair.standBy(); // Returns once the primary is gone
+
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
                 try {
                     Networking.shutdown();
-                    elevator.stopElevator();
+                    if (elevator != null) elevator.stopElevator();
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
         });
 
-        dispatcherThread.start();
+        // The network (e.g. booting the broker) and the elevator (loading the library, initializing the driver and
+        // finding our floor) are brought up in parallel. Messages are only handled once both are ready.
+        StartupPipeline startup = new StartupPipeline();
+        final String transportName = Networking.getTransportName();
+        Future<Void> network = startup.phase("transport (" + transportName + ")", new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Networking.start(transportName);
+                return null;
+            }
+        });
+        Future<Void> nativeLibrary = startup.phase("native library", new Callable<Void>() {
+            @Override
+            public Void call() {
+                if (Elevator.usesNativeLibrary())
+                    NativeDriver.loadLibrary();
+                return null;
+            }
+        });
+        final Future<ElevatorDriver> driver = startup.phase("driver", new Callable<ElevatorDriver>() {
+            @Override
+            public ElevatorDriver call() {
+                return Elevator.initDriver();
+            }
+        }, nativeLibrary);
+        Future<Elevator> homedElevator = startup.phase("elevator (homing)", new Callable<Elevator>() {
+            @Override
+            public Elevator call() throws Exception {
+                return new Elevator(driver.get());
+            }
+        }, driver);
+
         try {
-            Networking.init();
-        } catch (Exception e) {
-            System.out.println("Exception when trying to initialize Networking module: " + e.getMessage());
-            elevator.stopElevator();
+            elevator = homedElevator.get();
+            // From here on the elevator and the orders are only touched by the ControlLoop
+            final Transport.Receiver receiver = ControlLoop.start(elevator, new CommandHandler());
+            new HallCallAssigner.StatePublisher().start();
+            if (ReplicatedOrders.ENABLED)
+                new ReplicatedOrders.SyncPublisher().start();
+            new FailureDetector.Monitor().start();
+            if (Tuning.WATCH)
+                new Tuning.Watcher().start();
+            startup.phase("listen", new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Networking.listen(receiver);
+                    return null;
+                }
+            }, network).get();
+        } catch (ExecutionException | InterruptedException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.out.println("Exception during startup: " + cause.getMessage());
+            if (elevator != null) elevator.stopElevator();
             System.exit(1);
         }
+        startup.finish();
+        if (ProcessPair.isEnabled()) {
+            try {
+                new ProcessPair.Heartbeat().start();
+            } catch (IOException e) {
+                Log.error("Failed to start the heartbeat to the standby", e);
+            }
+        }
+        try {
+            Metrics.startEndpoint();
+        } catch (IOException e) {
+            Log.error("Failed to start the metrics endpoint", e);
+        }
     }
 }
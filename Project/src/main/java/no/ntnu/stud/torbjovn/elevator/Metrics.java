@@ -0,0 +1,210 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * The latency histograms and counters of this node, exposed through JMX (no.ntnu.stud.torbjovn.elevator:type=Histogram
+ * and type=Gauge) and as plain text on http://127.0.0.1:<metrics_port>/metrics (default port 9464, 0 to disable),
+ * in the Prometheus text format so it can be scraped as it is.
+ *
+ * The histograms and counters are static, recorded into directly by the classes they measure.
+ */
+class Metrics {
+    public static final int DEFAULT_PORT = 9464;
+    private static final String PREFIX = "elevator_",
+            DOMAIN = "no.ntnu.stud.torbjovn.elevator";
+
+    private static final List<Histogram> histograms = new CopyOnWriteArrayList<>();
+    private static final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    /**
+     * A value read when the metrics are collected
+     */
+    abstract static class Gauge implements GaugeMBean {
+        String name, help;
+    }
+
+    /**
+     * A gauge counting events - increment() is a single atomic add
+     */
+    static class Counter extends Gauge {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        @Override
+        public long getValue() {
+            return value.get();
+        }
+    }
+
+    public static final Histogram REQUEST_TO_TAKE = histogram("request_to_take_us",
+            "Time from a hall call reaching this node until this node takes it"),
+            TAKE_TO_ARRIVAL = histogram("take_to_arrival_us",
+                    "Time from this node taking a hall call until it opens the door there"),
+            MESSAGE_LATENCY = histogram("message_latency_us",
+                    "Time from a message being queued by the sender until it's handled here (ms resolution, clocks may differ between nodes)"),
+            JNI_INPUT_SNAPSHOT = histogram("jni_input_snapshot_ns", "Duration of the native input snapshot call"),
+            JNI_OUTPUT = histogram("jni_output_ns", "Duration of the native calls setting the motor and lamps (one per batch of outputs)"),
+            TRANSPORT_SEND = histogram("transport_send_us", "Duration of handing a batch of messages to the transport"),
+            DISPATCHER_LATENESS = histogram("dispatcher_lateness_us",
+                    "How late the CommandDispatcher handles a job timer, compared to its deadline"),
+            CONTROL_LOOP_LATENCY = histogram("control_loop_latency_us",
+                    "Time from an event being handed to the ControlLoop until it has been handled");
+
+    public static final Counter MESSAGES_RECEIVED = counter("messages_received", "Messages handled by this node"),
+            JOBS_TAKEN = counter("jobs_taken", "Hall calls taken by this node"),
+            ORDER_REPAIRS = counter("order_repairs", "Hall calls brought in line by the ReplicatedOrders after a missed message"),
+            OUTPUTS_SUPPRESSED = counter("outputs_suppressed", "Writes to the motor and lamps dropped because they wouldn't change anything");
+
+    static {
+        gauge("messages_sent", "Messages sent by this node", new Gauge() {
+            @Override
+            public long getValue() {
+                return Networking.getMessagesSent();
+            }
+        });
+        gauge("messages_dropped", "Messages dropped because the outbound queue was full", new Gauge() {
+            @Override
+            public long getValue() {
+                return Networking.getMessagesDropped();
+            }
+        });
+        gauge("peer_suspicions", "Times a peer was suspected to have failed", new Gauge() {
+            @Override
+            public long getValue() {
+                return FailureDetector.getSuspicions();
+            }
+        });
+        gauge("peer_false_suspicions", "Suspected peers heard from again shortly after", new Gauge() {
+            @Override
+            public long getValue() {
+                return FailureDetector.getFalsePositives();
+            }
+        });
+        gauge("failure_detection_mean_ms", "Mean time from the last message of a peer until it was suspected", new Gauge() {
+            @Override
+            public long getValue() {
+                return FailureDetector.getMeanDetectionMillis();
+            }
+        });
+        gauge("failure_detection_max_ms", "Longest time from the last message of a peer until it was suspected", new Gauge() {
+            @Override
+            public long getValue() {
+                return FailureDetector.getMaxDetectionMillis();
+            }
+        });
+        gauge("log_dropped", "Log entries dropped because the log buffer was full", new Gauge() {
+            @Override
+            public long getValue() {
+                return Log.getDropped();
+            }
+        });
+        gauge("takeover_ms", "Time from the primary's last heartbeat until this standby had the hardware, -1 if it didn't take over", new Gauge() {
+            @Override
+            public long getValue() {
+                return ProcessPair.getTakeoverMillis();
+            }
+        });
+    }
+
+    private static HttpServer server = null;
+
+    private Metrics() {}
+
+    static Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram(name, help);
+        histograms.add(histogram);
+        register(new StandardMBean(histogram, HistogramMBean.class, false), "Histogram", name);
+        return histogram;
+    }
+
+    static Counter counter(String name, String help) {
+        return gauge(name, help, new Counter());
+    }
+
+    static <T extends Gauge> T gauge(String name, String help, T gauge) {
+        gauge.name = name;
+        gauge.help = help;
+        gauges.add(gauge);
+        register(new StandardMBean(gauge, GaugeMBean.class, false), "Gauge", name);
+        return gauge;
+    }
+
+    private static void register(Object mbean, String type, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(mbean, new ObjectName(DOMAIN + ":type=" + type + ",name=" + name));
+        } catch (Exception e) {
+            System.out.println("Failed to register MBean for metric " + name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write every metric in the Prometheus text format - histograms as summaries with the 0.5, 0.9 and 0.99 quantiles
+     */
+    static String render() {
+        StringBuilder text = new StringBuilder(4096);
+        for (Histogram histogram : histograms) {
+            String name = PREFIX + histogram.getName();
+            text.append("# HELP ").append(name).append(' ').append(histogram.getHelp()).append('\n')
+                    .append("# TYPE ").append(name).append(" summary\n");
+            text.append(name).append("{quantile=\"0.5\"} ").append(histogram.getP50()).append('\n')
+                    .append(name).append("{quantile=\"0.9\"} ").append(histogram.getP90()).append('\n')
+                    .append(name).append("{quantile=\"0.99\"} ").append(histogram.getP99()).append('\n')
+                    .append(name).append("_sum ").append(histogram.getSum()).append('\n')
+                    .append(name).append("_count ").append(histogram.getCount()).append('\n')
+                    .append(name).append("_max ").append(histogram.getMax()).append('\n');
+        }
+        for (Gauge gauge : gauges) {
+            String name = PREFIX + gauge.name;
+            text.append("# HELP ").append(name).append(' ').append(gauge.help).append('\n')
+                    .append("# TYPE ").append(name).append(gauge instanceof Counter ? " counter\n" : " gauge\n")
+                    .append(name).append(' ').append(gauge.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Start serving /metrics on the loopback interface, if 'metrics_port' isn't 0
+     */
+    public static synchronized void startEndpoint() throws IOException {
+        int port;
+        try {
+            port = Integer.parseInt(Settings.getSetting("metrics_port", String.valueOf(DEFAULT_PORT)).trim());
+        } catch (NumberFormatException e) {
+            port = DEFAULT_PORT;
+        }
+        if (port == 0 || server != null) return;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream output = exchange.getResponseBody();
+                output.write(body);
+                output.close();
+            }
+        });
+        server.start(); // Handled on the server's own (single) thread
+        Log.info("Metrics available on http://127.0.0.1:{}/metrics", port);
+    }
+}
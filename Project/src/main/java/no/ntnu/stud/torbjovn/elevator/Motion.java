@@ -0,0 +1,291 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves a car through its itinerary, re-planning at every floor - a state machine driven by its owner (floors reached,
+ * the door timer, itinerary changes), so nothing here ever waits.
+ *
+ * The car comes through a Car - the clock, the motor and the lamps, and what the rest of the node does around the moves
+ * (taking calls when passing by, completing the ones served) - so the Elevator and every car of the BuildingSimulator
+ * run the same steps. Called on one thread (the ControlLoop); the estimates and the state may be read from others.
+ */
+class Motion {
+    /**
+     * What the Motion needs from the car it moves, and the node around it
+     */
+    interface Car {
+        /**
+         * @return the current time, in System.nanoTime() units
+         */
+        long nanoTime();
+
+        /**
+         * @return the floor sensor reading, with 1 being the lowest and 0 between floors
+         */
+        int getCurrentFloor();
+
+        boolean doorObstructed();
+
+        int getMotorDirection();
+
+        void setMotorDirection(int direction);
+
+        void setFloorIndicator(int floor);
+
+        void setDoorOpenLamp(int value);
+
+        /**
+         * @param floor - 0-indexed
+         */
+        void setButtonLamp(int button, int floor, int value);
+
+        /**
+         * @param cabCallsLeft - whether anyone in the cabin has a stop left to go to
+         * @return how long to keep the door open (ns)
+         */
+        long doorTime(boolean cabCallsLeft);
+
+        /**
+         * Passing the floor without stopping - take a pending call in our direction, if nobody has taken it yet
+         */
+        void passingFloor(int floor, int direction);
+
+        /**
+         * The door is opening at the floor - the stops there are cleared, complete the hall call
+         */
+        void floorServed(int floor, int direction);
+
+        /**
+         * We reached a floor or ran out of stops - the estimates for the pending calls have changed
+         */
+        void positionChanged();
+    }
+
+    private static final int IDLE = 0,
+            HOMING = 1, // Going down to the nearest floor, after being stopped between floors
+            MOVING = 2,
+            DOOR_OPEN = 3;
+
+    private final Car car;
+    private final Itinerary itinerary;
+    private final EtaEstimator etaEstimator;
+
+    // Read by estimateTimeToServe from other threads
+    private volatile int mDirection = Elevator.DIR_STOP, lastFloor;
+    // When we left (or passed) lastFloor - the start of the segment we're travelling
+    private volatile long segmentStart;
+    private volatile boolean busy = false;
+    private int state = IDLE;
+    // Car.nanoTime() when the door was opened, and when it may close
+    private long doorOpened, doorCloses;
+
+    Motion(Car car, Itinerary itinerary, EtaEstimator etaEstimator) {
+        this.car = car;
+        this.itinerary = itinerary;
+        this.etaEstimator = etaEstimator;
+    }
+
+    /**
+     * @return whether there's a stop we're serving (false when idle)
+     */
+    public boolean isBusy() {
+        return busy;
+    }
+
+    public boolean isMoving() {
+        return state == MOVING || state == HOMING;
+    }
+
+    public boolean isDoorOpen() {
+        return state == DOOR_OPEN;
+    }
+
+    /**
+     * @return the floor we're at, or passed last
+     */
+    public int getLastFloor() {
+        return lastFloor;
+    }
+
+    /**
+     * @return the direction we're serving
+     */
+    public int getDirection() {
+        return mDirection;
+    }
+
+    /**
+     * @return Car.nanoTime() when we left (or passed) the last floor
+     */
+    public long getSegmentStart() {
+        return segmentStart;
+    }
+
+    /**
+     * @return Car.nanoTime() when the door may close
+     */
+    public long getDoorCloses() {
+        return doorCloses;
+    }
+
+    /**
+     * Estimate how long it would take us to serve the hall call, along the route we're already on
+     * @param target - the floor (1-indexed) with the sign indicating the direction
+     * @return the estimated time until we could stop there, in ms
+     */
+    public long estimateTimeToServe(int target) {
+        int floor, direction = mDirection;
+        boolean moving = false;
+        long elapsed = 0;
+        if (busy && lastFloor > 0) {
+            floor = lastFloor;
+            moving = car.getMotorDirection() != Elevator.DIR_STOP;
+            elapsed = car.nanoTime() - segmentStart;
+        } else {
+            floor = car.getCurrentFloor();
+            direction = Elevator.DIR_STOP;
+        }
+        if (floor == 0) // Between floors and not serving anything - we don't know where we are
+            return TimeUnit.NANOSECONDS.toMillis(etaEstimator.travelTime(1, Elevator.DIR_UP) * itinerary.getNumFloors());
+        return TimeUnit.NANOSECONDS.toMillis(etaEstimator.timeToServe(itinerary, floor, direction, moving, elapsed, target));
+    }
+
+    /**
+     * Fill in what the others need to know to assign hall calls to us (see HallCallAssigner)
+     * @return false if we don't know where we are (between floors and not serving anything)
+     */
+    public boolean captureState(CarState state) {
+        state.direction = mDirection;
+        state.moving = false;
+        if (busy && lastFloor > 0) {
+            state.floor = lastFloor;
+            state.moving = car.getMotorDirection() != Elevator.DIR_STOP;
+        } else {
+            state.floor = car.getCurrentFloor();
+            state.direction = Elevator.DIR_STOP;
+        }
+        if (state.floor == 0) return false;
+        state.travelTime = (int) TimeUnit.NANOSECONDS.toMillis(etaEstimator.averageTravelTime());
+        state.dwellTime = (int) TimeUnit.NANOSECONDS.toMillis(etaEstimator.dwellTime());
+        itinerary.copyTo(state.itinerary);
+        return true;
+    }
+
+    /**
+     * Start moving if we're idle and there's somewhere to go
+     */
+    public void itineraryChanged() {
+        if (state != IDLE || itinerary.isEmpty()) return;
+        busy = true;
+        lastFloor = car.getCurrentFloor();
+        // If elevator is between floors (we don't know its current location), go down to the nearest one
+        if (lastFloor == 0) {
+            state = HOMING;
+            car.setMotorDirection(Elevator.DIR_DOWN);
+            return;
+        }
+        plan();
+    }
+
+    public void floorReached(int floor) {
+        if (state == HOMING) {
+            car.setMotorDirection(Elevator.DIR_STOP);
+            lastFloor = floor;
+            car.setFloorIndicator(floor);
+            plan();
+        } else if (state == MOVING && floor != lastFloor) {
+            int previousFloor = lastFloor;
+            lastFloor = floor;
+            long arrived = car.nanoTime();
+            etaEstimator.recordTravel(previousFloor, lastFloor, arrived - segmentStart);
+            segmentStart = arrived;
+            car.setFloorIndicator(lastFloor);
+            // Pick up pending requests in our direction on the way, if nobody has taken them yet
+            if (!itinerary.shouldStopAt(lastFloor, mDirection))
+                car.passingFloor(lastFloor, mDirection);
+            // We're somewhere else now - the estimated time to serve the pending jobs has changed
+            car.positionChanged();
+            plan();
+        }
+    }
+
+    /**
+     * @return nanoseconds until the door may close, or -1 if there's nothing to wait for
+     */
+    public long runTimers(long now) {
+        if (state != DOOR_OPEN) return -1;
+        if (now - doorCloses < 0) return doorCloses - now;
+        // Wait for the obstruction to be removed - the owner comes back here when it changes
+        if (car.doorObstructed()) return -1;
+        car.setDoorOpenLamp(0);
+        etaEstimator.recordDwell(now - doorOpened);
+        plan();
+        return state == DOOR_OPEN ? doorCloses - now : -1;
+    }
+
+    /**
+     * Decide what to do next at lastFloor - open the door, move on, or stop
+     */
+    private void plan() {
+        // Serve the current floor if someone is waiting here to go our way (or if we're turning around here)
+        if (itinerary.shouldStopAt(lastFloor, mDirection)) {
+            mDirection = itinerary.serviceDirection(lastFloor, mDirection);
+            openDoor();
+            return;
+        }
+        int nextDirection = itinerary.nextDirection(lastFloor, mDirection);
+        if (nextDirection == Elevator.DIR_STOP) {
+            finish(); // Nothing left to do
+            return;
+        }
+        mDirection = nextDirection;
+        if (car.getMotorDirection() != mDirection) {
+            if (car.getMotorDirection() == Elevator.DIR_STOP)
+                segmentStart = car.nanoTime(); // Starting from standstill
+            car.setMotorDirection(mDirection);
+        }
+        state = MOVING;
+    }
+
+    private void finish() {
+        if (car.getMotorDirection() != Elevator.DIR_STOP)
+            car.setMotorDirection(Elevator.DIR_STOP);
+        mDirection = Elevator.DIR_STOP;
+        state = IDLE;
+        busy = false;
+        car.positionChanged();
+        // In case a stop was added that the direction we had made us skip
+        itineraryChanged();
+    }
+
+    /**
+     * Stop button - stop if moving (an open door closes as usual). The stops are dropped by the caller, first.
+     */
+    public void stop() {
+        if (state == MOVING || state == HOMING)
+            finish();
+        else if (car.getMotorDirection() != Elevator.DIR_STOP)
+            car.setMotorDirection(Elevator.DIR_STOP);
+    }
+
+    private void openDoor() {
+        car.setMotorDirection(Elevator.DIR_STOP);
+        markFloorDone(lastFloor);
+        car.setDoorOpenLamp(1);
+        doorOpened = car.nanoTime();
+        // If there are no cabin stops left, nobody needs time to get out anywhere - just let people in
+        doorCloses = doorOpened + car.doorTime(itinerary.hasCabCalls());
+        state = DOOR_OPEN;
+    }
+
+    /**
+     * Update the itinerary, notify others and set turn off button lamp
+     * @param floor
+     */
+    private void markFloorDone(int floor) {
+        itinerary.clearFloor(floor, mDirection);
+        car.floorServed(floor, mDirection);
+        car.setButtonLamp(Elevator.BUTTON_TYPE_COMMAND, floor - 1, 0);
+    }
+}
@@ -0,0 +1,141 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import cz.adamh.utils.NativeUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Driver backed by the C library in resources/driver (libelevator.so), talking to either the Comedi hardware or the simulator
+ */
+class NativeDriver implements ElevatorDriver {
+    static final int ET_Comedi = 0,
+            ET_Simulation = 1;
+
+    private final int mode;
+    private static boolean libraryLoaded = false;
+
+    static {
+        loadLibrary();
+    }
+
+    /**
+     * Load libelevator.so, extracted to the 'native_cache' directory (default: <tmpdir>/ttk4145-native) - where it's
+     * reused as long as the library doesn't change. Can be called early (e.g. during startup) to get the loading done.
+     * If 'native_library' is set, that file is loaded instead (e.g. libelevator_stub.so, see 'make stub').
+     */
+    static synchronized void loadLibrary() {
+        if (libraryLoaded) return;
+        String override = Settings.getSetting("native_library", null);
+        if (override != null) {
+            System.load(new File(override).getAbsolutePath());
+            System.out.println("Loaded native library " + override);
+            libraryLoaded = true;
+            return;
+        }
+        File cacheDirectory = new File(Settings.getSetting("native_cache", new File(System.getProperty("java.io.tmpdir"), "ttk4145-native").getPath()));
+        try {
+            File library = NativeUtils.loadCachedLibraryFromJar("/driver/libelevator.so", cacheDirectory);
+            System.out.println("Loaded native library " + library.getAbsolutePath());
+            libraryLoaded = true;
+        } catch (IOException e) {
+            System.out.println("ERROR: unable to read library file: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    NativeDriver(int mode) {
+        this.mode = mode;
+    }
+
+    @Override
+    public boolean init() {
+        return hw_init(mode, Elevator.NUM_FLOORS);
+    }
+
+    @Override
+    public void setMotorDirection(int dirn) {
+        long start = System.nanoTime();
+        elev_set_motor_direction(dirn);
+        Metrics.JNI_OUTPUT.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void setButtonLamp(int button, int floor, int value) {
+        long start = System.nanoTime();
+        elev_set_button_lamp(button, floor, value);
+        Metrics.JNI_OUTPUT.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void setFloorIndicator(int floor) {
+        long start = System.nanoTime();
+        elev_set_floor_indicator(floor);
+        Metrics.JNI_OUTPUT.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void setDoorOpenLamp(int value) {
+        long start = System.nanoTime();
+        elev_set_door_open_lamp(value);
+        Metrics.JNI_OUTPUT.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void setStopLamp(int value) {
+        long start = System.nanoTime();
+        elev_set_stop_lamp(value);
+        Metrics.JNI_OUTPUT.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void setOutputs(int[] outputs, int count) {
+        long start = System.nanoTime();
+        elev_set_outputs(outputs, count);
+        Metrics.JNI_OUTPUT.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public int getFloorSensorSignal() {
+        return elev_get_floor_sensor_signal();
+    }
+
+    @Override
+    public int getObstructionSignal() {
+        return elev_get_obstruction_signal();
+    }
+
+    @Override
+    public void getInputSnapshot(int[] snapshot) {
+        long start = System.nanoTime();
+        elev_get_input_snapshot(snapshot);
+        Metrics.JNI_INPUT_SNAPSHOT.record(System.nanoTime() - start);
+    }
+
+    /*
+     * Native wrapper functions folllow
+     */
+    private native boolean hw_init(int mode, int numFloors);
+
+    private native void elev_set_motor_direction(int dirn);
+    private native void elev_set_button_lamp(int button, int floor, int value);
+    /**
+     * @param floor - 1-indexed, to match the "intuitive" understanding of a floor
+     */
+    private native void elev_set_floor_indicator(int floor);
+
+    private native void elev_set_door_open_lamp(int value);
+    private native void elev_set_stop_lamp(int value);
+    /**
+     * @param outputs - packed as described in ElevatorDriver.setOutputs
+     */
+    private native void elev_set_outputs(int[] outputs, int count);
+    private native int elev_get_button_signal(int button, int floor);
+    private native int elev_get_stop_signal();
+    /**
+     * @return the current floor, 1-indexed (0 means between floors)
+     */
+    private native int elev_get_floor_sensor_signal();
+    private native int elev_get_obstruction_signal();
+    private native void elev_get_input_snapshot(int[] snapshot);
+}
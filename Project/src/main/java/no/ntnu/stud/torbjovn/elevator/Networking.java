@@ -1,132 +1,166 @@
 package no.ntnu.stud.torbjovn.elevator;
 
-import org.apache.activemq.artemis.api.core.*;
-import org.apache.activemq.artemis.api.core.client.*;
-import org.apache.activemq.artemis.core.config.FileDeploymentManager;
-import org.apache.activemq.artemis.core.config.impl.FileConfiguration;
-import org.apache.activemq.artemis.core.remoting.impl.netty.NettyConnectorFactory;
-import org.apache.activemq.artemis.core.remoting.impl.netty.TransportConstants;
-import org.apache.activemq.artemis.core.server.embedded.EmbeddedActiveMQ;
-
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Class implementing the networking and message passing between the elevators in the cluster.
+ * The messages themselves are carried by a Transport, selected with the 'transport' setting ("artemis" or "udp").
  *
  * Created by tovine on 3/22/16.
  */
 class Networking {
-    public static final String DESTINATION_ADDRESS = "elevatorQueue",
-                            CONNECTOR_NAME = "netty-connector";
-    // Networking objects
-    private static String queueName;
-    private static EmbeddedActiveMQ embeddedServer = new EmbeddedActiveMQ();
-    private static ServerLocator serverLocator;
-    private static ClientSessionFactory nettyFactory;
-    private static ClientSession artemisSession = null;
-    private static ClientConsumer messageConsumer = null;
-    private static ClientProducer messageProducer = null;
-
-    private static void startServer() throws Exception {
-        System.out.println("Attempting to start EmbeddedActiveMQ server...");
-        try {
-            // Manually read the config from the broker.xml, as we have to set some options programmatically
-            FileDeploymentManager deploymentManager = new FileDeploymentManager("broker.xml");
-            FileConfiguration config = new FileConfiguration();
-            deploymentManager.addDeployable(config);
-            deploymentManager.readConfiguration();
-            try {
-                // Load the ip address to be used from config file, to be able to deploy the same JAR to different nodes
-                config.getConnectorConfigurations().get(CONNECTOR_NAME).getParams().put(TransportConstants.HOST_PROP_NAME, Settings.getSetting("ip_address"));
-            } catch (NullPointerException npe) {
-                System.out.println("Error: ip_address property not set in config file, falling back to 'localhost'");
-            }
-            embeddedServer.setConfiguration(config);
-            embeddedServer.start();
-        } catch (Exception e) {
-            System.out.println("Failed to start EmbeddedActiveMQ server, stack trace follows:");
-            e.printStackTrace();
-            throw e;
-        }
+    public static final String TRANSPORT_ARTEMIS = "artemis",
+            TRANSPORT_UDP = "udp";
+    public static final int OUTBOUND_QUEUE_SIZE = 1024,
+            RETRY_DELAY = 500; // ms
+
+    private static Transport transport = null;
+
+    // Outgoing messages are queued by the control threads and sent by the MessageSender thread
+    private static final OutboundQueue outbound = new OutboundQueue(OUTBOUND_QUEUE_SIZE);
+    // Seeded from the clock, so a restarted node doesn't reuse sequence numbers its peers have already seen
+    private static final AtomicInteger sequence = new AtomicInteger((int) System.currentTimeMillis());
+    private static final AtomicLong messagesSent = new AtomicLong(), messagesDropped = new AtomicLong();
+    private static MessageSender sender = null;
+
+    /**
+     * Queue a message for sending to the cluster - never blocks, so it's safe to call from the control threads.
+     * Messages queued before the network is up are sent once it is.
+     * @param type - one of the ClusterMessage.TYPE_* constants
+     * @param targetFloor - the target floor (1-indexed), negative sign means "down"
+     * @return false if the outbound queue is full and the message was dropped
+     */
+    public static boolean queueMessage(byte type, int targetFloor) {
+        long header = ((long) (type & 0xff) << 48) | ((long) (targetFloor & 0xffff) << 32) | (sequence.incrementAndGet() & 0xffffffffL);
+        if (outbound.offer(header, System.currentTimeMillis()))
+            return true;
+        messagesDropped.incrementAndGet();
+        Log.warn("Outbound message queue is full, dropping message of type {} for floor {}", type, targetFloor);
+        return false;
     }
 
-    private static void stopServer() throws Exception {
-        System.out.println("Attempting to stop EmbeddedActiveMQ server...");
-        try {
-            if (messageProducer != null) messageProducer.close();
-            if (messageConsumer != null) messageConsumer.close();
-            if (artemisSession != null) {
-                artemisSession.deleteQueue(queueName); // Remove the subscription to the address
-                artemisSession.close();
-                artemisSession.getSessionFactory().close();
-                artemisSession.getSessionFactory().getServerLocator().close();
-            }
-            embeddedServer.stop();
-            System.out.println("Stopping server");
-        } catch (Exception e) {
-            System.out.println("Failed to stop EmbeddedActiveMQ server, stack trace follows:");
-            e.printStackTrace();
-            throw e;
-        }
+    public static long getMessagesSent() {
+        return messagesSent.get();
     }
 
-    private static void startClient() throws Exception {
-        try {
-            Map<String, Object> connectionParams = new HashMap<String, Object>();
-            connectionParams.put(TransportConstants.PORT_PROP_NAME, 61617);
-            connectionParams.put(TransportConstants.HOST_PROP_NAME, "localhost");
-
-            serverLocator = ActiveMQClient.createServerLocator(true, new TransportConfiguration(NettyConnectorFactory.class.getName(), connectionParams));
-            nettyFactory = serverLocator.createSessionFactory();
-            artemisSession = nettyFactory.createSession();
-            queueName = DESTINATION_ADDRESS + artemisSession.getSessionFactory().getConnection().getID().toString();
-            artemisSession.createQueue(DESTINATION_ADDRESS, queueName, true);
-            messageConsumer = artemisSession.createConsumer(queueName);
-            messageProducer = artemisSession.createProducer(DESTINATION_ADDRESS);
-            messageConsumer.setMessageHandler(new CommandHandler());
-            artemisSession.start();
-        } catch (Exception e) {
-            System.out.println("Failed to start a client connection, stack trace:");
-            e.printStackTrace();
-            throw e;
-        }
+    public static long getMessagesDropped() {
+        return messagesDropped.get();
+    }
+
+    static Transport createTransport(String name) {
+        if (TRANSPORT_UDP.equalsIgnoreCase(name))
+            return new UdpTransport(CommandHandler.NODE_INDEX);
+        if (!TRANSPORT_ARTEMIS.equalsIgnoreCase(name))
+            System.out.println("Unknown transport '" + name + "', using " + TRANSPORT_ARTEMIS);
+        return new ArtemisTransport();
     }
 
-    public static boolean sendMessage(Message msg) {
-        try {
-            if (messageProducer == null || messageProducer.isClosed()) {
-                if (artemisSession == null || artemisSession.isClosed()) {
-                    if (nettyFactory == null || nettyFactory.isClosed())
-                        nettyFactory = serverLocator.createSessionFactory();
-                    artemisSession = nettyFactory.createSession();
+    /**
+     * Drains the outbound queue, packing everything queued within BATCH_WINDOW into a single batch for the transport.
+     * Retrying (and reconnecting, for transports that need it) is done here as well, so a slow or missing network
+     * only ever delays this thread.
+     */
+    private static class MessageSender extends Thread {
+        private static final int MAX_BATCH = 32;
+        private static final long BATCH_WINDOW = TimeUnit.MICROSECONDS.toNanos(200);
+
+        private final Transport transport;
+        private final long[] headers = new long[MAX_BATCH], timestamps = new long[MAX_BATCH];
+        // Room for a payload in every record, although there are normally at most a couple per batch
+        private final ByteBuffer encodeBuffer = ByteBuffer.allocate(MAX_BATCH * (ClusterMessage.SIZE + ClusterMessage.PAYLOAD_HEADER_SIZE + ClusterMessage.maxPayloadSize(Elevator.NUM_FLOORS)));
+        private volatile boolean running = true;
+
+        MessageSender(Transport transport) {
+            super("MessageSender");
+            this.transport = transport;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                int count = outbound.drainTo(headers, timestamps, 0, MAX_BATCH);
+                if (count == 0) {
+                    outbound.await();
+                    continue;
+                }
+                if (count < MAX_BATCH) {
+                    // Give whoever is producing a moment to add the rest of a burst (e.g. the two 'completed' messages at the top/bottom floor)
+                    LockSupport.parkNanos(this, BATCH_WINDOW);
+                    count += outbound.drainTo(headers, timestamps, count, MAX_BATCH - count);
+                }
+                encodeBuffer.clear();
+                for (int i = 0; i < count; i++) {
+                    long header = headers[i];
+                    byte type = (byte) (header >>> 48);
+                    ClusterMessage.encode(encodeBuffer, type, (short) (header >>> 32), CommandHandler.NODE_INDEX, (int) header, timestamps[i]);
+                    if (ClusterMessage.hasPayload(type)) {
+                        // The state and orders are written as they are when sent, not when they were queued
+                        int lengthPosition = ClusterMessage.beginPayload(encodeBuffer);
+                        if (type == ClusterMessage.TYPE_STATE)
+                            HallCallAssigner.writeLocalState(encodeBuffer);
+                        else
+                            ReplicatedOrders.writeSync(encodeBuffer);
+                        ClusterMessage.endPayload(encodeBuffer, lengthPosition);
+                    }
+                }
+                encodeBuffer.flip();
+                while (running) {
+                    encodeBuffer.rewind();
+                    long sendStart = System.nanoTime();
+                    boolean sent = transport.send(encodeBuffer);
+                    Metrics.TRANSPORT_SEND.recordMicrosSince(sendStart);
+                    if (sent) {
+                        messagesSent.addAndGet(count);
+                        break;
+                    }
+                    Log.warn("Sending failed, retrying in {} ms", RETRY_DELAY);
+                    try {
+                        sleep(RETRY_DELAY);
+                    } catch (InterruptedException ignored) {}
                 }
-                // Message producer was closed - open it again
-                messageProducer = artemisSession.createProducer(DESTINATION_ADDRESS);
             }
-            messageProducer.send(msg);
-        } catch (ActiveMQException e) {
-            System.out.println("Failed to send message:");
-            e.printStackTrace();
-            return false;
-        } catch (Exception e) {
-            System.out.println("Failed to create session factory");
-            e.printStackTrace();
-            return false;
         }
-        return true;
-    }
 
-    public static Message createMessage() {
-        return artemisSession.createMessage(false);
+        void shutdown() {
+            running = false;
+            interrupt();
+        }
     }
 
     public static void init() throws Exception {
-        startServer();
-        startClient();
+        init(new CommandHandler(), getTransportName());
+    }
+
+    public static void init(Transport.Receiver receiver, String transportName) throws Exception {
+        start(transportName);
+        listen(receiver);
+    }
+
+    public static String getTransportName() {
+        return Settings.getSetting("transport", TRANSPORT_ARTEMIS);
+    }
+
+    /**
+     * Get the transport ready and start sending the queued messages - nothing is received until listen() is called
+     */
+    public static void start(String transportName) throws Exception {
+        transport = createTransport(transportName);
+        transport.start();
+        sender = new MessageSender(transport);
+        sender.start();
+    }
+
+    public static void listen(Transport.Receiver receiver) throws Exception {
+        transport.listen(receiver);
     }
 
     public static void shutdown() throws Exception {
-        stopServer();
+        if (sender != null) sender.shutdown();
+        if (transport != null) transport.shutdown();
     }
 }
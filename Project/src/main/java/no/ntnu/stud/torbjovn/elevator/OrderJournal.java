@@ -0,0 +1,281 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-ahead journal of the orders - the cab calls and the state of every hall call in the JobTable - so that they
+ * survive a crash or restart. Replayed by the Elevator before it starts reading the buttons (see recover).
+ *
+ * The journal is one memory-mapped file ('journal_file', default elevator.journal - empty to disable). A change is
+ * written to the mapping as a fixed-size record and that's it: nothing is forced to disk on the control threads, since
+ * what's in the mapping survives the process being killed. The JournalFlusher forces the mapping to disk every second
+ * (for power loss), and writes a snapshot every SNAPSHOT_INTERVAL.
+ *
+ * The state is tiny, so snapshots are cheap - one is also written whenever the log fills up, and after recovering.
+ * There are two snapshot slots, used in turn. Each snapshot starts a new generation, and the log records are tagged
+ * with the generation they belong to, so records left over from earlier generations are simply ignored. The generation
+ * is written last in both snapshots and records, so one that was only partly written is never taken for a valid one.
+ *
+ * Header (big endian): | magic (4) | version (2) | floors (2) | log capacity (4, records) | unused (4) |
+ * Snapshot:            | generation (4) | cab calls (bit set, 1 bit per floor) | per slot: state (1) | local (1) | owner (4) |
+ * Record:              | kind (1) | state (1) | local (1) | unused (1) | floor/target (2) | unused (2) | owner (4) | generation (4) |
+ */
+class OrderJournal {
+    private static final int MAGIC = 0x454c564a, // "ELVJ"
+            HEADER_SIZE = 16,
+            RECORD_SIZE = 16,
+            DEFAULT_CAPACITY = 4096; // records
+    private static final short VERSION = 1;
+    private static final byte KIND_CAB_CALL = 1, // floor, state = 1 if set, 0 if cleared
+            KIND_JOB = 2; // target, state, local and owner of the slot
+    private static final long FLUSH_INTERVAL = 1000, // ms
+            SNAPSHOT_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+    private static final String fileName = Settings.getSetting("journal_file", "elevator.journal").trim();
+    public static final boolean ENABLED = !fileName.isEmpty();
+
+    private static final int numFloors = Elevator.NUM_FLOORS,
+            slots = numFloors * 2,
+            cabBytes = (numFloors + 8) / 8, // Bits 0 to numFloors
+            snapshotSize = 4 + cabBytes + slots * 6;
+    private static int capacity, logStart;
+
+    // The journalled state, kept in memory to write the snapshots from
+    private static final boolean[] cabCalls = new boolean[numFloors + 1];
+    private static final byte[] jobStates = new byte[slots];
+    private static final boolean[] jobLocal = new boolean[slots];
+    private static final int[] jobOwners = new int[slots];
+
+    private static MappedByteBuffer journal = null;
+    private static int generation = 0, logRecords = 0;
+    private static boolean dirty = false, appendedSinceSnapshot = false;
+
+    private OrderJournal() {}
+
+    private static int snapshotOffset(int generation) {
+        return HEADER_SIZE + (generation & 1) * snapshotSize;
+    }
+
+    /**
+     * Map the journal and put back the orders it holds - cab calls into the elevator's itinerary, hall calls into the
+     * CommandDispatcher. Must be called before the elevator starts reading the buttons.
+     */
+    public static void recover(Elevator elevator) {
+        if (!ENABLED) return;
+        long start = System.nanoTime();
+        try {
+            if (!open()) {
+                System.out.println("Journal " + fileName + " is missing or doesn't match this building, starting with no orders");
+                format();
+            } else {
+                load();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not open the journal " + fileName + ", orders won't survive a restart: " + e.getMessage());
+            journal = null;
+            return;
+        }
+
+        int cabCount = 0, jobCount = 0;
+        for (int floor = 1; floor <= numFloors; floor++) {
+            if (cabCalls[floor] && elevator.restoreCabCall(floor)) cabCount++;
+        }
+        JobTable table = new JobTable(numFloors); // Only for the slot numbering
+        for (int slot = 0; slot < slots; slot++) {
+            if (jobStates[slot] != JobTable.STATE_PENDING && jobStates[slot] != JobTable.STATE_TAKEN) continue;
+            int target = table.targetOf(slot);
+            if (!CommandDispatcher.restoreJob(elevator, target, jobStates[slot], jobLocal[slot], jobOwners[slot])) continue;
+            elevator.setButtonLamp(target > 0 ? Elevator.BUTTON_TYPE_CALL_UP : Elevator.BUTTON_TYPE_CALL_DOWN, Math.abs(target) - 1, 1);
+            jobCount++;
+        }
+        // Start over from a snapshot of what we recovered
+        synchronized (OrderJournal.class) {
+            writeSnapshot();
+        }
+        System.out.println("Recovered " + cabCount + " cab call(s) and " + jobCount + " hall call(s) from the journal in "
+                + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) + " us");
+        new JournalFlusher().start();
+    }
+
+    /**
+     * @return false if there is no usable journal (missing, or written for another building)
+     */
+    private static boolean open() throws IOException {
+        File file = new File(fileName);
+        boolean existed = file.isFile() && file.length() >= HEADER_SIZE;
+        capacity = DEFAULT_CAPACITY;
+        if (existed) {
+            try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+                if (input.readInt() == MAGIC && input.readShort() == VERSION && input.readShort() == numFloors) {
+                    capacity = input.readInt();
+                    if (capacity > 0 && file.length() == HEADER_SIZE + 2L * snapshotSize + (long) capacity * RECORD_SIZE) {
+                        map(file);
+                        return true;
+                    }
+                }
+            }
+            capacity = DEFAULT_CAPACITY;
+        }
+        map(file);
+        return false;
+    }
+
+    private static void map(File file) throws IOException {
+        logStart = HEADER_SIZE + 2 * snapshotSize;
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            long size = logStart + (long) capacity * RECORD_SIZE;
+            output.setLength(size);
+            journal = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static void format() {
+        for (int i = 0; i < journal.capacity(); i++)
+            journal.put(i, (byte) 0);
+        journal.putInt(0, MAGIC);
+        journal.putShort(4, VERSION);
+        journal.putShort(6, (short) numFloors);
+        journal.putInt(8, capacity);
+        generation = 0;
+    }
+
+    /**
+     * Read the latest complete snapshot and apply the log records of its generation
+     */
+    private static void load() {
+        int first = journal.getInt(snapshotOffset(0)), second = journal.getInt(snapshotOffset(1));
+        // Generations only grow, and slot (generation & 1) holds the one with that generation
+        generation = Math.max(first, second);
+        if (generation == 0) return; // Formatted, but nothing written yet
+        int offset = snapshotOffset(generation) + 4;
+        for (int floor = 0; floor <= numFloors; floor++)
+            cabCalls[floor] = floor > 0 && (journal.get(offset + floor / 8) & (1 << (floor % 8))) != 0;
+        offset += cabBytes;
+        for (int slot = 0; slot < slots; slot++, offset += 6) {
+            jobStates[slot] = journal.get(offset);
+            jobLocal[slot] = journal.get(offset + 1) != 0;
+            jobOwners[slot] = journal.getInt(offset + 2);
+        }
+
+        JobTable table = new JobTable(numFloors);
+        for (int record = 0; record < capacity; record++) {
+            int position = logStart + record * RECORD_SIZE;
+            if (journal.getInt(position + 12) != generation) break; // End of this generation's records
+            byte kind = journal.get(position);
+            int value = journal.getShort(position + 4);
+            if (kind == KIND_CAB_CALL && value >= 1 && value <= numFloors) {
+                cabCalls[value] = journal.get(position + 1) != 0;
+            } else if (kind == KIND_JOB) {
+                int slot = table.slotOf(value);
+                if (slot < 0) continue;
+                jobStates[slot] = journal.get(position + 1);
+                jobLocal[slot] = journal.get(position + 2) != 0;
+                jobOwners[slot] = journal.getInt(position + 8);
+            }
+        }
+    }
+
+    /**
+     * A cab call was added or removed
+     */
+    public static synchronized void cabCall(int floor, boolean set) {
+        if (journal == null || floor < 1 || floor > numFloors || cabCalls[floor] == set) return;
+        cabCalls[floor] = set;
+        append(KIND_CAB_CALL, set ? 1 : 0, false, floor, 0);
+    }
+
+    /**
+     * The slot changed in the table - its current state is journalled, so the last record of a slot is always the
+     * latest state even if threads race to report their changes
+     */
+    public static synchronized void jobChanged(JobTable table, int slot) {
+        if (journal == null) return;
+        long word = table.get(slot);
+        byte state = (byte) JobTable.state(word);
+        boolean local = JobTable.isLocal(word);
+        int owner = table.ownerOf(slot);
+        if (jobStates[slot] == state && jobLocal[slot] == local && jobOwners[slot] == owner) return;
+        jobStates[slot] = state;
+        jobLocal[slot] = local;
+        jobOwners[slot] = owner;
+        append(KIND_JOB, state, local, table.targetOf(slot), owner);
+    }
+
+    private static void append(byte kind, int state, boolean local, int value, int owner) {
+        if (logRecords == capacity) writeSnapshot(); // Holds everything logged so far - start the log over
+        int position = logStart + logRecords * RECORD_SIZE;
+        journal.put(position, kind);
+        journal.put(position + 1, (byte) state);
+        journal.put(position + 2, (byte) (local ? 1 : 0));
+        journal.putShort(position + 4, (short) value);
+        journal.putInt(position + 8, owner);
+        journal.putInt(position + 12, generation); // Last - the record counts once this is written
+        logRecords++;
+        dirty = true;
+        appendedSinceSnapshot = true;
+    }
+
+    /**
+     * Write the current state as a snapshot of the next generation, and start its log
+     */
+    private static void writeSnapshot() {
+        int next = generation + 1, offset = snapshotOffset(next) + 4;
+        for (int i = 0; i < cabBytes; i++) {
+            int bits = 0;
+            for (int bit = 0; bit < 8; bit++) {
+                int floor = i * 8 + bit;
+                if (floor >= 1 && floor <= numFloors && cabCalls[floor]) bits |= 1 << bit;
+            }
+            journal.put(offset + i, (byte) bits);
+        }
+        offset += cabBytes;
+        for (int slot = 0; slot < slots; slot++, offset += 6) {
+            journal.put(offset, jobStates[slot]);
+            journal.put(offset + 1, (byte) (jobLocal[slot] ? 1 : 0));
+            journal.putInt(offset + 2, jobOwners[slot]);
+        }
+        journal.putInt(snapshotOffset(next), next); // Last - the snapshot counts once this is written
+        generation = next;
+        logRecords = 0;
+        dirty = true;
+        appendedSinceSnapshot = false;
+    }
+
+    /**
+     * Forces the journal to disk every second (never on the control threads), and writes a snapshot now and then
+     */
+    static class JournalFlusher extends Thread {
+        JournalFlusher() {
+            super("JournalFlusher");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long lastSnapshot = System.currentTimeMillis();
+            while (true) {
+                try {
+                    Thread.sleep(FLUSH_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                MappedByteBuffer toFlush;
+                synchronized (OrderJournal.class) {
+                    if (appendedSinceSnapshot && System.currentTimeMillis() - lastSnapshot >= SNAPSHOT_INTERVAL) {
+                        writeSnapshot();
+                        lastSnapshot = System.currentTimeMillis();
+                    }
+                    toFlush = dirty ? journal : null;
+                    dirty = false;
+                }
+                // Outside the lock - appending goes on while the pages are written out
+                if (toFlush != null) toFlush.force();
+            }
+        }
+    }
+}
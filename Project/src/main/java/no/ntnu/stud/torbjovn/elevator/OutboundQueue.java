@@ -0,0 +1,91 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free multi-producer/single-consumer queue of (long, long) pairs, used to hand outgoing messages from the
+ * control threads to the network sender thread. Producers never block: if the queue is full, offer() fails.
+ *
+ * Each cell has a sequence number telling whether it's free to write (sequence == position) or ready to read
+ * (sequence == position + 1), so producers only contend on the tail counter.
+ */
+class OutboundQueue {
+    private final AtomicLongArray sequences;
+    private final long[] first, second;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0; // Only touched by the consumer
+    private volatile Thread waitingConsumer = null;
+
+    /**
+     * @param capacity - rounded up to the nearest power of two
+     */
+    OutboundQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        first = new long[size];
+        second = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Add an entry - safe to call from any thread
+     * @return false if the queue is full (the entry is not added)
+     */
+    public boolean offer(long a, long b) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    first[index] = a;
+                    second[index] = b;
+                    sequences.set(index, position + 1); // Volatile write - publishes the cell before we look for a waiting consumer
+                    Thread consumer = waitingConsumer;
+                    if (consumer != null)
+                        LockSupport.unpark(consumer);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false; // Full - the consumer hasn't freed this cell yet
+            } else {
+                position = tail.get(); // Another producer got this cell first
+            }
+        }
+    }
+
+    /**
+     * Move up to max entries into the given arrays - must only be called from the consumer thread
+     * @return the number of entries moved
+     */
+    public int drainTo(long[] a, long[] b, int offset, int max) {
+        int count = 0;
+        while (count < max) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) break; // Empty, or the producer hasn't finished writing this cell
+            a[offset + count] = first[index];
+            b[offset + count] = second[index];
+            sequences.lazySet(index, head + mask + 1);
+            head++;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Block until there is something to drain (or the thread is interrupted/unparked) - must only be called from the consumer thread
+     */
+    public void await() {
+        waitingConsumer = Thread.currentThread();
+        // Re-check after announcing ourselves, in case a producer published in between
+        if (sequences.get((int) head & mask) != head + 1)
+            LockSupport.park(this);
+        waitingConsumer = null;
+    }
+}
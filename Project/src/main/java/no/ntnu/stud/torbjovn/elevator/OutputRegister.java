@@ -0,0 +1,232 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shadow of every output of the elevator (the motor and all the lamps), in front of the driver. A write that wouldn't
+ * change anything is dropped. On the ControlLoop the changes are held back until the end of the round, and then
+ * written with a single driver call (ElevatorDriver.setOutputs - one JNI call, or one send to the simulator), so that
+ * e.g. opening the door at a floor costs one call rather than four. The motor isn't held back: a new direction is
+ * written at once, together with whatever else is waiting. Writes from other threads (homing at startup, the
+ * ProcessPair restoring the lamps) are written at once as well.
+ *
+ * In case an output was changed behind our back (the simulator was restarted, a glitch on the I/O card), all of them
+ * are written again every 'output_refresh' ms (default DEFAULT_REFRESH_INTERVAL, 0 to disable).
+ *
+ * The dropped writes are counted in Metrics.OUTPUTS_SUPPRESSED.
+ */
+class OutputRegister implements ElevatorDriver {
+    public static final int DEFAULT_REFRESH_INTERVAL = 5000; // ms
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private final ElevatorDriver driver;
+    private final int numFloors;
+    // Channels: one per button lamp (floor * NUM_BUTTONS + button), followed by these
+    private final int floorIndicator, doorOpenLamp, stopLamp, motor;
+    // The value of each channel as it should be, and as last written to the driver (UNKNOWN if never)
+    private final int[] wanted, written;
+    // Channels changed since the last flush, in the order they were first changed
+    private final int[] changed;
+    private final boolean[] isChanged;
+    private int changedCount = 0;
+    private final int[] batch;
+    private final long refreshInterval;
+    private long nextRefresh;
+
+    OutputRegister(ElevatorDriver driver, int numFloors) {
+        this.driver = driver;
+        this.numFloors = numFloors;
+        floorIndicator = numFloors * Elevator.NUM_BUTTONS;
+        doorOpenLamp = floorIndicator + 1;
+        stopLamp = floorIndicator + 2;
+        motor = floorIndicator + 3;
+        int channels = channels(numFloors);
+        wanted = new int[channels];
+        written = new int[channels];
+        Arrays.fill(wanted, UNKNOWN); // So that the first write of every channel goes through
+        Arrays.fill(written, UNKNOWN);
+        changed = new int[channels];
+        isChanged = new boolean[channels];
+        batch = new int[channels];
+        refreshInterval = TimeUnit.MILLISECONDS.toNanos(configuredRefreshInterval());
+        nextRefresh = System.nanoTime() + refreshInterval;
+    }
+
+    private static int configuredRefreshInterval() {
+        try {
+            return Math.max(0, Integer.parseInt(Settings.getSetting("output_refresh", String.valueOf(DEFAULT_REFRESH_INTERVAL)).trim()));
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid output_refresh setting, using " + DEFAULT_REFRESH_INTERVAL);
+            return DEFAULT_REFRESH_INTERVAL;
+        }
+    }
+
+    /**
+     * @return the number of outputs of an elevator with the given number of floors - the largest batch there can be
+     */
+    static int channels(int numFloors) {
+        return numFloors * Elevator.NUM_BUTTONS + 4;
+    }
+
+    /**
+     * Pack an output for ElevatorDriver.setOutputs
+     * @param command - one of the ElevatorDriver.OUTPUT_* constants
+     */
+    static int pack(int command, int arg1, int arg2, int arg3) {
+        return command << 24 | (arg1 & 0xff) << 16 | (arg2 & 0xff) << 8 | (arg3 & 0xff);
+    }
+
+    /**
+     * Write the packed outputs one by one - for the drivers that have nothing better to do with a batch
+     */
+    static void writeEach(ElevatorDriver driver, int[] outputs, int count) {
+        for (int i = 0; i < count; i++) {
+            int output = outputs[i];
+            // The arguments are signed bytes - the motor direction can be -1
+            byte arg1 = (byte) (output >> 16), arg2 = (byte) (output >> 8), arg3 = (byte) output;
+            switch (output >>> 24) {
+                case OUTPUT_MOTOR_DIRECTION:
+                    driver.setMotorDirection(arg1);
+                    break;
+                case OUTPUT_BUTTON_LAMP:
+                    driver.setButtonLamp(arg1, arg2, arg3);
+                    break;
+                case OUTPUT_FLOOR_INDICATOR:
+                    driver.setFloorIndicator(arg1 + 1); // Convert from 0-indexed to 1-indexed
+                    break;
+                case OUTPUT_DOOR_OPEN_LAMP:
+                    driver.setDoorOpenLamp(arg1);
+                    break;
+                case OUTPUT_STOP_LAMP:
+                    driver.setStopLamp(arg1);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Write what was changed during this round of the ControlLoop - and every output, if the refresh is due
+     * @return nanoseconds until the next refresh, or -1 if it's disabled
+     */
+    synchronized long flush(long now) {
+        if (refreshInterval == 0) {
+            flush();
+            return -1;
+        }
+        if (now - nextRefresh >= 0) {
+            for (int channel = 0; channel < wanted.length; channel++) {
+                if (wanted[channel] == UNKNOWN) continue; // Never set - leave it as it is
+                written[channel] = UNKNOWN;
+                markChanged(channel);
+            }
+            nextRefresh = now + refreshInterval;
+        }
+        flush();
+        return nextRefresh - now;
+    }
+
+    private synchronized void set(int channel, int value) {
+        if (wanted[channel] == value) {
+            Metrics.OUTPUTS_SUPPRESSED.increment();
+            return;
+        }
+        wanted[channel] = value;
+        markChanged(channel);
+        if (channel == motor || !ControlLoop.isLoopThread())
+            flush();
+    }
+
+    private void markChanged(int channel) {
+        if (isChanged[channel]) return;
+        isChanged[channel] = true;
+        changed[changedCount++] = channel;
+    }
+
+    private void flush() {
+        if (changedCount == 0) return;
+        int count = 0;
+        // In the order they were changed - e.g. the door lamp goes off before the motor starts
+        for (int i = 0; i < changedCount; i++) {
+            int channel = changed[i];
+            isChanged[channel] = false;
+            // Changed back before it was written (e.g. a lamp turned on and off again within the round)
+            if (wanted[channel] == written[channel]) continue;
+            batch[count++] = encode(channel);
+        }
+        changedCount = 0;
+        if (count > 0)
+            driver.setOutputs(batch, count);
+    }
+
+    /**
+     * @return the output setting the channel to what it should be, marking it as written
+     */
+    private int encode(int channel) {
+        int value = wanted[channel];
+        written[channel] = value;
+        if (channel < floorIndicator)
+            return pack(OUTPUT_BUTTON_LAMP, channel % Elevator.NUM_BUTTONS, channel / Elevator.NUM_BUTTONS, value);
+        if (channel == floorIndicator)
+            return pack(OUTPUT_FLOOR_INDICATOR, value - 1, 0, 0); // Convert from 1-indexed to 0-indexed
+        if (channel == doorOpenLamp)
+            return pack(OUTPUT_DOOR_OPEN_LAMP, value, 0, 0);
+        if (channel == stopLamp)
+            return pack(OUTPUT_STOP_LAMP, value, 0, 0);
+        return pack(OUTPUT_MOTOR_DIRECTION, value, 0, 0);
+    }
+
+    @Override
+    public boolean init() {
+        return driver.init();
+    }
+
+    @Override
+    public void setMotorDirection(int dirn) {
+        set(motor, dirn);
+    }
+
+    @Override
+    public void setButtonLamp(int button, int floor, int value) {
+        if (floor < 0 || floor >= numFloors || button < 0 || button >= Elevator.NUM_BUTTONS) {
+            driver.setButtonLamp(button, floor, value); // Not one of ours - leave it to the driver
+            return;
+        }
+        set(floor * Elevator.NUM_BUTTONS + button, value);
+    }
+
+    @Override
+    public void setFloorIndicator(int floor) {
+        set(floorIndicator, floor);
+    }
+
+    @Override
+    public void setDoorOpenLamp(int value) {
+        set(doorOpenLamp, value);
+    }
+
+    @Override
+    public void setStopLamp(int value) {
+        set(stopLamp, value);
+    }
+
+    @Override
+    public void setOutputs(int[] outputs, int count) {
+        writeEach(this, outputs, count);
+    }
+
+    @Override
+    public int getFloorSensorSignal() {
+        return driver.getFloorSensorSignal();
+    }
+
+    @Override
+    public int getObstructionSignal() {
+        return driver.getObstructionSignal();
+    }
+
+    @Override
+    public void getInputSnapshot(int[] snapshot) {
+        driver.getInputSnapshot(snapshot);
+    }
+}
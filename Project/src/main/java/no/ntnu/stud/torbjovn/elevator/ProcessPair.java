@@ -0,0 +1,258 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot standby for the elevator on this computer - a second JVM started with the 'standby' argument, which takes over the
+ * hardware within a couple of hundred ms when the primary dies, instead of restarting it from nothing as in Ex06.
+ *
+ * The primary sends its orders (cab calls and the JobTable) and motion state to the standby every HEARTBEAT_INTERVAL, in
+ * one datagram to 127.0.0.1:'pair_port' (default DEFAULT_PORT, 0 to disable). The standby has the native library loaded
+ * and the control classes initialized, and mirrors what it receives. Once it hasn't heard from the primary in
+ * 'pair_timeout' ms (default DEFAULT_TIMEOUT) it takes over: the driver is initialized and the Elevator created as in a
+ * normal startup, but the car isn't homed - if the primary was moving it carries on to the next floor in the same
+ * direction - and the mirrored orders are put back (on top of the OrderJournal, which has the latest ones if it's shared).
+ * From then on it's the primary, and a new standby can be started.
+ *
+ * There is no fencing - a primary that stalls for longer than the timeout (e.g. a long GC pause) will fight the new one
+ * over the hardware, so keep 'pair_timeout' well above the pauses seen in practice.
+ *
+ * Datagram (big endian): | magic (4) | sequence (4) | floors (2) | floor (1) | direction (1) | cab calls (bit set) | per slot: state (1) | local (1) | owner (4) |
+ *  - floor: the floor sensor (1-indexed, 0 between floors), direction: the motor direction
+ */
+class ProcessPair {
+    public static final String ARG_STANDBY = "standby";
+    public static final int DEFAULT_PORT = 41470,
+            DEFAULT_TIMEOUT = 100; // ms
+    private static final int MAGIC = 0x454c5650, // "ELVP"
+            HEARTBEAT_INTERVAL = 20, // ms
+            INITIAL_TIMEOUT = 1000; // ms to wait for a primary to show up, before taking over anyway
+
+    private static final int port = intSetting("pair_port", DEFAULT_PORT),
+            timeout = Math.max(HEARTBEAT_INTERVAL * 2, intSetting("pair_timeout", DEFAULT_TIMEOUT));
+    private static final int numFloors = Elevator.NUM_FLOORS,
+            slots = numFloors * 2,
+            cabBytes = (numFloors + 8) / 8, // Bits 0 to numFloors
+            datagramSize = 12 + cabBytes + slots * 6;
+
+    // The mirrored state - written by standBy(), read by the Elevator when it's created after the takeover
+    private static final BitSet cabCalls = new BitSet(numFloors + 1);
+    private static final byte[] jobStates = new byte[slots];
+    private static final boolean[] jobLocal = new boolean[slots];
+    private static final int[] jobOwners = new int[slots];
+    private static int mirroredFloor = 0, mirroredDirection = Elevator.DIR_STOP;
+
+    private static volatile boolean takingOver = false;
+    // System.nanoTime() when we last heard from the primary, and when we noticed it was gone
+    private static long lastHeard = 0, detectedAt = 0;
+    private static volatile long takeoverMillis = -1;
+
+    private ProcessPair() {}
+
+    private static int intSetting(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(Settings.getSetting(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid " + key + " setting, using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return port > 0;
+    }
+
+    /**
+     * @return how long the last takeover took, from the primary's last heartbeat until we had the hardware (ms),
+     * or -1 if this process hasn't taken over from anyone
+     */
+    public static long getTakeoverMillis() {
+        return takeoverMillis;
+    }
+
+    /**
+     * Run as the standby - returns once the primary is gone, after which startup goes on as for the primary
+     */
+    public static void standBy() {
+        if (!isEnabled()) {
+            System.out.println("Process pair: pair_port is 0, starting as the primary");
+            return;
+        }
+        // Get the slow parts of starting up done while the primary is alive - loading the library, and the classes
+        // that take a while to initialize (starting the log writer, registering the MBeans)
+        if (Elevator.usesNativeLibrary())
+            NativeDriver.loadLibrary();
+        initialize(Log.class, Metrics.class, InputScanner.class, Itinerary.class, EtaEstimator.class, SimulatorDriver.class);
+
+        byte[] data = new byte[datagramSize];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int lastSequence = 0;
+        boolean mirroring = false;
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+            System.out.println("Process pair: standing by on port " + port);
+            long started = System.nanoTime();
+            while (true) {
+                long silence = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - (mirroring ? lastHeard : started)),
+                        remaining = (mirroring ? timeout : INITIAL_TIMEOUT) - silence;
+                if (remaining <= 0) break;
+                socket.setSoTimeout((int) remaining);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                buffer.clear().limit(packet.getLength());
+                if (packet.getLength() != datagramSize || buffer.getInt() != MAGIC) continue;
+                int sequence = buffer.getInt();
+                if (buffer.getShort() != numFloors) {
+                    System.out.println("Process pair: the primary has a different number of floors, ignoring it");
+                    continue;
+                }
+                if (mirroring && sequence - lastSequence <= 0) continue; // Reordered
+                lastSequence = sequence;
+                lastHeard = System.nanoTime();
+                readState(buffer);
+                if (!mirroring) {
+                    mirroring = true;
+                    System.out.println("Process pair: mirroring the primary");
+                }
+            }
+        } catch (IOException e) {
+            // Most likely another standby has the port - there is nothing sensible for us to do
+            System.out.println("Process pair: unable to stand by on port " + port + " - " + e.getMessage());
+            System.exit(1);
+        }
+        detectedAt = System.nanoTime();
+        if (!mirroring) {
+            // Nothing to take over from - start normally
+            System.out.println("Process pair: no primary found, starting as the primary");
+            return;
+        }
+        takingOver = true;
+        System.out.println("Process pair: the primary has been silent for "
+                + TimeUnit.NANOSECONDS.toMillis(detectedAt - lastHeard) + " ms, taking over");
+    }
+
+    private static void initialize(Class<?>... classes) {
+        for (Class<?> loaded : classes) {
+            try {
+                Class.forName(loaded.getName(), true, loaded.getClassLoader());
+            } catch (ClassNotFoundException ignored) {
+                // Can't happen - it's loaded already
+            }
+        }
+    }
+
+    private static void readState(ByteBuffer buffer) {
+        mirroredFloor = buffer.get();
+        mirroredDirection = buffer.get();
+        cabCalls.clear();
+        for (int i = 0; i < cabBytes; i++) {
+            int bits = buffer.get() & 0xff;
+            for (int bit = 0; bit < 8; bit++)
+                if ((bits & (1 << bit)) != 0) cabCalls.set(i * 8 + bit);
+        }
+        for (int slot = 0; slot < slots; slot++) {
+            jobStates[slot] = buffer.get();
+            jobLocal[slot] = buffer.get() != 0;
+            jobOwners[slot] = buffer.getInt();
+        }
+    }
+
+    /**
+     * @return the direction the primary was moving in when it died, DIR_STOP if it wasn't or we aren't taking over
+     */
+    public static int getTakeoverDirection() {
+        return takingOver ? mirroredDirection : Elevator.DIR_STOP;
+    }
+
+    /**
+     * Called by the Elevator once it has issued its first command after a takeover (before homing)
+     */
+    public static void inControl() {
+        if (!takingOver || takeoverMillis >= 0) return;
+        long now = System.nanoTime();
+        takeoverMillis = TimeUnit.NANOSECONDS.toMillis(now - lastHeard);
+        System.out.println("Process pair: in control of the hardware at " + System.currentTimeMillis() + ", " + takeoverMillis
+                + " ms after the primary's last heartbeat (" + TimeUnit.NANOSECONDS.toMillis(now - detectedAt) + " ms after taking over)");
+    }
+
+    /**
+     * Put back the orders mirrored from the primary - called by the Elevator before it starts reading the buttons
+     */
+    public static void restore(Elevator elevator) {
+        if (!takingOver) return;
+        int cabCount = 0, jobCount = 0;
+        for (int floor = cabCalls.nextSetBit(1); floor != -1 && floor <= numFloors; floor = cabCalls.nextSetBit(floor + 1)) {
+            if (elevator.restoreCabCall(floor)) cabCount++;
+        }
+        JobTable table = new JobTable(numFloors); // Only for the slot numbering
+        for (int slot = 0; slot < slots; slot++) {
+            if (jobStates[slot] != JobTable.STATE_PENDING && jobStates[slot] != JobTable.STATE_TAKEN) continue;
+            int target = table.targetOf(slot);
+            // Unless the journal had it already
+            if (!CommandDispatcher.restoreJob(elevator, target, jobStates[slot], jobLocal[slot], jobOwners[slot])) continue;
+            elevator.setButtonLamp(target > 0 ? Elevator.BUTTON_TYPE_CALL_UP : Elevator.BUTTON_TYPE_CALL_DOWN, Math.abs(target) - 1, 1);
+            jobCount++;
+        }
+        System.out.println("Process pair: took over " + cabCount + " cab call(s) and " + jobCount + " hall call(s) from the primary"
+                + " (last at floor " + mirroredFloor + ", direction " + mirroredDirection + ")");
+    }
+
+    /**
+     * Keeps the standby (if any) up to date - started by the primary once it's up
+     */
+    static class Heartbeat extends Thread {
+        private final DatagramSocket socket;
+        private final ByteBuffer buffer = ByteBuffer.allocate(datagramSize);
+        private final DatagramPacket packet;
+
+        Heartbeat() throws IOException {
+            super("PairHeartbeat");
+            setDaemon(true);
+            socket = new DatagramSocket();
+            packet = new DatagramPacket(buffer.array(), datagramSize, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+
+        @Override
+        public void run() {
+            int sequence = 0;
+            while (true) {
+                Elevator elevator = Main.getElevator();
+                if (elevator != null) {
+                    buffer.clear();
+                    buffer.putInt(MAGIC).putInt(++sequence).putShort((short) numFloors)
+                            .put((byte) elevator.getCurrentFloor())
+                            .put((byte) elevator.getDirection());
+                    BitSet cab = elevator.getCabCalls();
+                    for (int i = 0; i < cabBytes; i++) {
+                        int bits = 0;
+                        for (int bit = 0; bit < 8; bit++)
+                            if (cab.get(i * 8 + bit)) bits |= 1 << bit;
+                        buffer.put((byte) bits);
+                    }
+                    CommandDispatcher.writeJobs(buffer);
+                    try {
+                        socket.send(packet);
+                    } catch (IOException ignored) {
+                        // Nobody standing by
+                    }
+                }
+                try {
+                    Thread.sleep(HEARTBEAT_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Replicated set of the hall calls, which converges on every node however the messages are lost, duplicated or
+ * reordered. The request/taken/completed messages still move the JobTable along - this is what brings it back in line
+ * when one of them goes missing, instead of waiting for CommandHandler.JOB_TIMEOUT.
+ *
+ * Every slot (floor, direction) is a multi-value register with a version vector. A node changing a call (pressing the
+ * button, taking it, completing it, or re-queuing it when its owner fails) writes the new state under a new version of
+ * its own, which replaces every write it has seen. Writes made without seeing each other are all kept, and the call
+ * reads as the strongest of them: TAKEN over PENDING over COMPLETED (so a call is never dropped by mistake - at worst
+ * it's served twice), and the highest node between two TAKEN. Merging keeps what both replicas have, and what one has
+ * that the other hasn't seen, so any two nodes that have exchanged a slot agree on it.
+ *
+ * A node's versions are max(last + 1, System.currentTimeMillis()), so after a restart it carries on above the versions
+ * its peers have seen from it (as long as the clock doesn't go back).
+ *
+ * Every change is sent at once as a delta (a TYPE_ORDERS record, queued before the message announcing the change).
+ * Every 'order_sync_interval' ms (default DEFAULT_SYNC_INTERVAL, 0 to only use the messages as before) each node also
+ * sends a digest, a hash per slot. A node whose slots hash differently answers with its version of them right away,
+ * so nodes agree again within one round after a partition or a restart. When a merge changes a call, the JobTable and
+ * the lamps are made to match RECONCILE_DELAY later, if they don't already - by then the message the delta came with
+ * has normally been handled as well, and there's nothing left to do.
+ *
+ * Payload (big endian): | floors (2) | digest: per slot (4) | count (2) | count times: slot (2) | columns (1) | columns times: node (4) | version (8) | state (1) | |
+ *  - version: the latest write we have seen from the node, state: what it wrote, or STATE_NONE if that was replaced
+ */
+class ReplicatedOrders {
+    public static final int DEFAULT_SYNC_INTERVAL = 1000, // ms
+            MAX_NODES = HallCallAssigner.MAX_CARS;
+    private static final int SLOT_HEADER_SIZE = 3,
+            COLUMN_SIZE = 13,
+            // More slots than this go in another record, so that a record fits in one UDP datagram (one slot is always
+            // sent) - the UdpTransport splits a batch into datagrams between records
+            DELTA_BUDGET = 512;
+    // Time for the message that came with a delta to be handled, before the JobTable is checked against it
+    private static final long RECONCILE_DELAY = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final int syncInterval = configuredInterval();
+    public static final boolean ENABLED = syncInterval > 0;
+
+    private static final int numFloors = Elevator.NUM_FLOORS,
+            slots = numFloors * 2;
+    private static final JobTable numbering = new JobTable(numFloors); // Only for the slot numbering
+
+    // The nodes that have written to the slots - the columns of the version vectors, in the order we heard of them
+    private static final int[] nodes = new int[MAX_NODES];
+    private static int nodeCount = 0;
+    // Per slot and column: the latest version we have seen from the node, and what it wrote (STATE_NONE if replaced)
+    private static final long[][] versions = new long[slots][MAX_NODES];
+    private static final byte[][] states = new byte[slots][MAX_NODES];
+    private static long clock = 0;
+    // The slots to send in the next delta
+    private static final boolean[] dirty = new boolean[slots];
+    // System.nanoTime() when a merge changed each slot (0 if it hasn't since the JobTable was last checked against it)
+    private static final long[] mergedAt = new long[slots];
+    private static final int[] reconcileTargets = new int[slots], reconcileStates = new int[slots], reconcileOwners = new int[slots];
+    // Set while a TYPE_ORDERS record is queued, so that a burst of changes only sends one
+    private static final AtomicBoolean syncPending = new AtomicBoolean(false);
+
+    static {
+        column(CommandHandler.NODE_INDEX);
+    }
+
+    private ReplicatedOrders() {}
+
+    private static int configuredInterval() {
+        try {
+            return Math.max(0, Integer.parseInt(Settings.getSetting("order_sync_interval", String.valueOf(DEFAULT_SYNC_INTERVAL)).trim()));
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid order_sync_interval setting, using " + DEFAULT_SYNC_INTERVAL);
+            return DEFAULT_SYNC_INTERVAL;
+        }
+    }
+
+    /**
+     * @return the largest payload writeSync can produce
+     */
+    public static int maxEncodedSize(int numFloors) {
+        return 2 + numFloors * 2 * 4 + 2 + Math.max(DELTA_BUDGET, SLOT_HEADER_SIZE + MAX_NODES * COLUMN_SIZE);
+    }
+
+    /**
+     * The button was pressed here, or the job was put back up for grabs
+     */
+    public static void requested(int target) {
+        write(target, JobTable.STATE_PENDING);
+    }
+
+    public static void taken(int target) {
+        write(target, JobTable.STATE_TAKEN);
+    }
+
+    public static void completed(int target) {
+        write(target, JobTable.STATE_COMPLETED);
+    }
+
+    private static void write(int target, int state) {
+        if (!ENABLED) return;
+        int slot = numbering.slotOf(target);
+        if (slot < 0) return;
+        synchronized (ReplicatedOrders.class) {
+            clock = Math.max(clock + 1, System.currentTimeMillis());
+            // Replaces every write we've seen
+            for (int column = 0; column < nodeCount; column++)
+                states[slot][column] = JobTable.STATE_NONE;
+            versions[slot][0] = clock; // Column 0 is us
+            states[slot][0] = (byte) state;
+            dirty[slot] = true;
+        }
+        queueSync();
+    }
+
+    /**
+     * Send the digest and the changed slots (never blocks)
+     */
+    public static void queueSync() {
+        if (syncPending.compareAndSet(false, true) && !Networking.queueMessage(ClusterMessage.TYPE_ORDERS, 0))
+            syncPending.set(false);
+    }
+
+    /**
+     * @return the column of the node, added if it's new - or -1 if there is no room for it
+     */
+    private static int column(int node) {
+        for (int column = 0; column < nodeCount; column++)
+            if (nodes[column] == node) return column;
+        if (nodeCount == MAX_NODES) {
+            Log.warn("Too many nodes in the cluster, ignoring the orders of {ip}", node);
+            return -1;
+        }
+        nodes[nodeCount] = node;
+        return nodeCount++;
+    }
+
+    private static int columnsIn(int slot) {
+        int count = 0;
+        for (int column = 0; column < nodeCount; column++)
+            if (versions[slot][column] != 0) count++;
+        return count;
+    }
+
+    /**
+     * @return a hash of the slot that doesn't depend on the order of the columns
+     */
+    private static int digest(int slot) {
+        int hash = 0;
+        for (int column = 0; column < nodeCount; column++) {
+            if (versions[slot][column] == 0) continue;
+            long mixed = (nodes[column] * 0x9e3779b97f4a7c15L) ^ (versions[slot][column] * 0xc2b2ae3d27d4eb4fL) ^ states[slot][column];
+            mixed ^= mixed >>> 33;
+            mixed *= 0xff51afd7ed558ccdL;
+            mixed ^= mixed >>> 33;
+            hash += (int) mixed;
+        }
+        return hash;
+    }
+
+    private static int rank(int state) {
+        switch (state) {
+            case JobTable.STATE_TAKEN:
+                return 3;
+            case JobTable.STATE_PENDING:
+                return 2;
+            case JobTable.STATE_COMPLETED:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return the column holding the write the slot reads as, or -1 if nobody has written to it
+     */
+    private static int strongest(int slot) {
+        int best = -1;
+        for (int column = 0; column < nodeCount; column++) {
+            int rank = rank(states[slot][column]);
+            if (rank == 0) continue;
+            int bestRank = best < 0 ? 0 : rank(states[slot][best]);
+            if (rank > bestRank || (rank == bestRank && nodes[column] > nodes[best]))
+                best = column;
+        }
+        return best;
+    }
+
+    /**
+     * @return what the slot reads as: | state (32 bits) | owner (32 bits, only for STATE_TAKEN) |
+     */
+    private static long read(int slot) {
+        int column = strongest(slot);
+        if (column < 0) return 0;
+        int state = states[slot][column];
+        return ((long) state << 32) | (state == JobTable.STATE_TAKEN ? nodes[column] & 0xffffffffL : 0);
+    }
+
+    /**
+     * Write the digest and the changed slots as the payload of a TYPE_ORDERS record - called by the MessageSender thread
+     */
+    static synchronized void writeSync(ByteBuffer buffer) {
+        syncPending.set(false);
+        buffer.putShort((short) numFloors);
+        for (int slot = 0; slot < slots; slot++)
+            buffer.putInt(digest(slot));
+        int countPosition = buffer.position();
+        buffer.putShort((short) 0);
+        int count = 0, budget = DELTA_BUDGET;
+        boolean more = false;
+        for (int slot = 0; slot < slots; slot++) {
+            if (!dirty[slot]) continue;
+            int columns = columnsIn(slot), size = SLOT_HEADER_SIZE + columns * COLUMN_SIZE;
+            if (count > 0 && size > budget) {
+                more = true;
+                continue;
+            }
+            buffer.putShort((short) slot).put((byte) columns);
+            for (int column = 0; column < nodeCount; column++) {
+                if (versions[slot][column] == 0) continue;
+                buffer.putInt(nodes[column]).putLong(versions[slot][column]).put(states[slot][column]);
+            }
+            dirty[slot] = false;
+            budget -= size;
+            count++;
+        }
+        buffer.putShort(countPosition, (short) count);
+        if (more) queueSync(); // The rest goes in the next batch
+    }
+
+    /**
+     * Merge the slots received from another node, and answer with ours where the digests still differ - on the ControlLoop
+     */
+    public static void onSync(ClusterMessage message) {
+        ByteBuffer payload = message.payload;
+        if (!ENABLED || payload == null || message.node == CommandHandler.NODE_INDEX) return;
+        boolean answer = false;
+        long now = System.nanoTime();
+        synchronized (ReplicatedOrders.class) {
+            if (payload.remaining() < 2 + slots * 4 + 2 || payload.getShort() != numFloors) return;
+            int digestPosition = payload.position();
+            payload.position(digestPosition + slots * 4);
+            int count = payload.getShort() & 0xffff;
+            for (int i = 0; i < count; i++) {
+                if (payload.remaining() < SLOT_HEADER_SIZE) break;
+                int slot = payload.getShort(), columns = payload.get() & 0xff;
+                if (slot < 0 || slot >= slots || payload.remaining() < columns * COLUMN_SIZE) break;
+                long before = read(slot);
+                for (int j = 0; j < columns; j++)
+                    merge(slot, payload.getInt(), payload.getLong(), payload.get());
+                if (read(slot) != before && mergedAt[slot] == 0)
+                    mergedAt[slot] = now | 1; // Never 0
+            }
+            // Where they still differ after the merge, we have something they haven't seen (or they have something
+            // they didn't send) - sending ours gets them to send theirs too, if needed
+            for (int slot = 0; slot < slots; slot++) {
+                if (payload.getInt(digestPosition + slot * 4) == digest(slot)) continue;
+                dirty[slot] = true;
+                answer = true;
+            }
+        }
+        if (answer) queueSync();
+    }
+
+    private static void merge(int slot, int node, long version, byte state) {
+        int column = column(node);
+        if (column < 0) return;
+        if (column == 0 && version > clock)
+            clock = version; // Written by us before a restart - carry on above it
+        long ours = versions[slot][column];
+        if (version > ours) {
+            versions[slot][column] = version;
+            states[slot][column] = state;
+        } else if (version == ours && state == JobTable.STATE_NONE) {
+            states[slot][column] = JobTable.STATE_NONE; // They've seen a write that replaced it
+        }
+        // Older than what we have - we've seen it already
+    }
+
+    /**
+     * Make the JobTable and the lamps match the calls changed by merges RECONCILE_DELAY ago - on the ControlLoop
+     * @return nanoseconds until the next slot is due, or -1 if there are none
+     */
+    static long reconcile(long now) {
+        int count = 0;
+        long wait = -1;
+        synchronized (ReplicatedOrders.class) {
+            for (int slot = 0; slot < slots; slot++) {
+                if (mergedAt[slot] == 0) continue;
+                long due = mergedAt[slot] + RECONCILE_DELAY - now;
+                if (due > 0) {
+                    if (wait < 0 || due < wait) wait = due;
+                    continue;
+                }
+                mergedAt[slot] = 0;
+                long value = read(slot);
+                reconcileTargets[count] = numbering.targetOf(slot);
+                reconcileStates[count] = (int) (value >>> 32);
+                reconcileOwners[count] = (int) value;
+                count++;
+            }
+        }
+        Elevator elevator = Main.getElevator();
+        for (int i = 0; i < count; i++) {
+            int target = reconcileTargets[i], state = reconcileStates[i];
+            if (!CommandDispatcher.converge(target, state, reconcileOwners[i])) continue;
+            Metrics.ORDER_REPAIRS.increment();
+            Log.info("Order sync: hall call {} was out of date, now {}", target, state);
+            if (elevator != null)
+                elevator.setButtonLamp(target > 0 ? Elevator.BUTTON_TYPE_CALL_UP : Elevator.BUTTON_TYPE_CALL_DOWN,
+                        Math.abs(target) - 1, state == JobTable.STATE_COMPLETED ? 0 : 1);
+        }
+        return wait;
+    }
+
+    /**
+     * Sends the digest every 'order_sync_interval' ms, even if nothing changes
+     */
+    static class SyncPublisher extends Thread {
+        SyncPublisher() {
+            super("OrderSync");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (Main.getElevator() != null)
+                    queueSync();
+                try {
+                    sleep(syncInterval);
+                } catch (InterruptedException ignored) {}
+            }
+        }
+    }
+}
@@ -8,17 +8,40 @@ import java.util.logging.Logger;
 public class Settings {
 	private static Logger LOGGER = Logger.getLogger(Settings.class.getSimpleName());
 	
-	private static Properties properties;
+	public static final String CONFIG_FILE = "elevator.config";
+
+	// Replaced as a whole by reload()
+	private static volatile Properties properties;
+	// Set through setSetting - kept when the file is read again
+	private static final Properties overrides = new Properties();
 	
 	private static void init()
 	{
 		properties = new Properties();
 		try {
-			properties.load(new FileInputStream("elevator.config"));
+			properties.load(new FileInputStream(CONFIG_FILE));
 		} catch (IOException e) {
 			LOGGER.severe("Could not load config file.\n"+e.getMessage());
 		}
 	}
+
+	/**
+	 * Read the config file again (e.g. after it was edited, see Tuning.Watcher) - the settings are replaced all at once
+	 * @return false if the file couldn't be read, in which case the current settings are kept
+	 */
+	public static synchronized boolean reload()
+	{
+		Properties loaded = new Properties();
+		try (FileInputStream in = new FileInputStream(CONFIG_FILE)) {
+			loaded.load(in);
+		} catch (IOException e) {
+			LOGGER.warning("Could not reload config file.\n"+e.getMessage());
+			return false;
+		}
+		loaded.putAll(overrides);
+		properties = loaded;
+		return true;
+	}
 	
 	public static String getSetting(String key)
 	{
@@ -27,13 +50,40 @@ public class Settings {
 			init();
 		}
 		
-		if(properties != null)
+		Properties current = properties;
+		if(current != null)
 		{
-			String prop = properties.getProperty(key);
+			String prop = current.getProperty(key);
 			if(prop == null) throw new NullPointerException("Property '"+ key + "' is not set in config file!");
 			return prop;
 		}
 		throw new IllegalStateException("No config file was loaded!");
 	}
 
+	/**
+	 * Override a setting for the rest of this run (e.g. from a benchmark or tool with no config file) - call it before
+	 * the classes reading the setting are loaded, since most settings are only read once
+	 */
+	public static synchronized void setSetting(String key, String value)
+	{
+		if(properties == null)
+		{
+			init();
+		}
+		overrides.setProperty(key, value);
+		properties.setProperty(key, value);
+	}
+
+	/**
+	 * Same as getSetting(key), but returns the given default instead of throwing if the setting is missing
+	 */
+	public static String getSetting(String key, String defaultValue)
+	{
+		try {
+			return getSetting(key);
+		} catch (NullPointerException | IllegalStateException e) {
+			return defaultValue;
+		}
+	}
+
 }
@@ -0,0 +1,129 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+/**
+ * One car of the BuildingSimulator, behind the same I/O surface as the hardware and the external simulator.
+ * There is no physics here - the simulator moves the car between floors on its virtual clock (see arriveAt/depart),
+ * and presses the buttons for its passengers. The outputs are kept, so the simulator can read the lamps the way the
+ * passengers would, and the motor starts and floors travelled are counted for the report.
+ */
+class SimulatedCar implements ElevatorDriver {
+    private final int numFloors;
+    // Indexed by (0-indexed) floor and button type
+    private final boolean[][] lamps, pressed;
+    private int floor = 1, motorDirection = Elevator.DIR_STOP, floorIndicator = 1;
+    private boolean atFloor = true, doorOpen = false;
+    private long motorStarts = 0, floorsTravelled = 0;
+
+    SimulatedCar(int numFloors) {
+        this.numFloors = numFloors;
+        lamps = new boolean[numFloors][Elevator.NUM_BUTTONS];
+        pressed = new boolean[numFloors][Elevator.NUM_BUTTONS];
+    }
+
+    @Override
+    public boolean init() {
+        return true;
+    }
+
+    @Override
+    public void setMotorDirection(int dirn) {
+        if (motorDirection == Elevator.DIR_STOP && dirn != Elevator.DIR_STOP) motorStarts++;
+        motorDirection = dirn;
+    }
+
+    @Override
+    public void setButtonLamp(int button, int floor, int value) {
+        lamps[floor][button] = value != 0;
+    }
+
+    @Override
+    public void setFloorIndicator(int floor) {
+        floorIndicator = floor;
+    }
+
+    @Override
+    public void setDoorOpenLamp(int value) {
+        doorOpen = value != 0;
+    }
+
+    @Override
+    public void setStopLamp(int value) {}
+
+    @Override
+    public void setOutputs(int[] outputs, int count) {
+        OutputRegister.writeEach(this, outputs, count);
+    }
+
+    @Override
+    public int getFloorSensorSignal() {
+        return atFloor ? floor : 0;
+    }
+
+    @Override
+    public int getObstructionSignal() {
+        return 0;
+    }
+
+    /**
+     * Buttons read as pressed once, as if they were released right after the scan
+     */
+    @Override
+    public void getInputSnapshot(int[] snapshot) {
+        for (int floor = 0; floor < numFloors; floor++) {
+            for (int button = 0; button < Elevator.NUM_BUTTONS; button++) {
+                snapshot[floor * Elevator.NUM_BUTTONS + button] = pressed[floor][button] ? 1 : 0;
+                pressed[floor][button] = false;
+            }
+        }
+        snapshot[numFloors * Elevator.NUM_BUTTONS] = getFloorSensorSignal();
+        snapshot[numFloors * Elevator.NUM_BUTTONS + 1] = 0;
+        snapshot[numFloors * Elevator.NUM_BUTTONS + 2] = 0;
+    }
+
+    /**
+     * @param floor - 0-indexed, as for the lamps
+     */
+    public void pressButton(int button, int floor) {
+        pressed[floor][button] = true;
+    }
+
+    public boolean isLampOn(int button, int floor) {
+        return lamps[floor][button];
+    }
+
+    public int getMotorDirection() {
+        return motorDirection;
+    }
+
+    public boolean isDoorOpen() {
+        return doorOpen;
+    }
+
+    public int getFloorIndicator() {
+        return floorIndicator;
+    }
+
+    /**
+     * The car left the floor sensor it was at
+     */
+    public void depart() {
+        atFloor = false;
+    }
+
+    /**
+     * The car reached the sensor of the given floor (1-indexed)
+     */
+    public void arriveAt(int floor) {
+        if (floor != this.floor) floorsTravelled += Math.abs(floor - this.floor);
+        this.floor = floor;
+        atFloor = true;
+    }
+
+    public long getMotorStarts() {
+        return motorStarts;
+    }
+
+    public long getFloorsTravelled() {
+        return floorsTravelled;
+    }
+}
@@ -0,0 +1,211 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Pure Java driver for the elevator simulator, speaking the same 4-byte TCP protocol as the ET_Simulation mode in elev.c.
+ * Queries for a whole input scan are written in one batch and the replies read back in order, and all buffers are
+ * allocated up front, so polling doesn't allocate anything or cross JNI.
+ */
+class SimulatorDriver implements ElevatorDriver {
+    public static final String CONFIG_FILE = "simulator.con";
+
+    // Command identifiers in the simulator protocol
+    private static final byte CMD_RELOAD = 0,
+            CMD_MOTOR_DIRECTION = 1,
+            CMD_BUTTON_LAMP = 2,
+            CMD_FLOOR_INDICATOR = 3,
+            CMD_DOOR_OPEN_LAMP = 4,
+            CMD_STOP_LAMP = 5,
+            CMD_BUTTON_SIGNAL = 6,
+            CMD_FLOOR_SENSOR = 7,
+            CMD_STOP_SIGNAL = 8,
+            CMD_OBSTRUCTION_SIGNAL = 9;
+    private static final int MESSAGE_SIZE = 4;
+
+    private final String host;
+    private final int port;
+    private SocketChannel channel;
+
+    // Requests/replies for single commands
+    private final ByteBuffer commandBuffer = ByteBuffer.allocateDirect(MESSAGE_SIZE),
+            replyBuffer = ByteBuffer.allocateDirect(MESSAGE_SIZE);
+    // Batches of outputs (see setOutputs) - grown if a bigger one comes along
+    private ByteBuffer outputBuffer = ByteBuffer.allocateDirect(OutputRegister.channels(Elevator.NUM_FLOORS) * MESSAGE_SIZE);
+    // The snapshot queries never change, so they are built once and re-sent as-is
+    private final ByteBuffer snapshotRequest = ByteBuffer.allocateDirect(Elevator.SNAPSHOT_SIZE * MESSAGE_SIZE),
+            snapshotReply = ByteBuffer.allocateDirect(Elevator.SNAPSHOT_SIZE * MESSAGE_SIZE);
+
+    SimulatorDriver(String host, int port) {
+        this.host = host;
+        this.port = port;
+        for (int floor = 0; floor < Elevator.NUM_FLOORS; floor++) {
+            for (int button = 0; button < Elevator.NUM_BUTTONS; button++) {
+                putMessage(snapshotRequest, CMD_BUTTON_SIGNAL, button, floor, 0);
+            }
+        }
+        putMessage(snapshotRequest, CMD_FLOOR_SENSOR, 0, 0, 0);
+        putMessage(snapshotRequest, CMD_STOP_SIGNAL, 0, 0, 0);
+        putMessage(snapshotRequest, CMD_OBSTRUCTION_SIGNAL, 0, 0, 0);
+        snapshotRequest.flip();
+    }
+
+    /**
+     * Create a driver using the com_ip and com_port settings from simulator.con
+     * @return the driver, or null if the config file couldn't be read
+     */
+    static SimulatorDriver fromConfigFile() {
+        String ip = null, port = null;
+        try (BufferedReader reader = new BufferedReader(new FileReader(CONFIG_FILE))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Lines are of the form "--key value // comment", anything not starting with "--" is ignored
+                line = line.trim();
+                if (!line.startsWith("--")) continue;
+                String[] parts = line.substring(2).split("\\s+");
+                if (parts.length < 2) continue;
+                if (parts[0].equalsIgnoreCase("com_ip")) ip = parts[1];
+                else if (parts[0].equalsIgnoreCase("com_port")) port = parts[1];
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to read " + CONFIG_FILE + ": " + e.getMessage());
+            return null;
+        }
+        if (ip == null || port == null) {
+            System.out.println("com_ip or com_port is missing from " + CONFIG_FILE);
+            return null;
+        }
+        return new SimulatorDriver(ip, Integer.parseInt(port));
+    }
+
+    @Override
+    public synchronized boolean init() {
+        try {
+            channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            send(CMD_RELOAD, 0, 0, 0);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Unable to connect to simulator at " + host + ":" + port + " - " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void setMotorDirection(int dirn) {
+        send(CMD_MOTOR_DIRECTION, dirn, 0, 0);
+    }
+
+    @Override
+    public synchronized void setButtonLamp(int button, int floor, int value) {
+        send(CMD_BUTTON_LAMP, button, floor, value);
+    }
+
+    @Override
+    public synchronized void setFloorIndicator(int floor) {
+        send(CMD_FLOOR_INDICATOR, floor - 1, 0, 0); // Convert from 1-indexed to 0-indexed
+    }
+
+    @Override
+    public synchronized void setDoorOpenLamp(int value) {
+        send(CMD_DOOR_OPEN_LAMP, value, 0, 0);
+    }
+
+    @Override
+    public synchronized void setStopLamp(int value) {
+        send(CMD_STOP_LAMP, value, 0, 0);
+    }
+
+    @Override
+    public synchronized void setOutputs(int[] outputs, int count) {
+        if (outputBuffer.capacity() < count * MESSAGE_SIZE)
+            outputBuffer = ByteBuffer.allocateDirect(count * MESSAGE_SIZE);
+        outputBuffer.clear();
+        for (int i = 0; i < count; i++)
+            outputBuffer.putInt(outputs[i]); // Already in the protocol's format - big-endian puts the command first
+        outputBuffer.flip();
+        try {
+            while (outputBuffer.hasRemaining())
+                channel.write(outputBuffer);
+        } catch (IOException e) {
+            System.out.println("Lost connection to simulator: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized int getFloorSensorSignal() {
+        if (!query(CMD_FLOOR_SENSOR)) return 0;
+        return replyBuffer.get(1) != 0 ? replyBuffer.get(2) + 1 : 0;
+    }
+
+    @Override
+    public synchronized int getObstructionSignal() {
+        if (!query(CMD_OBSTRUCTION_SIGNAL)) return 0;
+        return replyBuffer.get(1);
+    }
+
+    @Override
+    public synchronized void getInputSnapshot(int[] snapshot) {
+        snapshotRequest.rewind();
+        snapshotReply.clear();
+        try {
+            while (snapshotRequest.hasRemaining())
+                channel.write(snapshotRequest);
+            readFully(snapshotReply);
+        } catch (IOException e) {
+            System.out.println("Lost connection to simulator: " + e.getMessage());
+            // Report "nothing pressed, between floors" rather than stale values
+            for (int i = 0; i < Elevator.SNAPSHOT_SIZE; i++) snapshot[i] = 0;
+            return;
+        }
+        for (int i = 0; i < Elevator.SNAPSHOT_FLOOR; i++)
+            snapshot[i] = snapshotReply.get(i * MESSAGE_SIZE + 1);
+        int floorOffset = Elevator.SNAPSHOT_FLOOR * MESSAGE_SIZE;
+        snapshot[Elevator.SNAPSHOT_FLOOR] = snapshotReply.get(floorOffset + 1) != 0 ? snapshotReply.get(floorOffset + 2) + 1 : 0;
+        snapshot[Elevator.SNAPSHOT_STOP] = snapshotReply.get(Elevator.SNAPSHOT_STOP * MESSAGE_SIZE + 1);
+        snapshot[Elevator.SNAPSHOT_OBSTRUCTION] = snapshotReply.get(Elevator.SNAPSHOT_OBSTRUCTION * MESSAGE_SIZE + 1);
+    }
+
+    private static void putMessage(ByteBuffer buffer, byte command, int arg1, int arg2, int arg3) {
+        buffer.put(command).put((byte) arg1).put((byte) arg2).put((byte) arg3);
+    }
+
+    private boolean send(byte command, int arg1, int arg2, int arg3) {
+        commandBuffer.clear();
+        putMessage(commandBuffer, command, arg1, arg2, arg3);
+        commandBuffer.flip();
+        try {
+            while (commandBuffer.hasRemaining())
+                channel.write(commandBuffer);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Lost connection to simulator: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private boolean query(byte command) {
+        if (!send(command, 0, 0, 0)) return false;
+        replyBuffer.clear();
+        try {
+            readFully(replyBuffer);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Lost connection to simulator: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new IOException("Connection closed by simulator");
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.concurrent.*;
+
+/**
+ * Runs the startup phases concurrently - each one as soon as the phases it depends on are done - and logs how long
+ * each of them took, and when startup as a whole was done (time-to-ready).
+ */
+class StartupPipeline {
+    private final long startedAt = System.nanoTime();
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Startup");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Start a phase once all the dependencies are done - if one of them fails, so does this phase (without running)
+     * @return the result of the phase
+     */
+    public <T> Future<T> phase(final String name, final Callable<T> task, final Future<?>... dependencies) {
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                for (Future<?> dependency : dependencies)
+                    dependency.get();
+                long start = System.nanoTime();
+                try {
+                    return task.call();
+                } finally {
+                    long end = System.nanoTime();
+                    System.out.println("Startup: " + name + " took " + millis(end - start) + " ms (started at +" + millis(start - startedAt)
+                            + " ms, done at +" + millis(end - startedAt) + " ms)");
+                }
+            }
+        });
+    }
+
+    public void finish() {
+        System.out.println("Startup: ready after " + millis(System.nanoTime() - startedAt) + " ms");
+        executor.shutdown();
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
@@ -0,0 +1,155 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary trace of what the control logic saw and decided - every input edge published by the InputScanner, every
+ * cluster message handled by the CommandHandler (with its payload) and every job the CommandDispatcher dispatched -
+ * so that incidents and busy periods can be replayed and profiled offline (see TraceReplayer).
+ *
+ * Enabled by setting 'trace_dir'. The trace goes to memory-mapped segments of 'trace_segment_size' MB (default 16) in
+ * that folder, named trace-<start time>-<segment>.bin. Nothing written is lost if the process is killed, since it's
+ * already in the page cache. Appending is a handful of puts into the mapped buffer under the class lock - the only I/O
+ * is mapping the next segment when one is full.
+ *
+ * Segment header (big endian): | magic (4) | version (2) | flags (1) | floors (1) | node (4) | segment (4) | start (8) |
+ *  - flags: FLAG_ASSIGNMENT if the HallCallAssigner was enabled, start: wall clock (ms) when the trace was started
+ * Record: | length (2) | kind (1) | type (1) | floor (2) | arg (2) | node (4) | sequence (4) | time (8) | extra (8) | payload |
+ *  - time is ns since the trace was started (from System.nanoTime(), never decreasing), a length of 0 ends the segment
+ *  - KIND_INPUT: the type, floor and arg of the InputEventQueue event
+ *  - KIND_MESSAGE: the ClusterMessage, extra = the sender's timestamp, followed by its payload (if any)
+ *  - KIND_DISPATCH: type = DISPATCH_TIMER or DISPATCH_ASSIGNED, floor = the target, extra = how late the timer was (ns)
+ */
+class TraceRecorder {
+    public static final int MAGIC = 0x454c5654, // "ELVT"
+            HEADER_SIZE = 24,
+            RECORD_SIZE = 32;
+    public static final short VERSION = 1;
+    public static final byte FLAG_ASSIGNMENT = 1;
+    public static final byte KIND_INPUT = 1,
+            KIND_MESSAGE = 2,
+            KIND_DISPATCH = 3;
+    public static final byte DISPATCH_TIMER = 1,
+            DISPATCH_ASSIGNED = 2;
+    public static final String FILE_PREFIX = "trace-",
+            FILE_SUFFIX = ".bin";
+    public static final int DEFAULT_SEGMENT_SIZE = 16; // MB
+
+    private static final String directory = Settings.getSetting("trace_dir", "").trim();
+    public static final boolean ENABLED = !directory.isEmpty();
+
+    private static final long startNanos = System.nanoTime(),
+            startMillis = System.currentTimeMillis();
+    private static final int segmentSize = segmentSize();
+    private static MappedByteBuffer segment = null;
+    private static int segmentIndex = -1;
+    private static long lastTime = 0, records = 0;
+    private static boolean failed = false;
+
+    static {
+        if (ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread("TraceFlush") {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    private TraceRecorder() {}
+
+    private static int segmentSize() {
+        try {
+            return Math.max(1, Integer.parseInt(Settings.getSetting("trace_segment_size", String.valueOf(DEFAULT_SEGMENT_SIZE)).trim())) << 20;
+        } catch (NumberFormatException e) {
+            return DEFAULT_SEGMENT_SIZE << 20;
+        }
+    }
+
+    /**
+     * @param event - as published on the InputEventQueue
+     */
+    public static void input(int event) {
+        if (!ENABLED) return;
+        append(KIND_INPUT, InputEventQueue.type(event), InputEventQueue.floor(event), InputEventQueue.arg(event), 0, 0, 0, null);
+    }
+
+    public static void message(ClusterMessage message) {
+        if (!ENABLED) return;
+        append(KIND_MESSAGE, message.type, message.floor, 0, message.node, message.sequence, message.timestamp, message.payload);
+    }
+
+    /**
+     * @param reason - DISPATCH_TIMER or DISPATCH_ASSIGNED
+     * @param lateness - how long after its deadline the timer fired (ns), 0 if assigned
+     */
+    public static void dispatch(int target, byte reason, long lateness) {
+        if (!ENABLED) return;
+        append(KIND_DISPATCH, reason, target, 0, CommandHandler.NODE_INDEX, 0, lateness, null);
+    }
+
+    private static synchronized void append(byte kind, int type, int floor, int arg, int node, int sequence, long extra, ByteBuffer payload) {
+        if (failed) return;
+        int length = RECORD_SIZE + (payload == null ? 0 : payload.remaining());
+        if (length > 0xffff || length > segmentSize - HEADER_SIZE - 2) return; // Can't be stored - never happens with our payloads
+        // Always leave room for the end marker
+        if ((segment == null || segment.remaining() < length + 2) && !nextSegment()) return;
+        long time = Math.max(lastTime, System.nanoTime() - startNanos);
+        lastTime = time;
+        segment.putShort((short) length)
+                .put(kind)
+                .put((byte) type)
+                .putShort((short) floor)
+                .putShort((short) arg)
+                .putInt(node)
+                .putInt(sequence)
+                .putLong(time)
+                .putLong(extra);
+        if (payload != null)
+            segment.put(payload.duplicate());
+        records++;
+    }
+
+    private static boolean nextSegment() {
+        // The full segment is left to the page cache like the rest - forcing it here would hold up the control threads
+        segmentIndex++;
+        File file = new File(directory, FILE_PREFIX + startMillis + "-" + String.format("%04d", segmentIndex) + FILE_SUFFIX);
+        try {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+                throw new IOException("Could not create " + parent);
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+                // The mapping stays valid after the channel is closed
+                segment = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+        } catch (IOException e) {
+            Log.error("Could not map the trace segment, tracing is disabled", e);
+            failed = true;
+            segment = null;
+            return false;
+        }
+        segment.putInt(MAGIC)
+                .putShort(VERSION)
+                .put(HallCallAssigner.ENABLED ? FLAG_ASSIGNMENT : 0)
+                .put((byte) Elevator.NUM_FLOORS)
+                .putInt(CommandHandler.NODE_INDEX)
+                .putInt(segmentIndex)
+                .putLong(startMillis);
+        Log.info("Tracing to segment {}", segmentIndex);
+        return true;
+    }
+
+    public static synchronized void flush() {
+        if (segment != null) segment.force();
+    }
+
+    public static synchronized long getRecords() {
+        return records;
+    }
+}
@@ -0,0 +1,388 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds a trace written by the TraceRecorder back into the dispatch logic as fast as it can, and compares the jobs it
+ * takes with the ones taken when the trace was recorded - to reproduce incidents and busy periods offline, and to see
+ * what a change to the dispatch logic would have done differently with the same traffic.
+ *
+ * The replay runs on the recorded clock. Messages are fed to a JobDispatcher and HallCallAssigner.solve, the same steps
+ * as in the CommandHandler and the CommandDispatcher, with the recorded CarStates standing in for the elevators -
+ * including our own, which every node receives like the others'. Our cost estimates are therefore made from the last
+ * state we sent, not the live position, so timer decisions can move by a fraction of the travel time between two
+ * floors. The FailureDetector and the ReplicatedOrders sync aren't replayed (the job timeouts are).
+ *
+ * Usage: TraceReplayer <trace_dir> [start] - replays the latest trace in the folder, or the one started at 'start'
+ * (the number in the file names, trace-<start>-<segment>.bin)
+ */
+class TraceReplayer implements JobDispatcher.Node {
+    // Recorded and replayed decisions further apart than this are not the same decision
+    private static final long MATCH_WINDOW = TimeUnit.MILLISECONDS.toNanos(CommandHandler.JOB_TIMEOUT);
+    // Our own TAKEN message arrives this soon after the recorded decision it announces
+    private static final long ECHO_WINDOW = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_DIFFERENCES_SHOWN = 20;
+
+    private final int self, numFloors;
+    private final JobDispatcher dispatcher;
+    // Sorted by node, as in the HallCallAssigner
+    private final CarState[] cars = new CarState[HallCallAssigner.MAX_CARS];
+    private int carCount = 0;
+    // When each slot was last taken in the recording (by a dispatch decision), -1 if never
+    private final long[] recordedDecisionAt;
+    // A floor was reached - re-estimate the jobs once our state from there arrives
+    private boolean floorReached = false;
+    private long now = 0, records = 0, inputs = 0, messages = 0;
+
+    private final List<Decision> recorded = new ArrayList<>(), replayed = new ArrayList<>();
+
+    private static class Decision {
+        final long time;
+        final int target, reason;
+
+        Decision(long time, int target, int reason) {
+            this.time = time;
+            this.target = target;
+            this.reason = reason;
+        }
+    }
+
+    TraceReplayer(int self, int numFloors) {
+        this.self = self;
+        this.numFloors = numFloors;
+        dispatcher = new JobDispatcher(numFloors, self, this);
+        recordedDecisionAt = new long[dispatcher.size()];
+        Arrays.fill(recordedDecisionAt, -1);
+    }
+
+    /**
+     * Replay the records of one segment
+     * @return false if the file isn't a trace segment
+     */
+    public boolean replaySegment(File file) throws IOException {
+        ByteBuffer buffer;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        }
+        if (buffer.remaining() < TraceRecorder.HEADER_SIZE || buffer.getInt(0) != TraceRecorder.MAGIC
+                || buffer.getShort(4) != TraceRecorder.VERSION)
+            return false;
+        buffer.position(TraceRecorder.HEADER_SIZE);
+        while (buffer.remaining() >= 2) {
+            int start = buffer.position(), length = buffer.getShort(start) & 0xffff;
+            if (length == 0) break; // End of the segment
+            if (length < TraceRecorder.RECORD_SIZE || length > buffer.remaining()) {
+                System.out.println(file.getName() + ": corrupt record at offset " + start + ", skipping the rest of the segment");
+                break;
+            }
+            buffer.position(start + 2);
+            byte kind = buffer.get(), type = buffer.get();
+            int floor = buffer.getShort(), arg = buffer.getShort(), node = buffer.getInt();
+            buffer.getInt(); // sequence
+            long time = buffer.getLong(), extra = buffer.getLong();
+            ByteBuffer payload = null;
+            if (length > TraceRecorder.RECORD_SIZE) {
+                payload = buffer.slice();
+                payload.limit(length - TraceRecorder.RECORD_SIZE);
+            }
+            buffer.position(start + length);
+            replay(kind, type, floor, arg, node, time, payload);
+        }
+        return true;
+    }
+
+    private void replay(byte kind, byte type, int floor, int arg, int node, long time, ByteBuffer payload) {
+        runTimers(time);
+        now = time;
+        records++;
+        switch (kind) {
+            case TraceRecorder.KIND_INPUT:
+                inputs++;
+                if (type == InputEventQueue.EVENT_FLOOR_REACHED) floorReached = true;
+                break;
+            case TraceRecorder.KIND_MESSAGE:
+                messages++;
+                onMessage(type, floor, node, payload);
+                break;
+            case TraceRecorder.KIND_DISPATCH:
+                recorded.add(new Decision(time, floor, type));
+                int slot = dispatcher.slotOf(floor);
+                if (slot >= 0) recordedDecisionAt[slot] = time;
+                break;
+        }
+    }
+
+    /**
+     * Fire the timers that were due before the given time, as the CommandDispatcher would have
+     */
+    private void runTimers(long until) {
+        long wait;
+        while ((wait = dispatcher.nanosUntilNext(now)) >= 0 && now + wait <= until) {
+            now += wait;
+            dispatcher.dispatchDue(now);
+        }
+    }
+
+    /* ---- CommandHandler ---- */
+
+    private void onMessage(byte type, int target, int node, ByteBuffer payload) {
+        switch (type) {
+            case ClusterMessage.TYPE_STATE:
+                onState(node, target == ClusterMessage.STATE_HEARTBEAT, payload);
+                break;
+            case ClusterMessage.TYPE_NEW_REQUEST:
+                dispatcher.requested(target, node);
+                solve();
+                break;
+            case ClusterMessage.TYPE_JOB_TAKEN:
+                if (node == self) {
+                    // The announcement of a recorded decision is left to the replay - but jobs taken when passing by
+                    // aren't dispatch decisions, so those are taken here
+                    int slot = dispatcher.slotOf(target);
+                    if (slot >= 0 && (recordedDecisionAt[slot] < 0 || now - recordedDecisionAt[slot] > ECHO_WINDOW))
+                        dispatcher.takeRequest(target);
+                } else if (dispatcher.taken(target, node)) {
+                    solve();
+                }
+                break;
+            case ClusterMessage.TYPE_JOB_COMPLETE:
+                dispatcher.completed(target);
+                break;
+        }
+    }
+
+    /* ---- JobDispatcher.Node - the recorded elevator, and the decisions it made ---- */
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public boolean isStoppedAt(int floor) {
+        CarState own = ownState();
+        return own != null && !own.moving && own.floor == floor;
+    }
+
+    @Override
+    public long estimateTimeToServe(int target) {
+        CarState own = ownState();
+        if (own == null) // Haven't heard from ourselves yet - as if we were between floors
+            return (long) Elevator.DEFAULT_TRAVEL_TIME * numFloors;
+        return TimeUnit.NANOSECONDS.toMillis(own.timeToServe(own.itinerary, target));
+    }
+
+    @Override
+    public boolean isSuspected(int node) {
+        return false;
+    }
+
+    @Override
+    public void dispatch(int target, byte reason, long lateness) {
+        replayed.add(new Decision(now, target, reason));
+    }
+
+    @Override
+    public void jobTaken(int target, long waited) {}
+
+    @Override
+    public void jobChanged(JobTable jobs, int slot) {}
+
+    @Override
+    public void jobRequeued(int target) {}
+
+    @Override
+    public void jobsRequeued(int node, int count) {}
+
+    @Override
+    public void scheduleChanged() {
+        // runTimers asks for the next deadline before every record
+    }
+
+    /* ---- HallCallAssigner ---- */
+
+    private void onState(int node, boolean heartbeat, ByteBuffer payload) {
+        if (payload == null) return;
+        CarState car = findCar(node);
+        if (car == null) return;
+        boolean wasBusy = car.direction != Elevator.DIR_STOP;
+        if (!car.readFrom(payload)) {
+            car.updatedAt = 0;
+            return;
+        }
+        car.updatedAt = Math.max(1, now); // 0 means "no valid state"
+        // The Motion re-estimates the jobs at every floor, and when it runs out of stops - the state it sends right
+        // after is the first we know of where it is
+        if (node == self && !heartbeat && (floorReached || (wasBusy && car.direction == Elevator.DIR_STOP))) {
+            floorReached = false;
+            dispatcher.recalculateJobCosts();
+        }
+        solve();
+    }
+
+    private CarState findCar(int node) {
+        int index = 0;
+        while (index < carCount && cars[index].node < node) index++;
+        if (index < carCount && cars[index].node == node) return cars[index];
+        if (carCount == cars.length) return null;
+        System.arraycopy(cars, index, cars, index + 1, carCount - index);
+        CarState car = new CarState(numFloors);
+        car.node = node;
+        cars[index] = car;
+        carCount++;
+        return car;
+    }
+
+    private CarState ownState() {
+        for (int i = 0; i < carCount; i++)
+            if (cars[i].node == self) return cars[i].updatedAt == 0 ? null : cars[i];
+        return null;
+    }
+
+    private void solve() {
+        HallCallAssigner.solve(dispatcher, cars, carCount, now);
+    }
+
+    /* ---- Report ---- */
+
+    private static String reasonName(int reason) {
+        return reason == TraceRecorder.DISPATCH_TIMER ? "timer" : reason == TraceRecorder.DISPATCH_ASSIGNED ? "assigned" : "?";
+    }
+
+    private static String seconds(long nanos) {
+        return String.format("%.3f", nanos / 1e9);
+    }
+
+    /**
+     * Pair up the recorded and replayed decisions (same target, closest in time) and print the differences
+     */
+    public void printReport(int segments, long wallNanos) {
+        boolean[] matched = new boolean[replayed.size()];
+        Decision[] counterpart = new Decision[recorded.size()];
+        Histogram delta = new Histogram("decision_delta", "Time between the recorded and the replayed decision (us)");
+        int matches = 0, sameReason = 0, first = 0;
+        for (int i = 0; i < recorded.size(); i++) {
+            Decision decision = recorded.get(i);
+            while (first < replayed.size() && replayed.get(first).time < decision.time - MATCH_WINDOW) first++;
+            int best = -1;
+            for (int j = first; j < replayed.size() && replayed.get(j).time <= decision.time + MATCH_WINDOW; j++) {
+                Decision candidate = replayed.get(j);
+                if (matched[j] || candidate.target != decision.target) continue;
+                if (best < 0 || Math.abs(candidate.time - decision.time) < Math.abs(replayed.get(best).time - decision.time))
+                    best = j;
+            }
+            if (best < 0) continue;
+            matched[best] = true;
+            counterpart[i] = replayed.get(best);
+            matches++;
+            if (counterpart[i].reason == decision.reason) sameReason++;
+            delta.record(Math.abs(counterpart[i].time - decision.time) / 1000);
+        }
+
+        System.out.println("Replayed " + records + " records (" + inputs + " input edges, " + messages + " messages) from "
+                + segments + " segment(s), node " + ClusterMessage.nodeName(self) + ", assignment "
+                + (HallCallAssigner.ENABLED ? HallCallAssigner.MODE_OPTIMAL : HallCallAssigner.MODE_DELAY));
+        double span = now / 1e9, wall = wallNanos / 1e9;
+        System.out.println("Trace spans " + String.format("%.1f", span) + " s, replayed in " + String.format("%.3f", wall)
+                + " s (" + String.format("%.0f", span / Math.max(wall, 1e-9)) + "x)");
+        System.out.println("Decisions: " + recorded.size() + " recorded, " + replayed.size() + " replayed, " + matches
+                + " matched (" + sameReason + " for the same reason), " + (recorded.size() - matches) + " only recorded, "
+                + (replayed.size() - matches) + " only replayed");
+        if (matches > 0)
+            System.out.println("Timing of the matched decisions (ms): p50 " + String.format("%.1f", delta.getP50() / 1000.0)
+                    + ", p99 " + String.format("%.1f", delta.getP99() / 1000.0) + ", max " + String.format("%.1f", delta.getMax() / 1000.0));
+
+        // The differences, in time order
+        List<String> differences = new ArrayList<>();
+        int r = 0, p = 0;
+        while ((r < recorded.size() || p < replayed.size()) && differences.size() < MAX_DIFFERENCES_SHOWN) {
+            boolean takeRecorded = p >= replayed.size() || (r < recorded.size() && recorded.get(r).time <= replayed.get(p).time);
+            if (takeRecorded) {
+                Decision decision = recorded.get(r);
+                Decision other = counterpart[r++];
+                if (other == null)
+                    differences.add(seconds(decision.time) + " s  target " + decision.target + ": taken (" + reasonName(decision.reason) + "), not in the replay");
+                else if (other.reason != decision.reason)
+                    differences.add(seconds(decision.time) + " s  target " + decision.target + ": taken (" + reasonName(decision.reason)
+                            + "), replay took it at " + seconds(other.time) + " s (" + reasonName(other.reason) + ")");
+            } else {
+                Decision decision = replayed.get(p);
+                if (!matched[p++])
+                    differences.add(seconds(decision.time) + " s  target " + decision.target + ": taken in the replay (" + reasonName(decision.reason) + ") only");
+            }
+        }
+        if (!differences.isEmpty()) {
+            System.out.println("First differences:");
+            for (String difference : differences)
+                System.out.println("  " + difference);
+        }
+    }
+
+    /**
+     * @return the segments of the trace started at 'start' (the latest if null), in order
+     */
+    private static File[] findSegments(File directory, String start) {
+        File[] files = directory.listFiles();
+        if (files == null) return new File[0];
+        if (start == null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(TraceRecorder.FILE_PREFIX) || !name.endsWith(TraceRecorder.FILE_SUFFIX) || name.lastIndexOf('-') <= TraceRecorder.FILE_PREFIX.length()) continue;
+                String run = name.substring(TraceRecorder.FILE_PREFIX.length(), name.lastIndexOf('-'));
+                if (start == null || run.compareTo(start) > 0) start = run;
+            }
+        }
+        List<File> segments = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(TraceRecorder.FILE_PREFIX + start + "-") && name.endsWith(TraceRecorder.FILE_SUFFIX))
+                segments.add(file);
+        }
+        File[] sorted = segments.toArray(new File[segments.size()]);
+        Arrays.sort(sorted); // Segment numbers are zero-padded
+        return sorted;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: TraceReplayer <trace_dir> [start]");
+            System.exit(1);
+        }
+        File[] segments = findSegments(new File(args[0]), args.length > 1 ? args[1] : null);
+        if (segments.length == 0) {
+            System.out.println("No trace found in " + args[0]);
+            System.exit(1);
+        }
+        // The node, building and mode come from the trace - set before the classes reading them are loaded
+        ByteBuffer header = ByteBuffer.allocate(TraceRecorder.HEADER_SIZE);
+        try (RandomAccessFile input = new RandomAccessFile(segments[0], "r")) {
+            input.getChannel().read(header, 0);
+        }
+        if (header.getInt(0) != TraceRecorder.MAGIC || header.getShort(4) != TraceRecorder.VERSION) {
+            System.out.println(segments[0] + " is not a trace segment (or from another version)");
+            System.exit(1);
+        }
+        boolean assignment = (header.get(6) & TraceRecorder.FLAG_ASSIGNMENT) != 0;
+        int numFloors = header.get(7) & 0xff, node = header.getInt(8);
+        Settings.setSetting("ip_address", ClusterMessage.nodeName(node));
+        Settings.setSetting("num_floors", String.valueOf(numFloors));
+        Settings.setSetting("assignment", assignment ? HallCallAssigner.MODE_OPTIMAL : HallCallAssigner.MODE_DELAY);
+
+        TraceReplayer replayer = new TraceReplayer(node, numFloors);
+        long start = System.nanoTime();
+        int replayedSegments = 0;
+        for (File segment : segments) {
+            if (replayer.replaySegment(segment)) replayedSegments++;
+            else System.out.println("Skipping " + segment + " - not a trace segment");
+        }
+        replayer.printReport(replayedSegments, System.nanoTime() - start);
+    }
+}
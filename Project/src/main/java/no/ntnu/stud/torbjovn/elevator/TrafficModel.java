@@ -0,0 +1,65 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.Random;
+
+/**
+ * Passenger arrivals for the BuildingSimulator - a Poisson process at the given rate, with the origin and destination
+ * floors drawn according to the pattern:
+ *  - up-peak: everyone arrives at the lobby (floor 1) and goes to a random floor above (morning)
+ *  - down-peak: everyone goes from a random floor above to the lobby (evening)
+ *  - interfloor: random origin and destination, all floors alike (the rest of the day)
+ * Seeded, so two runs with the same parameters (e.g. before and after a dispatch change) get the same passengers.
+ */
+class TrafficModel {
+    public static final String UP_PEAK = "up-peak",
+            DOWN_PEAK = "down-peak",
+            INTERFLOOR = "interfloor";
+
+    private final String pattern;
+    private final int numFloors;
+    private final double meanInterval; // ns
+    private final Random random;
+
+    /**
+     * @param rate - passengers per hour
+     */
+    TrafficModel(String pattern, int numFloors, double rate, long seed) {
+        if (!UP_PEAK.equals(pattern) && !DOWN_PEAK.equals(pattern) && !INTERFLOOR.equals(pattern))
+            throw new IllegalArgumentException("Unknown traffic pattern '" + pattern + "' - use " + UP_PEAK + ", " + DOWN_PEAK + " or " + INTERFLOOR);
+        if (numFloors < 2 || rate <= 0)
+            throw new IllegalArgumentException("Need at least 2 floors and a positive arrival rate");
+        this.pattern = pattern;
+        this.numFloors = numFloors;
+        meanInterval = 3600e9 / rate;
+        random = new Random(seed);
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @return the time until the next passenger arrives (exponentially distributed), in ns
+     */
+    public long nextInterval() {
+        return (long) (-meanInterval * Math.log(1 - random.nextDouble()));
+    }
+
+    /**
+     * Draw the floors of the next passenger
+     * @param floors - filled with the origin and the destination (1-indexed, never the same)
+     */
+    public void nextTrip(int[] floors) {
+        if (UP_PEAK.equals(pattern)) {
+            floors[0] = 1;
+            floors[1] = 2 + random.nextInt(numFloors - 1);
+        } else if (DOWN_PEAK.equals(pattern)) {
+            floors[0] = 2 + random.nextInt(numFloors - 1);
+            floors[1] = 1;
+        } else {
+            floors[0] = 1 + random.nextInt(numFloors);
+            floors[1] = 1 + random.nextInt(numFloors - 1);
+            if (floors[1] >= floors[0]) floors[1]++;
+        }
+    }
+}
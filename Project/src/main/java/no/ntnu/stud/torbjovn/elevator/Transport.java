@@ -0,0 +1,29 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A way of passing ClusterMessage records between the elevators. Every record sent is delivered to every node in the
+ * cluster - this one included - through the Receiver given to start().
+ *
+ * start() gets the transport ready to send (which may take a while - e.g. booting a broker), while nothing is received
+ * until listen() is called, so startup can do this in parallel with setting up whatever handles the messages.
+ * send() is only called from the Networking sender thread, receivers are called from a single thread per transport.
+ */
+interface Transport {
+    interface Receiver {
+        void onMessage(ClusterMessage message);
+    }
+
+    void start() throws Exception;
+
+    void listen(Receiver receiver) throws Exception;
+
+    /**
+     * Send a batch of records encoded back-to-back (from position to limit)
+     * @return false if the batch couldn't be sent - the caller retries later
+     */
+    boolean send(ByteBuffer batch);
+
+    void shutdown() throws Exception;
+}
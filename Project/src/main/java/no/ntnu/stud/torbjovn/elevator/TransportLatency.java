@@ -0,0 +1,57 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the delivery latency of a transport: sends messages one at a time through Networking and times how long it
+ * takes until each one is delivered back to this node (the full path - outbound queue, batching window and transport).
+ *
+ * Usage: TransportLatency [artemis|udp] [messages]
+ * Uses elevator.config as usual - run it on loopback (ip_address=127.0.0.1, and udp_peers=127.0.0.1 for unicast UDP).
+ */
+class TransportLatency {
+    private static final int WARMUP = 200;
+
+    public static void main(String[] args) throws Exception {
+        String transportName = args.length > 0 ? args[0] : Networking.TRANSPORT_ARTEMIS;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        final Thread mainThread = Thread.currentThread();
+        final AtomicInteger delivered = new AtomicInteger();
+        Networking.init(new Transport.Receiver() {
+            @Override
+            public void onMessage(ClusterMessage message) {
+                if (message.node != CommandHandler.NODE_INDEX) return;
+                delivered.incrementAndGet();
+                LockSupport.unpark(mainThread);
+            }
+        }, transportName);
+
+        long[] latencies = new long[messages];
+        for (int i = -WARMUP; i < messages; i++) {
+            int expected = delivered.get() + 1;
+            long start = System.nanoTime();
+            Networking.queueMessage(ClusterMessage.TYPE_NEW_REQUEST, 1);
+            long deadline = start + TimeUnit.SECONDS.toNanos(5);
+            while (delivered.get() < expected && System.nanoTime() < deadline)
+                LockSupport.parkNanos(deadline - System.nanoTime());
+            if (delivered.get() < expected) {
+                System.out.println("Message " + i + " was not delivered within 5 s, aborting");
+                break;
+            }
+            if (i >= 0) latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        System.out.println(transportName + ": " + messages + " messages, latency (us) min " + micros(latencies[0])
+                + ", median " + micros(latencies[messages / 2]) + ", 99% " + micros(latencies[(int) (messages * 0.99)])
+                + ", max " + micros(latencies[messages - 1]));
+        Networking.shutdown();
+        System.exit(0);
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
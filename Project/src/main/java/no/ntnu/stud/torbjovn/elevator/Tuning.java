@@ -0,0 +1,219 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * The parameters that are tuned under load - the job delays of the CommandHandler and CommandDispatcher, and the
+ * Elevator's door and input timing - as typed, validated values read from elevator.config (keys in KEYS, the defaults
+ * are the constants they replace). All of them are in one immutable object: get() returns the current one, and a
+ * change replaces it as a whole, so nobody ever sees half of one. Read get() once per decision, not once per field.
+ *
+ * While the Watcher runs (unless 'config_watch' is false), the file is read again whenever it's saved. The new values
+ * are only applied if all of them are valid - otherwise the current ones are kept - and every change is logged. The
+ * pending jobs are then re-costed on the ControlLoop, and the rest is picked up the next time it's used (e.g. the door
+ * time at the next floor).
+ */
+final class Tuning {
+    // How long to let a burst of writes to the file settle before reading it (ms) - editors often save in several steps
+    public static final int SETTLE_DELAY = 100;
+    public static final boolean WATCH = !"false".equalsIgnoreCase(Settings.getSetting("config_watch", "true").trim());
+
+    private static final int COST_NOT_HERE = 0,
+            MILLIS_PER_COST = 1,
+            JOB_TIMEOUT = 2,
+            ASSIGNMENT_FALLBACK_DELAY = 3,
+            WAIT_OPEN_DOOR = 4,
+            WAIT_OPEN_DOOR_SHORT = 5,
+            SAMPLE_PERIOD = 6;
+    // The setting, default and range of each parameter, by the indices above
+    private static final String[] KEYS = {"cost_not_here", "millis_per_cost", "job_timeout", "assignment_fallback_delay",
+            "wait_open_door", "wait_open_door_short", "sample_period"};
+    private static final int[] DEFAULTS = {CommandHandler.COST_NOT_HERE, CommandHandler.MILLIS_PER_COST,
+            CommandHandler.JOB_TIMEOUT, CommandHandler.ASSIGNMENT_FALLBACK_DELAY, Elevator.WAIT_OPEN_DOOR,
+            Elevator.WAIT_OPEN_DOOR_SHORT, Elevator.SAMPLE_PERIOD},
+            MINIMUMS = {0, 1, 1000, 0, 0, 0, 1},
+            MAXIMUMS = {100, 10000, 600000, 60000, 60000, 60000, 1000};
+
+    private static volatile Tuning current = new Tuning(initialValues());
+
+    private final int[] values;
+
+    private Tuning(int[] values) {
+        this.values = values;
+    }
+
+    /**
+     * @return the parameters in use now
+     */
+    static Tuning get() {
+        return current;
+    }
+
+    /**
+     * Extra cost added for the elevators other than the one where the button was pressed
+     */
+    public int costNotHere() {
+        return values[COST_NOT_HERE];
+    }
+
+    /**
+     * The factor to multiply the cost by to get the delay (ms)
+     */
+    public int millisPerCost() {
+        return values[MILLIS_PER_COST];
+    }
+
+    /**
+     * If a job isn't marked as completed before this period (ms) expires, the next available elevator will take it
+     */
+    public int jobTimeout() {
+        return values[JOB_TIMEOUT];
+    }
+
+    /**
+     * Extra delay (ms) before taking a job nobody was assigned, when the HallCallAssigner is in use
+     */
+    public int assignmentFallbackDelay() {
+        return values[ASSIGNMENT_FALLBACK_DELAY];
+    }
+
+    /**
+     * How long to keep the door open after arriving at a floor (ms)
+     */
+    public int waitOpenDoor() {
+        return values[WAIT_OPEN_DOOR];
+    }
+
+    /**
+     * Door dwell (ms) when nobody in the cabin has a stop left to go to
+     */
+    public int waitOpenDoorShort() {
+        return values[WAIT_OPEN_DOOR_SHORT];
+    }
+
+    /**
+     * How often the InputListener reads the inputs (ms)
+     */
+    public int samplePeriod() {
+        return values[SAMPLE_PERIOD];
+    }
+
+    /**
+     * At startup, a bad value is replaced by its default (with a warning) rather than stopping the elevator
+     */
+    private static int[] initialValues() {
+        int[] values = new int[KEYS.length];
+        for (int i = 0; i < KEYS.length; i++) {
+            try {
+                values[i] = parse(i);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage() + ", using " + DEFAULTS[i]);
+                values[i] = DEFAULTS[i];
+            }
+        }
+        if (values[WAIT_OPEN_DOOR_SHORT] > values[WAIT_OPEN_DOOR])
+            values[WAIT_OPEN_DOOR_SHORT] = values[WAIT_OPEN_DOOR];
+        return values;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the setting isn't a number in the parameter's range
+     */
+    private static int parse(int index) {
+        String setting = Settings.getSetting(KEYS[index], null);
+        if (setting == null) return DEFAULTS[index];
+        int value;
+        try {
+            value = Integer.parseInt(setting.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + KEYS[index] + " setting '" + setting.trim() + "'");
+        }
+        if (value < MINIMUMS[index] || value > MAXIMUMS[index])
+            throw new IllegalArgumentException(KEYS[index] + " must be between " + MINIMUMS[index] + " and " + MAXIMUMS[index] + ", was " + value);
+        return value;
+    }
+
+    /**
+     * Read the parameters from the config file again, and apply them if they're all valid
+     * @return whether anything was changed
+     */
+    static synchronized boolean reload() {
+        if (!Settings.reload()) {
+            Log.warn("Tuning: could not read the config file, keeping the current values");
+            return false;
+        }
+        int[] values = new int[KEYS.length];
+        try {
+            for (int i = 0; i < KEYS.length; i++)
+                values[i] = parse(i);
+            if (values[WAIT_OPEN_DOOR_SHORT] > values[WAIT_OPEN_DOOR])
+                throw new IllegalArgumentException(KEYS[WAIT_OPEN_DOOR_SHORT] + " can't be longer than " + KEYS[WAIT_OPEN_DOOR]);
+        } catch (IllegalArgumentException e) {
+            Log.warn("Tuning: the config file was rejected, keeping the current values -", e.getMessage());
+            return false;
+        }
+        Tuning previous = current;
+        boolean changed = false;
+        for (int i = 0; i < KEYS.length; i++) {
+            if (values[i] == previous.values[i]) continue;
+            Log.info("Tuning: {key} changed from {} to {}", previous.values[i], values[i], KEYS[i]);
+            changed = true;
+        }
+        if (!changed) return false;
+        current = new Tuning(values);
+        // The job delays depend on the costs - reschedule the pending ones with the new values
+        ControlLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                CommandDispatcher.recalculateJobCosts();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Reloads the parameters whenever the config file is written
+     */
+    static class Watcher extends Thread {
+        private final Path file = Paths.get(Settings.CONFIG_FILE).toAbsolutePath();
+
+        Watcher() {
+            super("ConfigWatcher");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            // Watch the directory, since editors often replace the file instead of writing to it
+            try (WatchService watcher = file.getFileSystem().newWatchService()) {
+                file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                while (true) {
+                    if (!isConfigChanged(watcher.take())) continue;
+                    sleep(SETTLE_DELAY);
+                    WatchKey more;
+                    while ((more = watcher.poll()) != null)
+                        isConfigChanged(more);
+                    reload();
+                }
+            } catch (IOException e) {
+                Log.error("Tuning: can't watch the config file, changes won't be applied until restarted", e);
+            } catch (InterruptedException ignored) {}
+        }
+
+        private boolean isConfigChanged(WatchKey key) {
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context()))
+                    changed = true;
+            }
+            key.reset();
+            return changed;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lightweight transport sending each batch as UDP datagrams of at most MAX_DATAGRAM bytes, split between records - to a multicast group ('multicast_group', default
+ * DEFAULT_GROUP), or to each node in the comma-separated 'udp_peers' setting (host[:port], including this node) where
+ * multicast isn't available. Everything uses port 'udp_port' (default DEFAULT_PORT).
+ *
+ * Datagrams may be lost or duplicated, so:
+ * - Every node suppresses duplicates with a sliding window over each sender's sequence numbers
+ * - JOB_TAKEN and JOB_COMPLETE are acknowledged by every node receiving them, and retransmitted every RETRANSMIT_INTERVAL
+ *   until all the peers known when they were sent have acknowledged them (giving up after MAX_RETRANSMITS).
+ *   New requests aren't - the button can be pressed again. Whatever is lost in the end is repaired by the
+ *   ReplicatedOrders sync.
+ *
+ * Peers are the nodes we have heard from. Receiving and retransmitting is done by a single thread.
+ */
+class UdpTransport implements Transport {
+    public static final String DEFAULT_GROUP = "239.255.41.45";
+    public static final int DEFAULT_PORT = 41450;
+    private static final int MAX_DATAGRAM = 1472, // What fits in an ethernet frame
+            MAX_PEERS = 64,
+            MAX_PENDING = 64,
+            MAX_RETRANSMITS = 20,
+            DUPLICATE_WINDOW = 64; // One bit per sequence number in a long
+    // A single record larger than MAX_DATAGRAM (only possible with a lot of floors) is sent in a datagram of its own
+    private static final int RECEIVE_BUFFER_SIZE = Math.max(MAX_DATAGRAM,
+            ClusterMessage.SIZE + ClusterMessage.PAYLOAD_HEADER_SIZE + ClusterMessage.maxPayloadSize(Elevator.NUM_FLOORS));
+    private static final long RETRANSMIT_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int nodeIndex;
+    private DatagramChannel channel;
+    private Selector selector;
+    private InetSocketAddress[] destinations;
+    private Receiver receiver;
+    private volatile boolean running = true;
+
+    // Duplicate suppression, owned by the receiving thread: highest sequence seen from each peer, and a bitmask of which
+    // of the DUPLICATE_WINDOW sequence numbers below it have been seen. Our own messages use the last entry.
+    private static final int SELF = MAX_PEERS;
+    private final int[] peerNodes = new int[MAX_PEERS], highestSequence = new int[MAX_PEERS + 1];
+    private final long[] seenWindow = new long[MAX_PEERS + 1];
+    private int peerCount = 0;
+    // Bit i set if peerNodes[i] is known - read by the sender thread to decide who has to acknowledge
+    private volatile long knownPeers = 0;
+
+    // Messages waiting for acknowledgements - guarded by synchronizing on the array
+    private final byte[] pendingRecords = new byte[MAX_PENDING * ClusterMessage.SIZE];
+    private final int[] pendingSequence = new int[MAX_PENDING], pendingAttempts = new int[MAX_PENDING];
+    private final long[] pendingAwaiting = new long[MAX_PENDING], pendingDue = new long[MAX_PENDING]; // pendingAwaiting == 0: free
+
+    UdpTransport(int nodeIndex) {
+        this.nodeIndex = nodeIndex;
+    }
+
+    @Override
+    public void start() throws Exception {
+        int port = Integer.parseInt(Settings.getSetting("udp_port", String.valueOf(DEFAULT_PORT)));
+        String peers = Settings.getSetting("udp_peers", null);
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(port));
+        if (peers == null) {
+            InetAddress group = InetAddress.getByName(Settings.getSetting("multicast_group", DEFAULT_GROUP));
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName(Settings.getSetting("ip_address")));
+            if (networkInterface == null)
+                throw new IOException("No network interface has the address " + Settings.getSetting("ip_address"));
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true); // We receive our own messages, as with Artemis
+            channel.join(group, networkInterface);
+            destinations = new InetSocketAddress[] { new InetSocketAddress(group, port) };
+            System.out.println("UDP transport: multicast to " + group.getHostAddress() + ":" + port + " on " + networkInterface.getName());
+        } else {
+            String[] hosts = peers.split(",");
+            destinations = new InetSocketAddress[hosts.length];
+            for (int i = 0; i < hosts.length; i++) {
+                String[] hostPort = hosts[i].trim().split(":");
+                destinations[i] = new InetSocketAddress(hostPort[0], hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : port);
+            }
+            System.out.println("UDP transport: unicast to " + peers + ", listening on port " + port);
+        }
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    @Override
+    public void listen(Receiver receiver) throws Exception {
+        this.receiver = receiver;
+        Thread receiverThread = new Thread("UdpTransport") {
+            @Override
+            public void run() {
+                receiveLoop();
+            }
+        };
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+    }
+
+    @Override
+    public void shutdown() throws Exception {
+        running = false;
+        if (selector != null) selector.close();
+        if (channel != null) channel.close();
+    }
+
+    /**
+     * @return false if none of the datagrams could be sent - the batch may then be sent again as it is. If only some of
+     *         them were, the reliable records of the rest are retransmitted, and the others are lost like any datagram.
+     */
+    @Override
+    public boolean send(ByteBuffer batch) {
+        trackReliable(batch);
+        // A datagram cut short by the receiver loses the records at its end, so fill each one with whole records only
+        int start = batch.position(), end = batch.limit(), datagrams = 0, failed = 0;
+        try {
+            while (start < end) {
+                int datagramEnd = start, length;
+                while ((length = ClusterMessage.recordLength(batch, datagramEnd)) > 0
+                        && (datagramEnd == start || datagramEnd + length - start <= MAX_DATAGRAM))
+                    datagramEnd += length;
+                if (datagramEnd == start) break; // Not a whole record - nothing more to send
+                batch.limit(datagramEnd).position(start);
+                datagrams++;
+                if (!broadcast(batch)) failed++;
+                batch.limit(end);
+                start = datagramEnd;
+            }
+        } finally {
+            batch.limit(end);
+        }
+        return datagrams == 0 || failed < datagrams;
+    }
+
+    private boolean broadcast(ByteBuffer datagram) {
+        int start = datagram.position();
+        try {
+            for (InetSocketAddress destination : destinations) {
+                datagram.position(start);
+                sendTo(datagram, destination);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.warn("Failed to send datagram:", e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * The one place datagrams are written to the socket
+     */
+    void sendTo(ByteBuffer datagram, InetSocketAddress destination) throws IOException {
+        channel.send(datagram, destination);
+    }
+
+    private static boolean isReliable(byte type) {
+        return type == ClusterMessage.TYPE_JOB_TAKEN || type == ClusterMessage.TYPE_JOB_COMPLETE;
+    }
+
+    /**
+     * Keep a copy of the reliable records in the batch until every known peer has acknowledged them - once, even if
+     * the batch is sent again after a failure
+     */
+    private void trackReliable(ByteBuffer batch) {
+        long awaiting = knownPeers;
+        if (awaiting == 0) return; // Nobody to wait for
+        long due = System.nanoTime() + RETRANSMIT_INTERVAL;
+        synchronized (pendingRecords) {
+            int length;
+            for (int offset = batch.position(); (length = ClusterMessage.recordLength(batch, offset)) > 0; offset += length) {
+                if (!isReliable(batch.get(offset + 1))) continue;
+                int sequence = batch.getInt(offset + 8), free = -1, slot;
+                for (slot = 0; slot < MAX_PENDING; slot++) {
+                    if (pendingAwaiting[slot] == 0) {
+                        if (free < 0) free = slot;
+                    } else if (pendingSequence[slot] == sequence) {
+                        break;
+                    }
+                }
+                if (slot < MAX_PENDING) continue; // Tracked on an earlier attempt at sending the batch
+                if (free < 0) {
+                    Log.warn("Too many unacknowledged messages, not tracking more");
+                    return;
+                }
+                for (int i = 0; i < ClusterMessage.SIZE; i++)
+                    pendingRecords[free * ClusterMessage.SIZE + i] = batch.get(offset + i);
+                pendingSequence[free] = sequence;
+                pendingAttempts[free] = 0;
+                pendingAwaiting[free] = awaiting;
+                pendingDue[free] = due;
+            }
+        }
+    }
+
+    /**
+     * @return the number of messages waiting for acknowledgements
+     */
+    int pendingCount() {
+        int count = 0;
+        synchronized (pendingRecords) {
+            for (int i = 0; i < MAX_PENDING; i++)
+                if (pendingAwaiting[i] != 0) count++;
+        }
+        return count;
+    }
+
+    private void acknowledged(int peer, int sequence) {
+        synchronized (pendingRecords) {
+            for (int i = 0; i < MAX_PENDING; i++) {
+                if (pendingAwaiting[i] != 0 && pendingSequence[i] == sequence) {
+                    pendingAwaiting[i] &= ~(1L << peer);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Send the records that are due for retransmission together in one datagram
+     * @return nanoseconds until the next retransmission is due
+     */
+    private long retransmit(ByteBuffer datagram, long now) {
+        long next = RETRANSMIT_INTERVAL;
+        datagram.clear();
+        synchronized (pendingRecords) {
+            for (int i = 0; i < MAX_PENDING; i++) {
+                if (pendingAwaiting[i] == 0) continue;
+                if (pendingDue[i] - now > 0) {
+                    next = Math.min(next, pendingDue[i] - now);
+                    continue;
+                }
+                if (++pendingAttempts[i] > MAX_RETRANSMITS) {
+                    Log.warn("Message {} was never acknowledged by all peers, giving up", pendingSequence[i]);
+                    pendingAwaiting[i] = 0;
+                    continue;
+                }
+                if (datagram.remaining() < ClusterMessage.SIZE) break;
+                datagram.put(pendingRecords, i * ClusterMessage.SIZE, ClusterMessage.SIZE);
+                pendingDue[i] = now + RETRANSMIT_INTERVAL;
+            }
+        }
+        if (datagram.position() > 0) {
+            datagram.flip();
+            broadcast(datagram);
+        }
+        return next;
+    }
+
+    private int peerIndex(int node) {
+        for (int i = 0; i < peerCount; i++)
+            if (peerNodes[i] == node) return i;
+        if (peerCount == MAX_PEERS) return -1;
+        peerNodes[peerCount] = node;
+        highestSequence[peerCount] = 0;
+        seenWindow[peerCount] = 0;
+        knownPeers |= 1L << peerCount;
+        return peerCount++;
+    }
+
+    /**
+     * Record that the sequence number was seen from the peer
+     * @return false if it was seen before (or is too old to tell)
+     */
+    private boolean firstTime(int peer, int sequence) {
+        int ahead = sequence - highestSequence[peer]; // Wraps around safely
+        if (seenWindow[peer] == 0 || ahead > 0) {
+            seenWindow[peer] = (seenWindow[peer] == 0 || ahead >= DUPLICATE_WINDOW) ? 1 : (seenWindow[peer] << ahead) | 1;
+            highestSequence[peer] = sequence;
+            return true;
+        }
+        if (-ahead >= DUPLICATE_WINDOW) return false;
+        long bit = 1L << -ahead;
+        if ((seenWindow[peer] & bit) != 0) return false;
+        seenWindow[peer] |= bit;
+        return true;
+    }
+
+    private void receiveLoop() {
+        ByteBuffer datagram = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE),
+                acknowledgements = ByteBuffer.allocate(MAX_DATAGRAM),
+                retransmissions = ByteBuffer.allocate(MAX_DATAGRAM);
+        ClusterMessage received = new ClusterMessage();
+        long timeout = RETRANSMIT_INTERVAL;
+        while (running) {
+            try {
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout)));
+                selector.selectedKeys().clear();
+                datagram.clear();
+                while (channel.receive(datagram) != null) {
+                    datagram.flip();
+                    acknowledgements.clear();
+                    while (received.decode(datagram)) {
+                        int peer = received.node == nodeIndex ? SELF : peerIndex(received.node);
+                        if (peer < 0) continue; // Cluster larger than MAX_PEERS
+                        if (received.type == ClusterMessage.TYPE_ACK) {
+                            if (peer != SELF && received.timestamp == nodeIndex)
+                                acknowledged(peer, received.sequence);
+                            continue;
+                        }
+                        // Acknowledge duplicates too - our previous acknowledgement may be what got lost
+                        if (peer != SELF && isReliable(received.type) && acknowledgements.remaining() >= ClusterMessage.SIZE)
+                            ClusterMessage.encode(acknowledgements, ClusterMessage.TYPE_ACK, 0, nodeIndex, received.sequence, received.node);
+                        if (firstTime(peer, received.sequence))
+                            receiver.onMessage(received);
+                    }
+                    if (acknowledgements.position() > 0) {
+                        acknowledgements.flip();
+                        broadcast(acknowledgements);
+                    }
+                    datagram.clear();
+                }
+                timeout = retransmit(retransmissions, System.nanoTime());
+            } catch (ClosedSelectorException | ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                Log.error("Error in UDP transport", e);
+            }
+        }
+    }
+}
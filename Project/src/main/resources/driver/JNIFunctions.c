@@ -1,104 +1,141 @@
 //#pragma once
-#include "no_ntnu_stud_torbjovn_elevator_Elevator.h"
+#include "no_ntnu_stud_torbjovn_elevator_NativeDriver.h"
 
 #include "elev.h"
 
 /* NOTE: the floor is returned as 1-indexed (0 is invalid), to reflect the "natural" floor numbering
- * Class:       no_ntnu_stud_torbjovn_elevator_ELevator
- * Method:      getCurrentFloor
+ * Class:       no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:      elev_get_floor_sensor_signal
  * Signature:   ()I
  */
-JNIEXPORT jint JNICALL Java_no_ntnu_stud_torbjovn_elevator_Elevator_getCurrentFloor
+JNIEXPORT jint JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1get_1floor_1sensor_1signal
   (JNIEnv * env, jobject obj) {
         return elev_get_floor_sensor_signal() + 1;
   }
 
 /*
- * Class:     no_ntnu_stud_torbjovn_elevator_Elevator
- * Method:    doorObstructed
- * Signature: ()Z
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_get_obstruction_signal
+ * Signature: ()I
  */
-JNIEXPORT jboolean JNICALL Java_no_ntnu_stud_torbjovn_elevator_Elevator_doorObstructed
+JNIEXPORT jint JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1get_1obstruction_1signal
   (JNIEnv * env, jobject obj) {
-        return (elev_get_obstruction_signal() != 0);
+        return elev_get_obstruction_signal();
+  }
+
+/* NOTE: like elev_get_floor_sensor_signal, the floor entry is converted to 1-indexed (0 is invalid)
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_get_input_snapshot
+ * Signature: ([I)V
+ */
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1get_1input_1snapshot
+  (JNIEnv * env, jobject obj, jintArray target) {
+        const int floors = elev_get_num_floors();
+        const int size = SNAPSHOT_SIZE(floors);
+        jint buf[size];
+        int raw[size];
+        if ((*env)->GetArrayLength(env, target) < size)
+            return;
+        elev_get_input_snapshot(raw);
+        for (int i = 0; i < size; i++)
+            buf[i] = raw[i];
+        buf[SNAPSHOT_FLOOR(floors)] += 1;
+        (*env)->SetIntArrayRegion(env, target, 0, size, buf);
   }
 
 /*
- * Class:     no_ntnu_stud_torbjovn_elevator_Elevator
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
  * Method:    hw_init
- * Signature: (I)Z
+ * Signature: (II)Z
  */
-JNIEXPORT jboolean JNICALL Java_no_ntnu_stud_torbjovn_elevator_Elevator_hw_1init
-  (JNIEnv * env, jobject obj, jint mode) {
-        return elev_init(mode);
+JNIEXPORT jboolean JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_hw_1init
+  (JNIEnv * env, jobject obj, jint mode, jint numFloors) {
+        return elev_init(mode, numFloors);
   }
 
 /*
- * Class:     no_ntnu_stud_torbjovn_elevator_Elevator
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
  * Method:    elev_set_motor_direction
  * Signature: (I)V
  */
-JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_Elevator_elev_1set_1motor_1direction
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1set_1motor_1direction
   (JNIEnv * env, jobject obj, jint direction) {
         elev_set_motor_direction(direction);
   }
 
 /*
- * Class:     no_ntnu_stud_torbjovn_elevator_Elevator
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
  * Method:    elev_set_button_lamp
  * Signature: (III)V
  */
-JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_Elevator_elev_1set_1button_1lamp
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1set_1button_1lamp
   (JNIEnv * env, jobject obj, jint button, jint floor, jint value) {
         elev_set_button_lamp(button, floor, value);
   }
 
 /*
- * Class:     no_ntnu_stud_torbjovn_elevator_Elevator
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
  * Method:    elev_set_floor_indicator
  * Signature: (I)V
  */
-JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_Elevator_elev_1set_1floor_1indicator
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1set_1floor_1indicator
   (JNIEnv * env, jobject obj, jint floor) {
         elev_set_floor_indicator(floor - 1); // Convert from 1-indexed to 0-indexed
   }
 
 /*
- * Class:     no_ntnu_stud_torbjovn_elevator_Elevator
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
  * Method:    elev_set_door_open_lamp
  * Signature: (I)V
  */
-JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_Elevator_elev_1set_1door_1open_1lamp
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1set_1door_1open_1lamp
   (JNIEnv * env, jobject obj, jint value) {
         elev_set_door_open_lamp(value);
   }
 
 /*
- * Class:     no_ntnu_stud_torbjovn_elevator_Elevator
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
  * Method:    elev_set_stop_lamp
  * Signature: (I)V
  */
-JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_Elevator_elev_1set_1stop_1lamp
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1set_1stop_1lamp
   (JNIEnv * env, jobject obj, jint value) {
         elev_set_stop_lamp(value);
   }
 
+/* NOTE: the outputs are packed as described in elev.h
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_set_outputs
+ * Signature: ([II)V
+ */
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1set_1outputs
+  (JNIEnv * env, jobject obj, jintArray outputs, jint count) {
+        if (count <= 0 || (*env)->GetArrayLength(env, outputs) < count)
+            return;
+        jint buf[count];
+        int packed[count];
+        (*env)->GetIntArrayRegion(env, outputs, 0, count, buf);
+        for (int i = 0; i < count; i++)
+            packed[i] = buf[i];
+        elev_set_outputs(packed, count);
+  }
+
 /*
- * Class:     no_ntnu_stud_torbjovn_elevator_Elevator
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
  * Method:    elev_get_button_signal
  * Signature: (II)I
  */
-JNIEXPORT jint JNICALL Java_no_ntnu_stud_torbjovn_elevator_Elevator_elev_1get_1button_1signal
+JNIEXPORT jint JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1get_1button_1signal
   (JNIEnv * env, jobject obj, jint button, jint floor) {
         return elev_get_button_signal(button, floor);
   }
 
 /*
- * Class:     no_ntnu_stud_torbjovn_elevator_Elevator
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
  * Method:    elev_get_stop_signal
  * Signature: ()I
  */
-JNIEXPORT jint JNICALL Java_no_ntnu_stud_torbjovn_elevator_Elevator_elev_1get_1stop_1signal
+JNIEXPORT jint JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1get_1stop_1signal
   (JNIEnv * env, jobject obj) {
         return elev_get_stop_signal();
   }
\ No newline at end of file
@@ -5,6 +5,7 @@
 #include <sys/socket.h>
 #include <netdb.h>
 #include <stdio.h>
+#include <string.h>
 #include <pthread.h>
 
 #include "channels.h"
@@ -33,14 +34,24 @@ static const int button_channel_matrix[N_FLOORS][N_BUTTONS] = {
 //		ET_Simulation = 1;
 
 static int elevatorType = ET_Comedi;
+static int n_floors = N_FLOORS;
 static int sockfd;
 static pthread_mutex_t sockmtx;
 
-bool elev_init(int e) {
+int elev_get_num_floors(void) {
+    return n_floors;
+}
+
+bool elev_init(int e, int num_floors) {
     elevatorType = e;
     switch(elevatorType) {
     case ET_Comedi:
         ;
+        if (num_floors != N_FLOORS) {
+            fprintf(stderr, "The hardware has %d floors, not %d\n", N_FLOORS, num_floors);
+            return false;
+        }
+        n_floors = N_FLOORS;
         int init_success = io_init();
         if (!init_success) return false;
 
@@ -64,6 +75,8 @@ bool elev_init(int e) {
             con_val("com_port", port, "%s")
         )
         
+        if (num_floors < 2) return false;
+        n_floors = num_floors;
         pthread_mutex_init(&sockmtx, NULL);
     
         sockfd = socket(AF_INET, SOCK_STREAM, 0);
@@ -202,6 +215,39 @@ void elev_set_stop_lamp(int value) {
 
 
 
+void elev_set_outputs(const int *outputs, int count) {
+    switch(elevatorType) {
+    case ET_Comedi:
+        for(int i = 0; i < count; i++) {
+            const int output = outputs[i];
+            const signed char arg1 = output >> 16, arg2 = output >> 8, arg3 = output;
+            switch((output >> 24) & 0xff) {
+            case 1: elev_set_motor_direction(arg1); break;
+            case 2: elev_set_button_lamp(arg1, arg2, arg3); break;
+            case 3: elev_set_floor_indicator(arg1); break;
+            case 4: elev_set_door_open_lamp(arg1); break;
+            case 5: elev_set_stop_lamp(arg1); break;
+            }
+        }
+        break;
+    case ET_Simulation:
+        ;
+        // The commands are already in the simulator's format - send them all at once
+        char req[count * 4];
+        for(int i = 0; i < count; i++) {
+            req[i * 4] = outputs[i] >> 24;
+            req[i * 4 + 1] = outputs[i] >> 16;
+            req[i * 4 + 2] = outputs[i] >> 8;
+            req[i * 4 + 3] = outputs[i];
+        }
+        pthread_mutex_lock(&sockmtx);
+        send(sockfd, req, sizeof(req), 0);
+        pthread_mutex_unlock(&sockmtx);
+        break;
+    }
+}
+
+
 
 int elev_get_button_signal(elev_button_type_t button, int floor) {
     switch(elevatorType) {
@@ -280,3 +326,64 @@ int elev_get_obstruction_signal(void) {
     }
     return 0;
 }
+
+
+void elev_get_input_snapshot(int *buf) {
+    switch(elevatorType) {
+    case ET_Comedi:
+        for(int f = 0; f < N_FLOORS; f++) {
+            for(elev_button_type_t b = 0; b < N_BUTTONS; b++) {
+                int channel = button_channel_matrix[f][b];
+                buf[f * N_BUTTONS + b] = (channel == -1) ? 0 : io_read_bit(channel);
+            }
+        }
+        buf[SNAPSHOT_FLOOR(N_FLOORS)] = elev_get_floor_sensor_signal();
+        buf[SNAPSHOT_STOP(N_FLOORS)] = io_read_bit(STOP);
+        buf[SNAPSHOT_OBSTRUCTION(N_FLOORS)] = io_read_bit(OBSTRUCTION);
+        break;
+    case ET_Simulation:
+        ;
+        // Pipeline all the queries in a single send, then collect the replies in the same order
+        const int size = SNAPSHOT_SIZE(n_floors);
+        char req[size * 4];
+        char rep[size * 4];
+        memset(req, 0, sizeof(req));
+        int n = 0;
+        for(int f = 0; f < n_floors; f++) {
+            for(elev_button_type_t b = 0; b < N_BUTTONS; b++) {
+                req[n * 4] = 6;
+                req[n * 4 + 1] = b;
+                req[n * 4 + 2] = f;
+                n++;
+            }
+        }
+        req[n++ * 4] = 7;
+        req[n++ * 4] = 8;
+        req[n++ * 4] = 9;
+
+        int received = 0;
+        pthread_mutex_lock(&sockmtx);
+        send(sockfd, req, sizeof(req), 0);
+        while(received < (int)sizeof(rep)) {
+            int r = recv(sockfd, rep + received, sizeof(rep) - received, 0);
+            if(r <= 0) break;
+            received += r;
+        }
+        pthread_mutex_unlock(&sockmtx);
+
+        if(received < (int)sizeof(rep)) {
+            // Connection trouble - report "nothing pressed, between floors" rather than garbage
+            for(int i = 0; i < size; i++) buf[i] = 0;
+            buf[SNAPSHOT_FLOOR(n_floors)] = -1;
+            break;
+        }
+        const int floor = SNAPSHOT_FLOOR(n_floors);
+        for(int i = 0; i < floor; i++) {
+            buf[i] = rep[i * 4 + 1];
+        }
+        buf[floor] = rep[floor * 4 + 1] ? rep[floor * 4 + 2] : -1;
+        buf[SNAPSHOT_STOP(n_floors)] = rep[SNAPSHOT_STOP(n_floors) * 4 + 1];
+        buf[SNAPSHOT_OBSTRUCTION(n_floors)] = rep[SNAPSHOT_OBSTRUCTION(n_floors) * 4 + 1];
+        break;
+    }
+}
@@ -3,12 +3,20 @@
 #pragma once
 #include <stdbool.h>
 
-// Number of floors. Hardware-dependent, do not modify.
+// Number of floors of the lab hardware. Hardware-dependent, do not modify.
+// The simulator can have a different number of floors, given to elev_init() (see elev_get_num_floors()).
 #define N_FLOORS 4
 
 // Number of buttons (and corresponding lamps) on a per-floor basis
 #define N_BUTTONS 3
 
+// Layout of the buffer filled by elev_get_input_snapshot(), for the given number of floors:
+// one entry per button (index floor * N_BUTTONS + button), followed by floor sensor, stop and obstruction
+#define SNAPSHOT_FLOOR(floors)          ((floors) * N_BUTTONS)
+#define SNAPSHOT_STOP(floors)           (SNAPSHOT_FLOOR(floors) + 1)
+#define SNAPSHOT_OBSTRUCTION(floors)    (SNAPSHOT_FLOOR(floors) + 2)
+#define SNAPSHOT_SIZE(floors)           (SNAPSHOT_FLOOR(floors) + 3)
+
 typedef enum tag_elev_motor_direction { 
     DIRN_DOWN = -1,
     DIRN_STOP = 0,
@@ -26,7 +34,9 @@ typedef enum {
     ET_Simulation = 1
 } elev_type;
 
-bool elev_init(int e);
+// num_floors must be N_FLOORS for the hardware
+bool elev_init(int e, int num_floors);
+int elev_get_num_floors(void);
 
 void elev_set_motor_direction(elev_motor_direction_t dirn);
 void elev_set_button_lamp(elev_button_type_t button, int floor, int value);
@@ -39,5 +49,12 @@ int elev_get_floor_sensor_signal(void);
 int elev_get_stop_signal(void);
 int elev_get_obstruction_signal(void);
 
+// Write several outputs in one go - each one packed into an int as the 4 bytes of the simulator command that sets it,
+// most significant byte first (command, then its 3 arguments; the floor indicator's floor is 0-indexed)
+void elev_set_outputs(const int *outputs, int count);
+
+// Read every input (buttons, floor sensor, stop, obstruction) in one go - buf must hold SNAPSHOT_SIZE(elev_get_num_floors()) ints
+void elev_get_input_snapshot(int *buf);
+
 
 
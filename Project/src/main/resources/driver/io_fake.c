@@ -0,0 +1,43 @@
+// In-memory stand-in for io.c, so that the Comedi path of elev.c can be exercised without the hardware or comedilib
+// (used by the JNI benchmarks - build with 'make stub'). All channels start cleared, except the floor 1 sensor.
+
+#include "io.h"
+#include "channels.h"
+
+#define N_CHANNELS 1024
+
+static int channels[N_CHANNELS];
+
+
+int io_init(void) {
+    for (int i = 0; i < N_CHANNELS; i++) {
+        channels[i] = 0;
+    }
+    channels[SENSOR_FLOOR1 % N_CHANNELS] = 1;
+    return 1;
+}
+
+
+void io_set_bit(int channel) {
+    channels[channel % N_CHANNELS] = 1;
+}
+
+
+void io_clear_bit(int channel) {
+    channels[channel % N_CHANNELS] = 0;
+}
+
+
+int io_read_bit(int channel) {
+    return channels[channel % N_CHANNELS];
+}
+
+
+int io_read_analog(int channel) {
+    return channels[channel % N_CHANNELS];
+}
+
+
+void io_write_analog(int channel, int value) {
+    channels[channel % N_CHANNELS] = value;
+}
@@ -4,7 +4,7 @@
 #include "elev.h"
 
 int main() {
-    elev_init();
+    elev_init(ET_Comedi, N_FLOORS);
 
     printf("Press STOP button to stop elevator and exit program.\n");
 
@@ -12,7 +12,7 @@ int main() {
 
     while (1) {
         // Change direction when we reach top/bottom floor
-        if (elev_get_floor_sensor_signal() == N_FLOORS - 1) {
+        if (elev_get_floor_sensor_signal() == elev_get_num_floors() - 1) {
             elev_set_motor_direction(DIRN_DOWN);
         } else if (elev_get_floor_sensor_signal() == 0) {
             elev_set_motor_direction(DIRN_UP);
@@ -0,0 +1,113 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class no_ntnu_stud_torbjovn_elevator_NativeDriver */
+
+#ifndef _Included_no_ntnu_stud_torbjovn_elevator_NativeDriver
+#define _Included_no_ntnu_stud_torbjovn_elevator_NativeDriver
+#ifdef __cplusplus
+extern "C" {
+#endif
+#undef no_ntnu_stud_torbjovn_elevator_NativeDriver_ET_Comedi
+#define no_ntnu_stud_torbjovn_elevator_NativeDriver_ET_Comedi 0L
+#undef no_ntnu_stud_torbjovn_elevator_NativeDriver_ET_Simulation
+#define no_ntnu_stud_torbjovn_elevator_NativeDriver_ET_Simulation 1L
+/*
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    hw_init
+ * Signature: (II)Z
+ */
+JNIEXPORT jboolean JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_hw_1init
+  (JNIEnv *, jobject, jint, jint);
+
+/*
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_set_motor_direction
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1set_1motor_1direction
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_set_button_lamp
+ * Signature: (III)V
+ */
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1set_1button_1lamp
+  (JNIEnv *, jobject, jint, jint, jint);
+
+/*
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_set_floor_indicator
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1set_1floor_1indicator
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_set_door_open_lamp
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1set_1door_1open_1lamp
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_set_stop_lamp
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1set_1stop_1lamp
+  (JNIEnv *, jobject, jint);
+
+/*
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_get_button_signal
+ * Signature: (II)I
+ */
+JNIEXPORT jint JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1get_1button_1signal
+  (JNIEnv *, jobject, jint, jint);
+
+/*
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_get_stop_signal
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1get_1stop_1signal
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_get_floor_sensor_signal
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1get_1floor_1sensor_1signal
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_get_obstruction_signal
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1get_1obstruction_1signal
+  (JNIEnv *, jobject);
+
+/*
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_get_input_snapshot
+ * Signature: ([I)V
+ */
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1get_1input_1snapshot
+  (JNIEnv *, jobject, jintArray);
+
+/*
+ * Class:     no_ntnu_stud_torbjovn_elevator_NativeDriver
+ * Method:    elev_set_outputs
+ * Signature: ([II)V
+ */
+JNIEXPORT void JNICALL Java_no_ntnu_stud_torbjovn_elevator_NativeDriver_elev_1set_1outputs
+  (JNIEnv *, jobject, jintArray, jint);
+
+#ifdef __cplusplus
+}
+#endif
+#endif
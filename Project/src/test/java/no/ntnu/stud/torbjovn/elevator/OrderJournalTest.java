@@ -0,0 +1,119 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OrderJournalTest {
+    private static final String JOURNAL = "target/OrderJournalTest.journal";
+
+    @BeforeClass
+    public static void configure() {
+        TestSettings.apply();
+        new File(JOURNAL).delete();
+        Settings.setSetting("journal_file", JOURNAL);
+    }
+
+    /**
+     * An elevator standing still at the first floor with nothing pressed
+     */
+    private static class StandingDriver implements ElevatorDriver {
+        private volatile int motorDirection = Elevator.DIR_STOP;
+
+        @Override
+        public boolean init() {
+            return true;
+        }
+
+        @Override
+        public void setMotorDirection(int dirn) {
+            motorDirection = dirn;
+        }
+
+        @Override
+        public void setButtonLamp(int button, int floor, int value) {}
+
+        @Override
+        public void setFloorIndicator(int floor) {}
+
+        @Override
+        public void setDoorOpenLamp(int value) {}
+
+        @Override
+        public void setStopLamp(int value) {}
+
+        @Override
+        public void setOutputs(int[] outputs, int count) {
+            OutputRegister.writeEach(this, outputs, count);
+        }
+
+        @Override
+        public int getFloorSensorSignal() {
+            return 1;
+        }
+
+        @Override
+        public int getObstructionSignal() {
+            return 0;
+        }
+
+        @Override
+        public void getInputSnapshot(int[] snapshot) {
+            snapshot[Elevator.SNAPSHOT_FLOOR] = 1;
+        }
+    }
+
+    /**
+     * Run the task on the ControlLoop and wait for it, and for whatever was posted before it
+     */
+    private static void onLoop(final Runnable task) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        ControlLoop.post(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cabCallsAreRecoveredAfterStopElevator() throws InterruptedException {
+        StandingDriver driver = new StandingDriver();
+        final Elevator elevator = new Elevator(driver);
+        ControlLoop.start(elevator, new Transport.Receiver() {
+            @Override
+            public void onMessage(ClusterMessage message) {}
+        });
+        onLoop(new Runnable() {
+            @Override
+            public void run() {
+                elevator.asyncGoToFloor(3);
+                elevator.asyncGoToFloor(4);
+            }
+        });
+
+        // As the shutdown hook does on SIGTERM - the motor stops, the stops stay
+        elevator.stopElevator();
+        onLoop(new Runnable() {
+            @Override
+            public void run() {}
+        });
+        assertEquals(Elevator.DIR_STOP, driver.motorDirection);
+        assertTrue(elevator.getCabCalls().get(3));
+
+        // Opens the journal again and recovers from it
+        BitSet recovered = new Elevator(new StandingDriver()).getCabCalls();
+        assertTrue(recovered.get(3));
+        assertTrue(recovered.get(4));
+        assertEquals(2, recovered.cardinality());
+    }
+}
@@ -0,0 +1,18 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+/**
+ * Settings for running the tests without an elevator.config - call apply() in the @BeforeClass of every test that
+ * touches classes reading settings, before anything else
+ */
+class TestSettings {
+    private TestSettings() {}
+
+    static void apply() {
+        Settings.setSetting("ip_address", "127.0.0.1");
+        Settings.setSetting("num_floors", "4");
+        // Keep the log out of the test output - nothing below WARN, and not on the console
+        Settings.setSetting("log_level", "WARN");
+        Settings.setSetting("log_console", "false");
+        Settings.setSetting("log_file", "target/test.log");
+    }
+}
@@ -0,0 +1,107 @@
+package no.ntnu.stud.torbjovn.elevator;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UdpTransportTest {
+    private static final int NODE_A = 1, NODE_B = 2;
+
+    @BeforeClass
+    public static void configure() {
+        TestSettings.apply();
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Start the transport on the port, sending to the other port only
+     */
+    private static void start(UdpTransport transport, int port, int peerPort, Transport.Receiver receiver) throws Exception {
+        Settings.setSetting("udp_port", String.valueOf(port));
+        Settings.setSetting("udp_peers", "127.0.0.1:" + peerPort);
+        transport.start();
+        transport.listen(receiver);
+    }
+
+    private static ByteBuffer batch(byte type, int node, int sequence) {
+        ByteBuffer batch = ByteBuffer.allocate(ClusterMessage.SIZE);
+        ClusterMessage.encode(batch, type, 2, node, sequence, System.currentTimeMillis());
+        batch.flip();
+        return batch;
+    }
+
+    /**
+     * A transport whose socket fails every send while it's down
+     */
+    private static class FailingTransport extends UdpTransport {
+        volatile boolean down = false;
+
+        FailingTransport(int nodeIndex) {
+            super(nodeIndex);
+        }
+
+        @Override
+        void sendTo(ByteBuffer datagram, InetSocketAddress destination) throws IOException {
+            if (down) throw new IOException("Network is unreachable");
+            super.sendTo(datagram, destination);
+        }
+    }
+
+    @Test
+    public void retriedBatchIsTrackedOnce() throws Exception {
+        int portA = freePort(), portB = freePort();
+        final CountDownLatch heardFromB = new CountDownLatch(1);
+        FailingTransport a = new FailingTransport(NODE_A);
+        UdpTransport b = new UdpTransport(NODE_B);
+        try {
+            start(a, portA, portB, new Transport.Receiver() {
+                @Override
+                public void onMessage(ClusterMessage message) {
+                    if (message.node == NODE_B) heardFromB.countDown();
+                }
+            });
+            start(b, portB, portA, new Transport.Receiver() {
+                @Override
+                public void onMessage(ClusterMessage message) {}
+            });
+            // A only waits for acknowledgements from the peers it knows
+            assertTrue(b.send(batch(ClusterMessage.TYPE_NEW_REQUEST, NODE_B, 1)));
+            assertTrue(heardFromB.await(5, TimeUnit.SECONDS));
+
+            // Sent again as it is after each failure, as the MessageSender does
+            ByteBuffer taken = batch(ClusterMessage.TYPE_JOB_TAKEN, NODE_A, 7);
+            a.down = true;
+            assertFalse(a.send(taken));
+            taken.rewind();
+            assertFalse(a.send(taken));
+            assertEquals(1, a.pendingCount()); // Nothing got through to be acknowledged
+            a.down = false;
+            taken.rewind();
+            assertTrue(a.send(taken));
+
+            // B acknowledges it
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+            while (a.pendingCount() > 0 && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            assertEquals(0, a.pendingCount());
+        } finally {
+            a.shutdown();
+            b.shutdown();
+        }
+    }
+}
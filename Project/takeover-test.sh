@@ -0,0 +1,64 @@
+#!/bin/bash
+
+# Kill test for the process pair: starts a primary and a standby against the simulator (which must already be running,
+# as configured in simulator.con), kills the primary with SIGKILL at a random point and measures how long it takes
+# the standby to get control of the hardware. Run from the folder with elevator.config, after 'mvn package'.
+#
+# Usage: ./takeover-test.sh [runs]       (default 5)
+# Set ELEVATOR to the command starting the elevator, if not the jar in target/
+
+RUNS=${1:-5}
+ELEVATOR=${ELEVATOR:-"java -jar target/ttk4145-proj-1.0-SNAPSHOT-jar-with-dependencies.jar"}
+LOGS=${LOGS:-takeover-test}
+mkdir -p $LOGS
+
+# Wait for a line matching $1 in the file $2, for at most $3 seconds
+wait_for() {
+	for (( i=0; i<$3*100; i++ )); do
+		grep -q "$1" $2 2>/dev/null && return 0
+		sleep 0.01
+	done
+	return 1
+}
+
+TIMES=()
+for (( run=1; run<=RUNS; run++ )); do
+	$ELEVATOR > $LOGS/primary-$run.log 2>&1 &
+	PRIMARY=$!
+	if ! wait_for "Startup: ready" $LOGS/primary-$run.log 30; then
+		echo "Run $run: the primary didn't start, see $LOGS/primary-$run.log"
+		kill -9 $PRIMARY 2>/dev/null
+		exit 1
+	fi
+	$ELEVATOR standby > $LOGS/standby-$run.log 2>&1 &
+	STANDBY=$!
+	if ! wait_for "mirroring the primary" $LOGS/standby-$run.log 30; then
+		echo "Run $run: the standby didn't pick up the primary, see $LOGS/standby-$run.log"
+		kill -9 $PRIMARY $STANDBY 2>/dev/null
+		exit 1
+	fi
+
+	# Kill it somewhere in the next 3 s - whatever it happens to be doing
+	sleep $(( RANDOM % 3 )).$(( RANDOM % 10 ))5
+	KILLED=$(date +%s%3N)
+	kill -9 $PRIMARY
+
+	if wait_for "in control of the hardware" $LOGS/standby-$run.log 10; then
+		# "Process pair: in control of the hardware at <epoch ms>, <n> ms after the primary's last heartbeat ..."
+		CONTROL=$(grep -o "in control of the hardware at [0-9]*" $LOGS/standby-$run.log | grep -o "[0-9]*$")
+		TIMES+=($(( CONTROL - KILLED )))
+		echo "Run $run: in control $(( CONTROL - KILLED )) ms after the kill"
+	else
+		echo "Run $run: the standby didn't take over, see $LOGS/standby-$run.log"
+	fi
+	kill $STANDBY 2>/dev/null
+	wait $STANDBY 2>/dev/null
+done
+
+if [ ${#TIMES[@]} -gt 0 ]; then
+	SORTED=($(printf "%s\n" "${TIMES[@]}" | sort -n))
+	SUM=0
+	for t in "${TIMES[@]}"; do (( SUM += t )); done
+	echo "Takeover (kill to hardware control), ${#TIMES[@]} of $RUNS runs: min ${SORTED[0]} ms, mean $(( SUM / ${#TIMES[@]} )) ms, max ${SORTED[-1]} ms"
+fi
+[ ${#TIMES[@]} -eq $RUNS ]